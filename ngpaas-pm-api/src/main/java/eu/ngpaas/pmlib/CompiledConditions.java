@@ -0,0 +1,147 @@
+package eu.ngpaas.pmlib;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds an immutable, compiled form of the DNF conditions of a policy rule.
+ * Each clause is represented by two parallel arrays: the interned ids of the
+ * policy variables, sorted in ascending order, and the interned ids of the
+ * canonicalized (lower-cased) policy values. Comparing two clauses is then a
+ * merge-style walk over primitive arrays.
+ * <p>
+ * The ids are only held while a compiled form uses them: once no compiled
+ * conditions refer to a variable or value any more, e.g. because the policies
+ * holding them were removed, its id is reclaimed and may be given to another
+ * one, so the symbol tables do not grow with every value ever seen.
+ */
+public final class CompiledConditions {
+
+    private static final SymbolTable VARIABLE_IDS = new SymbolTable();
+    private static final SymbolTable VALUE_IDS = new SymbolTable();
+
+    /**
+     * Variable ids of each clause, sorted in ascending order
+     */
+    final int[][] variables;
+
+    /**
+     * Value ids of each clause, aligned with the variable ids
+     */
+    final int[][] values;
+
+    /**
+     * Symbols of the ids above, which keep the ids from being reclaimed
+     */
+    private final Symbol[] symbols;
+
+    private CompiledConditions(int[][] variables, int[][] values, Symbol[] symbols) {
+        this.variables = variables;
+        this.values = values;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Compiles the conditions of a policy. If a clause contains the same
+     * variable more than once, the last value is kept.
+     *
+     * @param conditions the conditions of a policy in DNF
+     * @return the compiled conditions
+     */
+    public static CompiledConditions compile(CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> conditions) {
+        int[][] variables = new int[conditions.size()][];
+        int[][] values = new int[conditions.size()][];
+        List<Symbol> symbols = new ArrayList<>();
+        int i = 0;
+        for (CopyOnWriteArrayList<PolicyCondition> clause : conditions) {
+            Map<Integer, Integer> literals = new TreeMap<>();
+            for (PolicyCondition pc : clause) {
+                Symbol variable = VARIABLE_IDS.intern(pc.getPolicyVariable());
+                Symbol value = VALUE_IDS.intern(pc.getPolicyValue().toLowerCase());
+                symbols.add(variable);
+                symbols.add(value);
+                literals.put(variable.id, value.id);
+            }
+            variables[i] = new int[literals.size()];
+            values[i] = new int[literals.size()];
+            int j = 0;
+            for (Map.Entry<Integer, Integer> literal : literals.entrySet()) {
+                variables[i][j] = literal.getKey();
+                values[i][j] = literal.getValue();
+                j++;
+            }
+            i++;
+        }
+        return new CompiledConditions(variables, values, symbols.toArray(new Symbol[0]));
+    }
+
+    /**
+     * Returns the number of clauses
+     *
+     * @return the number of clauses
+     */
+    public int size() {
+        return variables.length;
+    }
+
+    /**
+     * An interned string and its id
+     */
+    private static final class Symbol {
+        private final int id;
+
+        private Symbol(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Gives ids to strings. The table only holds its symbols weakly: when one
+     * is no longer referenced, its entry is dropped and its id is reused.
+     */
+    private static final class SymbolTable {
+        private final Map<String, SymbolReference> symbols = new HashMap<>();
+        private final ReferenceQueue<Symbol> reclaimed = new ReferenceQueue<>();
+        private final Deque<Integer> freeIds = new ArrayDeque<>();
+        private int nextId = 0;
+
+        synchronized Symbol intern(String string) {
+            expunge();
+            SymbolReference reference = symbols.get(string);
+            Symbol symbol = reference == null ? null : reference.get();
+            if (symbol == null) {
+                symbol = new Symbol(freeIds.isEmpty() ? nextId++ : freeIds.pop());
+                symbols.put(string, new SymbolReference(string, symbol, reclaimed));
+            }
+            return symbol;
+        }
+
+        private void expunge() {
+            SymbolReference reference;
+            while ((reference = (SymbolReference) reclaimed.poll()) != null) {
+                // The string may have been interned again since
+                symbols.remove(reference.string, reference);
+                freeIds.push(reference.id);
+            }
+        }
+    }
+
+    private static final class SymbolReference extends WeakReference<Symbol> {
+        private final String string;
+        private final int id;
+
+        private SymbolReference(String string, Symbol symbol, ReferenceQueue<Symbol> queue) {
+            super(symbol, queue);
+            this.string = string;
+            this.id = symbol.id;
+        }
+    }
+}
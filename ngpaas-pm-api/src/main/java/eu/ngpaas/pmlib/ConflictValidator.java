@@ -1,24 +1,10 @@
 package eu.ngpaas.pmlib;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.onlab.packet.Ip4Prefix;
-import org.onlab.packet.MacAddress;
-import org.onlab.packet.TpPort;
 import org.onosproject.net.DeviceId;
-import org.onosproject.net.flow.FlowEntry;
-import org.onosproject.net.flow.criteria.Criterion;
-import org.onosproject.net.flow.criteria.EthCriterion;
-import org.onosproject.net.flow.criteria.EthTypeCriterion;
-import org.onosproject.net.flow.criteria.IPCriterion;
-import org.onosproject.net.flow.criteria.IPProtocolCriterion;
-import org.onosproject.net.flow.criteria.TcpPortCriterion;
-import org.onosproject.net.flow.criteria.UdpPortCriterion;
+import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions;
 import org.onosproject.net.flow.instructions.L2ModificationInstruction;
@@ -39,6 +25,26 @@ public final class ConflictValidator {
      * @return a SimpleResponse object with the success/fail message
      */
     public static SimpleResponse checkConflict(PolicyRule npRule, PolicyRule apRule) {
+        SimpleResponse sr = detectConflict(npRule, apRule);
+        // A duplicated policy takes the id of the active one
+        if (sr.getCode() == 2) {
+            npRule.setId(apRule.getId());
+        }
+        return sr;
+    }
+
+    /**
+     * Identifies if there is a conflict between a pair of policy rules, like
+     * checkConflict, but without giving the id of the active policy rule to a
+     * duplicated new policy rule. The new policy rule must be already in its
+     * canonical form, so it can be checked against several active policy
+     * rules at the same time.
+     *
+     * @param npRule a new policy rule
+     * @param apRule an active policy rule
+     * @return a SimpleResponse object with the success/fail message
+     */
+    public static SimpleResponse detectConflict(PolicyRule npRule, PolicyRule apRule) {
 
         SimpleResponse sr = new SimpleResponse(0, "No conflict", true);
         // If the policies are of different types there is no conflict.
@@ -47,14 +53,14 @@ public final class ConflictValidator {
         }
 
         // Otherwise, if all conditions are independent, there is no conflict.
-        if (allConditionsIndependent(apRule.getPolicyConditions(), npRule.getPolicyConditions())) {
+        if (allConditionsIndependent(apRule.getCompiledConditions(), npRule.getCompiledConditions())) {
             return sr;
         }
 
-        // Otherwise, if the actions are equal, there is no conflict.
-        if (npRule.equalPolicyActions(apRule)) {
-            if (npRule.equalPolicyConditions(apRule)) {
-                npRule.setId(apRule.getId());
+        // Otherwise, if the actions are equal, there is no conflict. Fingerprints are compared first.
+        if (npRule.getActionsFingerprint() == apRule.getActionsFingerprint() && npRule.equalPolicyActions(apRule)) {
+            if (npRule.getConditionsFingerprint() == apRule.getConditionsFingerprint()
+                && npRule.equalPolicyConditions(apRule)) {
                 return new SimpleResponse(2, "Duplicated policy.", false);
             } else {
                 return sr;
@@ -101,106 +107,21 @@ public final class ConflictValidator {
     /**
      * Identifies if there is conflict based on the flow entries of the switches
      *
-     * @param enforcedEntry an enforced entry
+     * @param enforcedEntry an enforced entry, or a flow rule requested to be enforced
      * @param newEntry      a new entry
      * @param targetDevices a list of devices where to analyze the conflict
      * @return a SimpleResponse object with the success/fail message
      */
-    public static SimpleResponse newCheckConflict(FlowEntry enforcedEntry, ForwardingObjective newEntry,
+    public static SimpleResponse newCheckConflict(FlowRule enforcedEntry, ForwardingObjective newEntry,
                                                   List<DeviceId> targetDevices) {
         SimpleResponse sr = new SimpleResponse("No conflict", true);
         if ((enforcedEntry.priority() != newEntry.priority()) || !targetDevices.contains(enforcedEntry.deviceId())) {
             return sr;
         }
 
-        EthCriterion enforced_ethc, new_ethc;
-        TcpPortCriterion enforced_tcppc, new_tcppc;
-        UdpPortCriterion enforced_udppc, new_udppc;
-
-        for (Criterion enforcedCriteria : enforcedEntry.selector().criteria()) {
-            for (Criterion newCriteria : newEntry.selector().criteria()) {
-                if (enforcedCriteria.type() != newCriteria.type()) {
-                    continue;
-                }
-
-                switch (enforcedCriteria.type()) {
-                    case ETH_TYPE:
-                        EthTypeCriterion enforced_etc = (EthTypeCriterion) enforcedCriteria;
-                        EthTypeCriterion new_etc = (EthTypeCriterion) newCriteria;
-                        if (enforced_etc.ethType() != new_etc.ethType()) {
-                            return sr;
-                        }
-                        break;
-                    case IP_PROTO:
-                        IPProtocolCriterion enforced_ippc = (IPProtocolCriterion) enforcedCriteria;
-                        IPProtocolCriterion new_ippc = (IPProtocolCriterion) newCriteria;
-                        if (enforced_ippc.protocol() != new_ippc.protocol()) {
-                            return sr;
-                        }
-                        break;
-                    case IPV4_SRC:
-                    case IPV4_DST:
-                        IPCriterion enforced_ipc = (IPCriterion) enforcedCriteria;
-                        IPCriterion new_ipc = (IPCriterion) newCriteria;
-                        if (!checkCidrInCidr(new_ipc.ip().getIp4Prefix(), enforced_ipc.ip().getIp4Prefix())) {
-                            return sr;
-                        }
-                        break;
-                    case ETH_SRC:
-                    case ETH_DST:
-                        enforced_ethc = (EthCriterion) enforcedCriteria;
-                        new_ethc = (EthCriterion) newCriteria;
-                        if (!Long.valueOf(enforced_ethc.mac().toLong()).equals(new_ethc.mac().toLong())) {
-                            return sr;
-                        }
-                        break;
-                    case ETH_SRC_MASKED:
-                    case ETH_DST_MASKED:
-                        enforced_ethc = (EthCriterion) enforcedCriteria;
-                        new_ethc = (EthCriterion) newCriteria;
-                        if (!checkMacInMac(new_ethc.mac(), new_ethc.mask(), enforced_ethc.mac(),
-                                           enforced_ethc.mask())) {
-                            return sr;
-                        }
-                        break;
-                    case TCP_SRC:
-                    case TCP_DST:
-                        enforced_tcppc = (TcpPortCriterion) enforcedCriteria;
-                        new_tcppc = (TcpPortCriterion) newCriteria;
-                        if (enforced_tcppc.tcpPort() != new_tcppc.tcpPort()) {
-                            return sr;
-                        }
-                        break;
-                    case TCP_SRC_MASKED:
-                    case TCP_DST_MASKED:
-                        enforced_tcppc = (TcpPortCriterion) enforcedCriteria;
-                        new_tcppc = (TcpPortCriterion) newCriteria;
-                        if (!checkPortInPort(new_tcppc.tcpPort(), new_tcppc.mask(), enforced_tcppc.tcpPort(),
-                                             enforced_tcppc.mask())) {
-                            return sr;
-                        }
-                        break;
-                    case UDP_SRC:
-                    case UDP_DST:
-                        enforced_udppc = (UdpPortCriterion) enforcedCriteria;
-                        new_udppc = (UdpPortCriterion) newCriteria;
-                        if (enforced_udppc.udpPort() != new_udppc.udpPort()) {
-                            return sr;
-                        }
-                        break;
-                    case UDP_SRC_MASKED:
-                    case UDP_DST_MASKED:
-                        enforced_udppc = (UdpPortCriterion) enforcedCriteria;
-                        new_udppc = (UdpPortCriterion) newCriteria;
-                        if (!checkPortInPort(new_udppc.udpPort(), new_udppc.mask(), enforced_udppc.udpPort(),
-                                             enforced_udppc.mask())) {
-                            return sr;
-                        }
-                        break;
-                }
-
-
-            }
+        // The entries are independent if no packet is matched by both
+        if (!HeaderSpace.of(enforcedEntry.selector()).overlaps(HeaderSpace.of(newEntry.selector()))) {
+            return sr;
         }
         SimpleResponse sr2 = new SimpleResponse("Policy failed in conflict validation", false);
         //If we arrive here we know for sure that the flow entries are not independent. If they perform different
@@ -297,105 +218,46 @@ public final class ConflictValidator {
     }
 
     /**
-     * Checks if a CIDR is contained in another CIDR
+     * Checks if the conditions of a pair policies are independent. They are
+     * independent if every pair of clauses shares at least one variable with
+     * a different value.
      *
-     * @param cidrAddr1 address 1
-     * @param cidrAddr2 address 2
+     * @param apcs compiled conditions of an active policy rule
+     * @param npcs compiled conditions of a new policy rule
      * @return true or false
      */
-    private static boolean checkCidrInCidr(Ip4Prefix cidrAddr1, Ip4Prefix cidrAddr2) {
-        if (cidrAddr2 == null) {
-            return true;
-        } else if (cidrAddr1 == null) {
-            return false;
-        }
-        if (cidrAddr1.prefixLength() < cidrAddr2.prefixLength()) {
-            return false;
-        }
-        int offset = 32 - cidrAddr2.prefixLength();
-
-        int cidr1Prefix = cidrAddr1.address().toInt();
-        int cidr2Prefix = cidrAddr2.address().toInt();
-        cidr1Prefix = cidr1Prefix >> offset;
-        cidr2Prefix = cidr2Prefix >> offset;
-        cidr1Prefix = cidr1Prefix << offset;
-        cidr2Prefix = cidr2Prefix << offset;
-
-        return (cidr1Prefix == cidr2Prefix);
-    }
-
-    /**
-     * Checks if a MAC address is contained in another MAC address
-     *
-     * @param mac1  mac address 1
-     * @param mask1 mask of mac1
-     * @param mac2  mac address 2
-     * @param mask2 mask of mac2
-     * @return true or false
-     */
-    private static boolean checkMacInMac(MacAddress mac1, MacAddress mask1, MacAddress mac2, MacAddress mask2) {
-        return ((mac1.toLong() & mask1.toLong()) == (mac2.toLong() & mask2.toLong()));
-    }
-
-    /**
-     * Checks if a Port is contained in another Port
-     *
-     * @param port1 port 1
-     * @param mask1 mask of port1
-     * @param port2 port 2
-     * @param mask2 mask of port2
-     * @return true or false
-     */
-    private static boolean checkPortInPort(TpPort port1, TpPort mask1, TpPort port2, TpPort mask2) {
-        return ((port1.toInt() & mask1.toInt()) == (port2.toInt() & mask2.toInt()));
-    }
-
-    /**
-     * Checks if the conditions of a pair policies are independent
-     *
-     * @param apcs conditions of an active policy rule
-     * @param npcs conditions of a new policy rule
-     * @return true or false
-     */
-    private static Boolean allConditionsIndependent(CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> apcs,
-                                                    CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> npcs) {
-        ArrayList<String> intersection;
-        Map<String, String> activeClauseDict;
-        Map<String, String> newClauseDict;
-
-        int nindep = 0;
-
-        for (CopyOnWriteArrayList<PolicyCondition> activeClause : apcs) {
-            for (CopyOnWriteArrayList<PolicyCondition> newClause : npcs) {
-                activeClauseDict = getPolicyVariablesDict(activeClause);
-                newClauseDict = getPolicyVariablesDict(newClause);
-                intersection = (ArrayList<String>) CollectionUtils
-                    .intersection(activeClauseDict.keySet(), newClauseDict.keySet());
-                if (intersection.isEmpty()) {
+    public static boolean allConditionsIndependent(CompiledConditions apcs, CompiledConditions npcs) {
+        for (int i = 0; i < apcs.variables.length; i++) {
+            for (int j = 0; j < npcs.variables.length; j++) {
+                if (!clausesIndependent(apcs.variables[i], apcs.values[i], npcs.variables[j], npcs.values[j])) {
                     return false;
-                } else {
-                    for (String pv : intersection) {
-                        if (!activeClauseDict.get(pv).equalsIgnoreCase(newClauseDict.get(pv))) {
-                            nindep++;
-                            break;
-                        }
-                    }
                 }
             }
         }
-        return nindep == apcs.size() * npcs.size();
+        return true;
     }
 
     /**
-     * Creates a dictionary based on the PolicyVariable and PolicyValue of a PolicyCondition
-     *
-     * @param clause list of policy conditions
+     * Checks if a pair of compiled clauses are independent, i.e., if they
+     * share a variable with a different value. Walks both sorted variable
+     * arrays at the same time without allocating.
      */
-    private static Map<String, String> getPolicyVariablesDict(CopyOnWriteArrayList<PolicyCondition> clause) {
-        Map<String, String> policyVariablesDict = new HashMap<>();
-        for (PolicyCondition pc : clause) {
-            policyVariablesDict.put(pc.getPolicyVariable(), pc.getPolicyValue());
+    private static boolean clausesIndependent(int[] aVariables, int[] aValues, int[] nVariables, int[] nValues) {
+        int i = 0;
+        int j = 0;
+        while (i < aVariables.length && j < nVariables.length) {
+            if (aVariables[i] == nVariables[j]) {
+                if (aValues[i] != nValues[j]) {
+                    return true;
+                }
+                i++;
+                j++;
+            } else if (aVariables[i] < nVariables[j]) {
+                i++;
+            } else {
+                j++;
+            }
         }
-        return policyVariablesDict;
+        return false;
     }
 }
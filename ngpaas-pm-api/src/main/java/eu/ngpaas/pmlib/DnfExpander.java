@@ -0,0 +1,154 @@
+package eu.ngpaas.pmlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Expands conditions in CNF to DNF iteratively, one CNF clause at a time.
+ * After each step the partial DNF clauses that can never be met (the same
+ * variable with two different values) are dropped, and so are the partial
+ * clauses subsumed by another one (a superset of another clause adds
+ * nothing to a disjunction). The expansion is aborted as soon as the
+ * distinct partial clauses of a step exceed a maximum, before they are
+ * checked for subsumption, so that inputs that blow up are rejected without
+ * comparing every pair of their clauses.
+ * Variables and values are compared ignoring case, as the self-conflict
+ * check of the formal validation does.
+ */
+final class DnfExpander {
+
+    private DnfExpander() {
+    }
+
+    /**
+     * Converts conditions in CNF to DNF.
+     *
+     * @param cnf        the conditions in CNF
+     * @param maxClauses maximum number of DNF clauses
+     * @return the conditions in DNF; empty if they can never be met
+     * @throws IllegalArgumentException if a step of the expansion has more than maxClauses distinct clauses
+     */
+    static CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> expand(
+        List<? extends List<PolicyCondition>> cnf, int maxClauses) {
+        List<Partial> partials = new ArrayList<>();
+        partials.add(new Partial());
+        for (List<PolicyCondition> cnfClause : cnf) {
+            List<Partial> next = new ArrayList<>();
+            Set<Map<String, String>> distinct = new HashSet<>();
+            for (Partial partial : partials) {
+                for (PolicyCondition pc : cnfClause) {
+                    Partial extended = partial.extend(pc);
+                    if (extended != null && distinct.add(extended.values)) {
+                        if (next.size() == maxClauses) {
+                            throw new IllegalArgumentException("The DNF form of the conditions has more than " +
+                                                               maxClauses + " clauses.");
+                        }
+                        next.add(extended);
+                    }
+                }
+            }
+            partials = removeSubsumed(next);
+        }
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> dnf = new CopyOnWriteArrayList<>();
+        for (Partial partial : partials) {
+            dnf.add(new CopyOnWriteArrayList<>(partial.literals));
+        }
+        return dnf;
+    }
+
+    /**
+     * Returns the partial clauses that are not a superset of another one,
+     * in their original order.
+     */
+    private static List<Partial> removeSubsumed(List<Partial> partials) {
+        List<Partial> bySize = new ArrayList<>(partials);
+        Collections.sort(bySize, (a, b) -> Integer.compare(a.literals.size(), b.literals.size()));
+        List<Partial> kept = new ArrayList<>();
+        for (Partial candidate : bySize) {
+            boolean subsumed = false;
+            for (Partial smaller : kept) {
+                if (candidate.contains(smaller)) {
+                    subsumed = true;
+                    break;
+                }
+            }
+            if (!subsumed) {
+                kept.add(candidate);
+            }
+        }
+        if (kept.size() == partials.size()) {
+            return partials;
+        }
+        Set<Partial> keptSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        keptSet.addAll(kept);
+        List<Partial> ordered = new ArrayList<>(kept.size());
+        for (Partial partial : partials) {
+            if (keptSet.contains(partial)) {
+                ordered.add(partial);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * A partial DNF clause. Each variable appears at most once.
+     */
+    private static final class Partial {
+
+        private final List<PolicyCondition> literals;
+
+        /**
+         * Lower-cased variable to lower-cased value
+         */
+        private final Map<String, String> values;
+
+        private Partial() {
+            this.literals = new ArrayList<>();
+            this.values = new HashMap<>();
+        }
+
+        private Partial(Partial base, PolicyCondition pc, String variable, String value) {
+            this.literals = new ArrayList<>(base.literals.size() + 1);
+            this.literals.addAll(base.literals);
+            this.literals.add(pc);
+            this.values = new HashMap<>(base.values);
+            this.values.put(variable, value);
+        }
+
+        /**
+         * Returns this clause with one more condition, this clause itself if
+         * the condition is already in it, or null if the result can never be met.
+         */
+        private Partial extend(PolicyCondition pc) {
+            String variable = pc.getPolicyVariable().toLowerCase();
+            String value = pc.getPolicyValue().toLowerCase();
+            String current = values.get(variable);
+            if (current == null) {
+                return new Partial(this, pc, variable, value);
+            }
+            return current.equals(value) ? this : null;
+        }
+
+        /**
+         * Returns whether every condition of the other clause is in this one.
+         */
+        private boolean contains(Partial other) {
+            if (other.values.size() > values.size()) {
+                return false;
+            }
+            for (Map.Entry<String, String> literal : other.values.entrySet()) {
+                if (!literal.getValue().equals(values.get(literal.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -106,11 +105,10 @@ class ForwardingObjectiveListDeserializer extends StdDeserializer<ForwardingObje
         ForwardingObjectiveList fwdObjList = new ForwardingObjectiveList();
         ForwardingObjectiveCodec fwdObjCodec = new ForwardingObjectiveCodec();
         AbstractWebResource awr = new AbstractWebResource();
-        ObjectMapper mapper = new ObjectMapper();
         JsonNode jsonNode = node.get("objectives");
         for (int i = 0; i < jsonNode.size(); i++) {
             fwdObjList.getList().add(fwdObjCodec.decode(
-                (ObjectNode) mapper.readTree(jsonNode.get(i).asText()), awr));
+                (ObjectNode) PolicyCodec.readTree(jsonNode.get(i).asText()), awr));
         }
         jsonNode = node.get("devices");
         for (int i = 0; i < jsonNode.size(); i++) {
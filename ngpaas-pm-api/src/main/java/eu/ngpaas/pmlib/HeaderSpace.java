@@ -0,0 +1,300 @@
+package eu.ngpaas.pmlib;
+
+import java.util.Arrays;
+
+import org.onlab.packet.Ip4Prefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.criteria.EthTypeCriterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+import org.onosproject.net.flow.criteria.IPProtocolCriterion;
+import org.onosproject.net.flow.criteria.TcpPortCriterion;
+import org.onosproject.net.flow.criteria.UdpPortCriterion;
+
+/**
+ * The set of packet headers matched by a TrafficSelector, as a ternary bit
+ * vector: every header bit of the supported fields is either matched to a
+ * value (its mask bit is 1) or a wildcard (its mask bit is 0). The fields
+ * are packed in four 64-bit words, so checking whether two selectors match
+ * a common packet, or whether one matches every packet of the other, takes
+ * a few word-wide operations. Exact and masked criteria of the same field
+ * (e.g. ETH_SRC and ETH_SRC_MASKED) map to the same bits. Criteria of
+ * other types are not represented, i.e. they are wildcards.
+ * <p>
+ * Adding a field only requires a Field constant and a case in of().
+ * Instances are immutable.
+ */
+public final class HeaderSpace {
+
+    /**
+     * Position of a header field in the bit vector
+     */
+    private enum Field {
+        ETH_TYPE(0, 16),
+        ETH_SRC(16, 48),
+        ETH_DST(64, 48),
+        IP_PROTO(112, 8),
+        IPV4_SRC(120, 32),
+        IPV4_DST(152, 32),
+        TCP_SRC(184, 16),
+        TCP_DST(200, 16),
+        UDP_SRC(216, 16),
+        UDP_DST(232, 16);
+
+        private final int offset;
+        private final int width;
+
+        Field(int offset, int width) {
+            this.offset = offset;
+            this.width = width;
+        }
+    }
+
+    private static final int WORDS = 4;
+
+    private static final HeaderSpace ALL = new HeaderSpace(new long[WORDS], new long[WORDS], false);
+
+    private final long[] values;
+    private final long[] masks;
+
+    /**
+     * True if the criteria contradict each other, so no packet is matched
+     */
+    private final boolean empty;
+
+    private HeaderSpace(long[] values, long[] masks, boolean empty) {
+        this.values = values;
+        this.masks = masks;
+        this.empty = empty;
+    }
+
+    /**
+     * Returns the header space that matches every packet.
+     *
+     * @return the header space
+     */
+    public static HeaderSpace all() {
+        return ALL;
+    }
+
+    /**
+     * Returns the header space matched by a selector.
+     *
+     * @param selector the selector
+     * @return the header space
+     */
+    public static HeaderSpace of(TrafficSelector selector) {
+        Builder builder = new Builder();
+        for (Criterion criterion : selector.criteria()) {
+            switch (criterion.type()) {
+                case ETH_TYPE:
+                    builder.match(Field.ETH_TYPE, ((EthTypeCriterion) criterion).ethType().toShort() & 0xFFFFL);
+                    break;
+                case ETH_SRC:
+                    builder.match(Field.ETH_SRC, ((EthCriterion) criterion).mac());
+                    break;
+                case ETH_SRC_MASKED:
+                    builder.match(Field.ETH_SRC, ((EthCriterion) criterion).mac(), ((EthCriterion) criterion).mask());
+                    break;
+                case ETH_DST:
+                    builder.match(Field.ETH_DST, ((EthCriterion) criterion).mac());
+                    break;
+                case ETH_DST_MASKED:
+                    builder.match(Field.ETH_DST, ((EthCriterion) criterion).mac(), ((EthCriterion) criterion).mask());
+                    break;
+                case IP_PROTO:
+                    builder.match(Field.IP_PROTO, ((IPProtocolCriterion) criterion).protocol() & 0xFFL);
+                    break;
+                case IPV4_SRC:
+                    builder.match(Field.IPV4_SRC, ((IPCriterion) criterion).ip().getIp4Prefix());
+                    break;
+                case IPV4_DST:
+                    builder.match(Field.IPV4_DST, ((IPCriterion) criterion).ip().getIp4Prefix());
+                    break;
+                case TCP_SRC:
+                case TCP_SRC_MASKED:
+                    builder.match(Field.TCP_SRC, ((TcpPortCriterion) criterion).tcpPort(),
+                                  ((TcpPortCriterion) criterion).mask());
+                    break;
+                case TCP_DST:
+                case TCP_DST_MASKED:
+                    builder.match(Field.TCP_DST, ((TcpPortCriterion) criterion).tcpPort(),
+                                  ((TcpPortCriterion) criterion).mask());
+                    break;
+                case UDP_SRC:
+                case UDP_SRC_MASKED:
+                    builder.match(Field.UDP_SRC, ((UdpPortCriterion) criterion).udpPort(),
+                                  ((UdpPortCriterion) criterion).mask());
+                    break;
+                case UDP_DST:
+                case UDP_DST_MASKED:
+                    builder.match(Field.UDP_DST, ((UdpPortCriterion) criterion).udpPort(),
+                                  ((UdpPortCriterion) criterion).mask());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Checks if some packet is matched by both header spaces.
+     *
+     * @param other the other header space
+     * @return true or false
+     */
+    public boolean overlaps(HeaderSpace other) {
+        if (empty || other.empty) {
+            return false;
+        }
+        for (int i = 0; i < WORDS; i++) {
+            if (((values[i] ^ other.values[i]) & masks[i] & other.masks[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if every packet matched by another header space is matched by
+     * this one.
+     *
+     * @param other the other header space
+     * @return true or false
+     */
+    public boolean contains(HeaderSpace other) {
+        if (other.empty) {
+            return true;
+        }
+        if (empty) {
+            return false;
+        }
+        for (int i = 0; i < WORDS; i++) {
+            // Every bit matched here must be matched there, to the same value
+            if ((masks[i] & ~other.masks[i]) != 0 || ((values[i] ^ other.values[i]) & masks[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the header space of the packets matched by both header spaces.
+     *
+     * @param other the other header space
+     * @return the intersection, empty if they do not overlap
+     */
+    public HeaderSpace intersect(HeaderSpace other) {
+        long[] newValues = new long[WORDS];
+        long[] newMasks = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            newValues[i] = (values[i] & masks[i]) | (other.values[i] & other.masks[i]);
+            newMasks[i] = masks[i] | other.masks[i];
+        }
+        return new HeaderSpace(newValues, newMasks, !overlaps(other));
+    }
+
+    /**
+     * Checks if no packet is matched, because the criteria of the selector
+     * contradict each other.
+     *
+     * @return true or false
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HeaderSpace)) {
+            return false;
+        }
+        HeaderSpace other = (HeaderSpace) o;
+        if (empty || other.empty) {
+            return empty == other.empty;
+        }
+        return Arrays.equals(values, other.values) && Arrays.equals(masks, other.masks);
+    }
+
+    @Override
+    public int hashCode() {
+        return empty ? 0 : 31 * Arrays.hashCode(values) + Arrays.hashCode(masks);
+    }
+
+    /**
+     * Accumulates the criteria of a selector. A field matched by several
+     * criteria is matched by all of them.
+     */
+    private static final class Builder {
+
+        private final long[] values = new long[WORDS];
+        private final long[] masks = new long[WORDS];
+        private boolean empty = false;
+
+        private void match(Field field, long value) {
+            match(field, value, -1L);
+        }
+
+        private void match(Field field, MacAddress mac) {
+            match(field, mac.toLong(), -1L);
+        }
+
+        private void match(Field field, MacAddress mac, MacAddress mask) {
+            match(field, mac.toLong(), mask == null ? -1L : mask.toLong());
+        }
+
+        private void match(Field field, TpPort port, TpPort mask) {
+            match(field, port.toInt(), mask == null ? -1L : mask.toInt());
+        }
+
+        private void match(Field field, Ip4Prefix prefix) {
+            if (prefix == null) {
+                return;
+            }
+            int length = prefix.prefixLength();
+            long mask = length == 0 ? 0 : (-1L << (32 - length));
+            match(field, prefix.address().toInt(), mask);
+        }
+
+        /**
+         * Matches the low bits of a value under a mask, truncated to the
+         * width of the field. The first bit of the field is the most
+         * significant bit of the value.
+         */
+        private void match(Field field, long value, long mask) {
+            long fieldMask = field.width == 64 ? -1L : (1L << field.width) - 1;
+            mask &= fieldMask;
+            value &= mask;
+            for (int bit = 0; bit < field.width; ) {
+                int position = field.offset + bit;
+                int word = position >>> 6;
+                int shift = position & 63;
+                int count = Math.min(64 - shift, field.width - bit);
+                // The bits [bit, bit + count) of the field, counted from its most significant bit
+                int low = field.width - bit - count;
+                long chunkMask = ((count == 64 ? -1L : (1L << count) - 1) & (mask >>> low));
+                long chunkValue = (value >>> low) & chunkMask;
+                int wordShift = 64 - shift - count;
+                long placedMask = chunkMask << wordShift;
+                long placedValue = chunkValue << wordShift;
+                if (((values[word] ^ placedValue) & masks[word] & placedMask) != 0) {
+                    empty = true;
+                }
+                values[word] |= placedValue;
+                masks[word] |= placedMask;
+                bit += count;
+            }
+        }
+
+        private HeaderSpace build() {
+            return new HeaderSpace(values, masks, empty);
+        }
+    }
+}
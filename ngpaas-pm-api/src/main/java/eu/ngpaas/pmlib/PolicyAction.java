@@ -59,5 +59,10 @@ public class PolicyAction implements Comparable<PolicyAction> {
         return Objects.equals(policyValue, that.policyValue) &&
                Objects.equals(policyVariable, that.policyVariable);
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(policyValue, policyVariable);
+    }
 }
 
@@ -0,0 +1,263 @@
+package eu.ngpaas.pmlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Shared JSON readers and writers of the policy framework objects.
+ * ObjectReader and ObjectWriter instances are immutable and thread-safe, so
+ * they are built once, from a single ObjectMapper, and reused by every call.
+ * The serializers of the policy objects are created when this class is
+ * loaded, so the first request does not pay for them.
+ * Unknown properties are ignored when reading.
+ */
+public final class PolicyCodec {
+
+    private static final ObjectMapper MAPPER =
+        new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                          .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private static final ObjectReader POLICY_RULE_READER = MAPPER.readerFor(PolicyRule.class);
+    private static final ObjectReader POLICY_RULES_READER = MAPPER.readerFor(PolicyRules.class);
+    private static final ObjectReader SIMPLE_RESPONSE_READER = MAPPER.readerFor(SimpleResponse.class);
+    private static final ObjectReader FORWARDING_OBJECTIVE_LIST_READER =
+        MAPPER.readerFor(ForwardingObjectiveList.class);
+    private static final ObjectReader POLICY_TYPE_SCHEMA_READER = MAPPER.readerFor(PolicyTypeSchema.class);
+    private static final ObjectReader TREE_READER = MAPPER.reader();
+
+    private static final ObjectWriter POLICY_RULE_WRITER = MAPPER.writerFor(PolicyRule.class);
+    private static final ObjectWriter POLICY_RULES_WRITER = MAPPER.writerFor(PolicyRules.class);
+    private static final ObjectWriter SIMPLE_RESPONSE_WRITER = MAPPER.writerFor(SimpleResponse.class);
+    /**
+     * Writes policy rules to a generator shared by many of them, which is flushed only when full
+     */
+    private static final ObjectWriter POLICY_RULE_ELEMENT_WRITER =
+        POLICY_RULE_WRITER.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    static {
+        try {
+            POLICY_RULE_WRITER.writeValueAsBytes(new PolicyRule());
+            POLICY_RULES_WRITER.writeValueAsBytes(new PolicyRules());
+            SIMPLE_RESPONSE_WRITER.writeValueAsBytes(new SimpleResponse());
+            POLICY_RULES_READER.readValue("{\"policies\":[{\"conditions\":[[{}]],\"actions\":[{}]}]}");
+        } catch (IOException e) {
+            // Warming up is only an optimization
+        }
+    }
+
+    private PolicyCodec() {
+    }
+
+    /**
+     * Parses a policy rule.
+     *
+     * @param json the JSON string
+     * @return the policy rule
+     * @throws IOException if the JSON is not a valid policy rule
+     */
+    public static PolicyRule readPolicyRule(String json) throws IOException {
+        return POLICY_RULE_READER.readValue(json);
+    }
+
+    /**
+     * Parses a policy rule from its UTF-8 encoded JSON form.
+     *
+     * @param json the JSON bytes
+     * @return the policy rule
+     * @throws IOException if the JSON is not a valid policy rule
+     */
+    public static PolicyRule readPolicyRule(byte[] json) throws IOException {
+        return POLICY_RULE_READER.readValue(json);
+    }
+
+    /**
+     * Parses a list of policy rules.
+     *
+     * @param json the JSON string
+     * @return the policy rules
+     * @throws IOException if the JSON is not a valid list of policy rules
+     */
+    public static PolicyRules readPolicyRules(String json) throws IOException {
+        return POLICY_RULES_READER.readValue(json);
+    }
+
+    /**
+     * Parses a list of policy rules.
+     *
+     * @param in the JSON stream
+     * @return the policy rules
+     * @throws IOException if the JSON is not a valid list of policy rules
+     */
+    public static PolicyRules readPolicyRules(InputStream in) throws IOException {
+        return POLICY_RULES_READER.readValue(in);
+    }
+
+    /**
+     * Parses a sequence of policy rules separated by whitespace, such as
+     * newline-delimited JSON, one rule at a time.
+     *
+     * @param in the JSON stream
+     * @return an iterator over the policy rules, parsed as they are read
+     * @throws IOException if the stream cannot be read
+     */
+    public static MappingIterator<PolicyRule> readPolicyRuleStream(InputStream in) throws IOException {
+        return POLICY_RULE_READER.readValues(in);
+    }
+
+    /**
+     * Parses a SimpleResponse.
+     *
+     * @param json the JSON string
+     * @return the SimpleResponse
+     * @throws IOException if the JSON is not a valid SimpleResponse
+     */
+    public static SimpleResponse readSimpleResponse(String json) throws IOException {
+        return SIMPLE_RESPONSE_READER.readValue(json);
+    }
+
+    /**
+     * Parses a list of forwarding objectives.
+     *
+     * @param json the JSON string
+     * @return the forwarding objective list
+     * @throws IOException if the JSON is not a valid forwarding objective list
+     */
+    public static ForwardingObjectiveList readForwardingObjectiveList(String json) throws IOException {
+        return FORWARDING_OBJECTIVE_LIST_READER.readValue(json);
+    }
+
+    /**
+     * Parses a policy type schema.
+     *
+     * @param json the JSON string
+     * @return the policy type schema
+     * @throws IOException if the JSON is not a valid policy type schema
+     */
+    public static PolicyTypeSchema readPolicyTypeSchema(String json) throws IOException {
+        return POLICY_TYPE_SCHEMA_READER.readValue(json);
+    }
+
+    /**
+     * Parses a JSON string into a tree.
+     *
+     * @param json the JSON string
+     * @return the root node
+     * @throws IOException if the string is not valid JSON
+     */
+    public static JsonNode readTree(String json) throws IOException {
+        return TREE_READER.readTree(json);
+    }
+
+    /**
+     * Serializes a policy rule.
+     *
+     * @param pr the policy rule
+     * @return the JSON string
+     * @throws JsonProcessingException if the policy rule cannot be serialized
+     */
+    public static String toJson(PolicyRule pr) throws JsonProcessingException {
+        return POLICY_RULE_WRITER.writeValueAsString(pr);
+    }
+
+    /**
+     * Serializes a policy rule to UTF-8.
+     *
+     * @param pr the policy rule
+     * @return the JSON bytes
+     * @throws JsonProcessingException if the policy rule cannot be serialized
+     */
+    public static byte[] toJsonBytes(PolicyRule pr) throws JsonProcessingException {
+        return POLICY_RULE_WRITER.writeValueAsBytes(pr);
+    }
+
+    /**
+     * Serializes a list of policy rules.
+     *
+     * @param prs the policy rules
+     * @return the JSON string
+     * @throws JsonProcessingException if the policy rules cannot be serialized
+     */
+    public static String toJson(PolicyRules prs) throws JsonProcessingException {
+        return POLICY_RULES_WRITER.writeValueAsString(prs);
+    }
+
+    /**
+     * Serializes a SimpleResponse.
+     *
+     * @param sr the SimpleResponse
+     * @return the JSON string
+     * @throws JsonProcessingException if the SimpleResponse cannot be serialized
+     */
+    public static String toJson(SimpleResponse sr) throws JsonProcessingException {
+        return SIMPLE_RESPONSE_WRITER.writeValueAsString(sr);
+    }
+
+    /**
+     * Writes a policy rule to a stream, without building an intermediate string.
+     *
+     * @param out the output stream; it is not closed
+     * @param pr  the policy rule
+     * @throws IOException if the policy rule cannot be written
+     */
+    public static void write(OutputStream out, PolicyRule pr) throws IOException {
+        POLICY_RULE_WRITER.writeValue(out, pr);
+    }
+
+    /**
+     * Writes a list of policy rules to a stream, without building an
+     * intermediate string.
+     *
+     * @param out the output stream; it is not closed
+     * @param prs the policy rules
+     * @throws IOException if the policy rules cannot be written
+     */
+    public static void write(OutputStream out, PolicyRules prs) throws IOException {
+        POLICY_RULES_WRITER.writeValue(out, prs);
+    }
+
+    /**
+     * Writes a SimpleResponse to a stream, without building an intermediate
+     * string.
+     *
+     * @param out the output stream; it is not closed
+     * @param sr  the SimpleResponse
+     * @throws IOException if the SimpleResponse cannot be written
+     */
+    public static void write(OutputStream out, SimpleResponse sr) throws IOException {
+        SIMPLE_RESPONSE_WRITER.writeValue(out, sr);
+    }
+
+    /**
+     * Creates a generator to write a JSON document piece by piece, e.g. a
+     * large list of policy rules one rule at a time.
+     *
+     * @param out the output stream; it is not closed when the generator is closed
+     * @return the generator
+     * @throws IOException if the generator cannot be created
+     */
+    public static JsonGenerator newGenerator(OutputStream out) throws IOException {
+        return MAPPER.getFactory().createGenerator(out);
+    }
+
+    /**
+     * Writes a policy rule as the next value of a generator.
+     *
+     * @param gen the generator
+     * @param pr  the policy rule
+     * @throws IOException if the policy rule cannot be written
+     */
+    public static void write(JsonGenerator gen, PolicyRule pr) throws IOException {
+        POLICY_RULE_ELEMENT_WRITER.writeValue(gen, pr);
+    }
+}
@@ -62,5 +62,10 @@ public class PolicyCondition implements Comparable<PolicyCondition> {
         return Objects.equals(policyValue, that.policyValue) &&
                Objects.equals(policyVariable, that.policyVariable);
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(policyValue, policyVariable);
+    }
 }
 
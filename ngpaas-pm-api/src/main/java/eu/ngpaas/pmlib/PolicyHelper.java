@@ -3,10 +3,6 @@ package eu.ngpaas.pmlib;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.regex.Pattern;
-
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Helper class with useful methods to formally validate a policy
@@ -20,17 +16,33 @@ public class PolicyHelper {
      * @return parsed PolicyRule
      */
     public static PolicyRule parsePolicyRule(String body) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         PolicyRule policyRule = null;
         try {
-            policyRule = mapper.readValue(body, PolicyRule.class);
+            policyRule = PolicyCodec.readPolicyRule(body);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return policyRule;
     }
 
+    /**
+     * Validates that a policy rule has a priority higher than 0, a type, a
+     * form, and non-empty conditions and actions
+     *
+     * @param pr a policy rule
+     * @return a SimpleResponse object with the success/fail message
+     */
+    public static SimpleResponse validateStructure(PolicyRule pr) {
+        if (pr.getPriority() < 1 || pr.getPolicyConditions().isEmpty()
+            || pr.getPolicyActions().isEmpty() || pr.getType() == null
+            || pr.getForm() == null) {
+            return new SimpleResponse("Invalid policy provided. You MUST" +
+                                      " provide a policy with a priority higher than 0, of a valid" +
+                                      " type and form, with non-empty conditions and actions", false);
+        }
+        return new SimpleResponse("The policy is well-formed", true);
+    }
+
     /**
      * Validates the PolicyVariables of a policy rule
      *
@@ -105,8 +117,7 @@ public class PolicyHelper {
      * @return true or false
      */
     private static Boolean isIPV4address(String value) {
-        Pattern p = Pattern.compile("^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$");
-        return p.matcher(value).matches();
+        return PolicyValues.isIpv4(value);
     }
 
     /**
@@ -116,8 +127,7 @@ public class PolicyHelper {
      * @return true or false
      */
     private static Boolean isMACaddress(String value) {
-        Pattern p = Pattern.compile("^([a-fA-F0-9]{2}[:-]){5}[a-fA-F0-9]{2}$");
-        return p.matcher(value).matches();
+        return PolicyValues.isMac(value);
     }
 
     /**
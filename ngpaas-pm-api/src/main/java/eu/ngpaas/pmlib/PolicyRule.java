@@ -1,12 +1,14 @@
 package eu.ngpaas.pmlib;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +26,17 @@ import org.slf4j.LoggerFactory;
  */
 public class PolicyRule implements Comparable<PolicyRule> {
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * Separator mixed in after each string, outside of the range of a char
+     */
+    private static final int END_OF_STRING = 0x10000;
+    /**
+     * Separator mixed in before each clause
+     */
+    private static final int START_OF_CLAUSE = 0x10001;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
     private int priority = 0;
     private int id = 0;
@@ -39,22 +52,20 @@ public class PolicyRule implements Comparable<PolicyRule> {
     @JsonIgnore
     private Boolean deactivated = false;
 
-    public PolicyRule() {
-    }
+    @JsonIgnore
+    private volatile CompiledConditions compiledConditions;
 
-    private static void cnf2dnf(CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf,
-                                CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> dnf,
-                                CopyOnWriteArrayList<PolicyCondition> current_clause, int j) {
-        if (j == cnf.size()) {
-            dnf.add(current_clause);
-        } else {
-            for (int i = 0; i < cnf.get(j).size(); i++) {
-                CopyOnWriteArrayList<PolicyCondition> new_current_clause =
-                    (CopyOnWriteArrayList<PolicyCondition>) current_clause.clone();
-                new_current_clause.add(cnf.get(j).get(i));
-                cnf2dnf(cnf, dnf, new_current_clause, j + 1);
-            }
-        }
+    /**
+     * True if the conditions and actions are sorted and their fingerprints are up to date
+     */
+    @JsonIgnore
+    private volatile boolean canonical = false;
+    @JsonIgnore
+    private volatile long conditionsFingerprint;
+    @JsonIgnore
+    private volatile long actionsFingerprint;
+
+    public PolicyRule() {
     }
 
     /**
@@ -182,6 +193,34 @@ public class PolicyRule implements Comparable<PolicyRule> {
      */
     public void setPolicyConditions(CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> policyConditions) {
         this.policyConditions = policyConditions;
+        this.compiledConditions = null;
+        this.canonical = false;
+    }
+
+    /**
+     * Returns the compiled form of the policy conditions. It is computed on
+     * first use if compileConditions has not been called.
+     *
+     * @return compiled policy conditions
+     */
+    @JsonIgnore
+    public CompiledConditions getCompiledConditions() {
+        CompiledConditions compiled = compiledConditions;
+        if (compiled == null) {
+            compiled = compileConditions();
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles the policy conditions. Must be called again if the conditions
+     * are modified in place.
+     *
+     * @return compiled policy conditions
+     */
+    public CompiledConditions compileConditions() {
+        compiledConditions = CompiledConditions.compile(policyConditions);
+        return compiledConditions;
     }
 
     /**
@@ -200,6 +239,7 @@ public class PolicyRule implements Comparable<PolicyRule> {
      */
     public void setPolicyActions(CopyOnWriteArrayList<PolicyAction> policyActions) {
         this.policyActions = policyActions;
+        this.canonical = false;
     }
 
     /**
@@ -209,6 +249,86 @@ public class PolicyRule implements Comparable<PolicyRule> {
      */
     public void addPolicyAction(PolicyAction policyAction) {
         this.policyActions.add(policyAction);
+        this.canonical = false;
+    }
+
+    /**
+     * Puts the policy in its canonical form: sorts the conditions and the
+     * actions, compiles the conditions and computes the fingerprints. Must be
+     * called again if the conditions or actions are modified in place.
+     */
+    public void canonicalize() {
+        sortConditions();
+        Collections.sort(policyActions);
+        compileConditions();
+        conditionsFingerprint = fingerprintConditions(policyConditions);
+        actionsFingerprint = fingerprintActions(policyActions);
+        canonical = true;
+    }
+
+    /**
+     * Returns whether the policy is in its canonical form
+     *
+     * @return true or false
+     */
+    @JsonIgnore
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the canonical conditions. Policies with
+     * equal conditions have the same fingerprint. The policy is not modified:
+     * if it is not in its canonical form, the fingerprint is computed on a
+     * sorted copy of the conditions.
+     *
+     * @return the fingerprint of the conditions
+     */
+    @JsonIgnore
+    public long getConditionsFingerprint() {
+        if (canonical) {
+            return conditionsFingerprint;
+        }
+        List<List<PolicyCondition>> sorted = new ArrayList<>();
+        for (CopyOnWriteArrayList<PolicyCondition> clause : policyConditions) {
+            List<PolicyCondition> sortedClause = new ArrayList<>(clause);
+            Collections.sort(sortedClause);
+            sorted.add(sortedClause);
+        }
+        sorted.sort((c1, c2) -> c1.get(0).compareTo(c2.get(0)));
+        return fingerprintConditions(sorted);
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the canonical actions. Policies with
+     * equal actions have the same fingerprint. The policy is not modified:
+     * if it is not in its canonical form, the fingerprint is computed on a
+     * sorted copy of the actions.
+     *
+     * @return the fingerprint of the actions
+     */
+    @JsonIgnore
+    public long getActionsFingerprint() {
+        if (canonical) {
+            return actionsFingerprint;
+        }
+        List<PolicyAction> sorted = new ArrayList<>(policyActions);
+        Collections.sort(sorted);
+        return fingerprintActions(sorted);
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the type, priority, conditions and
+     * actions of the policy. Equal policies have the same fingerprint.
+     *
+     * @return the fingerprint of the policy
+     */
+    @JsonIgnore
+    public long getFingerprint() {
+        long h = mix(FNV_OFFSET_BASIS, type == null ? "" : type);
+        h = (h ^ priority) * FNV_PRIME;
+        h = (h ^ getConditionsFingerprint()) * FNV_PRIME;
+        return (h ^ getActionsFingerprint()) * FNV_PRIME;
     }
 
     @Override
@@ -233,6 +353,11 @@ public class PolicyRule implements Comparable<PolicyRule> {
                && this.equalPolicyActions(that) && (this.getPriority() == that.getPriority());
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, priority);
+    }
+
     /**
      * Converts the policy conditions in cnf to dnf
      *
@@ -241,12 +366,22 @@ public class PolicyRule implements Comparable<PolicyRule> {
      */
     public CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf2dnf(
         CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf) {
-        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> dnf = new CopyOnWriteArrayList<>();
-        CopyOnWriteArrayList<PolicyCondition> current_clause = new CopyOnWriteArrayList<>();
-        int j = 0;
-        cnf2dnf(cnf, dnf, current_clause, j);
-        return dnf;
+        return cnf2dnf(cnf, Integer.MAX_VALUE);
+    }
 
+    /**
+     * Converts the policy conditions in cnf to dnf. Clauses that can never be
+     * met (same variable with different values) and clauses subsumed by
+     * another clause are dropped.
+     *
+     * @param cnf        conditions in cnf
+     * @param maxClauses maximum number of clauses of the dnf
+     * @return the conditions in dnf; empty if they can never be met
+     * @throws IllegalArgumentException if the dnf has more than maxClauses clauses
+     */
+    public CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf2dnf(
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf, int maxClauses) {
+        return DnfExpander.expand(cnf, maxClauses);
     }
 
     /**
@@ -284,7 +419,9 @@ public class PolicyRule implements Comparable<PolicyRule> {
             return false;
         }
 
-        this.sortConditions();
+        if (!canonical) {
+            this.sortConditions();
+        }
 
         int i = 0;
         for (CopyOnWriteArrayList<PolicyCondition> clause : this.getPolicyConditions()) {
@@ -310,7 +447,9 @@ public class PolicyRule implements Comparable<PolicyRule> {
      * @return true or false
      */
     public Boolean equalPolicyActions(PolicyRule pr) {
-        Collections.sort(pr.getPolicyActions());
+        if (!pr.canonical) {
+            Collections.sort(pr.getPolicyActions());
+        }
 
         int i = 0;
         for (PolicyAction pa : this.getPolicyActions()) {
@@ -330,12 +469,10 @@ public class PolicyRule implements Comparable<PolicyRule> {
      */
     public String toJSONString() {
 
-        ObjectMapper mapper = new ObjectMapper();
-
         String json = null;
 
         try {
-            json = mapper.writeValueAsString(this);
+            json = PolicyCodec.toJson(this);
         } catch (JsonProcessingException e) {
 
             e.printStackTrace();
@@ -344,4 +481,33 @@ public class PolicyRule implements Comparable<PolicyRule> {
         return json;
     }
 
+    private static long fingerprintConditions(List<? extends List<PolicyCondition>> conditions) {
+        long h = FNV_OFFSET_BASIS;
+        for (List<PolicyCondition> clause : conditions) {
+            h = mix(h, START_OF_CLAUSE);
+            for (PolicyCondition pc : clause) {
+                h = mix(mix(h, pc.getPolicyVariable()), pc.getPolicyValue());
+            }
+        }
+        return h;
+    }
+
+    private static long fingerprintActions(List<PolicyAction> actions) {
+        long h = FNV_OFFSET_BASIS;
+        for (PolicyAction pa : actions) {
+            h = mix(mix(h, pa.getPolicyVariable()), pa.getPolicyValue());
+        }
+        return h;
+    }
+
+    private static long mix(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return mix(h, END_OF_STRING);
+    }
+
+    private static long mix(long h, int separator) {
+        return (h ^ separator) * FNV_PRIME;
+    }
 }
@@ -5,7 +5,6 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,12 +75,10 @@ public class PolicyRules {
      */
     public String toJSONString() {
 
-        ObjectMapper mapper = new ObjectMapper();
-
         String json = null;
 
         try {
-            json = mapper.writeValueAsString(this);
+            json = PolicyCodec.toJson(this);
         } catch (JsonProcessingException e) {
 
             e.printStackTrace();
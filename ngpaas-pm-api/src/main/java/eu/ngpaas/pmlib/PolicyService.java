@@ -1,10 +1,38 @@
 package eu.ngpaas.pmlib;
 
+import java.util.List;
+
 /**
  * Represents the contract to be implemented by each policy type
  */
 public interface PolicyService {
 
+    /**
+     * Returns the policy type implemented by this service. Policy type apps
+     * that register their PolicyService as an OSGi service and return their
+     * type here are called by the policy manager directly, in the same JVM,
+     * instead of through their REST endpoints. The policy rules passed to
+     * such a service are the instances held by the manager and must not be
+     * modified. By default the type is unknown and the REST endpoints are used.
+     *
+     * @return the policy type, or null
+     */
+    default String getPolicyType() {
+        return null;
+    }
+
+    /**
+     * Returns the schema of the policies of this policy type. If the policy
+     * type is served in-process and returns a schema, the policy manager
+     * performs the formal validation of its policies with the schema instead
+     * of calling formalValidation.
+     *
+     * @return the schema, or null
+     */
+    default PolicyTypeSchema getSchema() {
+        return null;
+    }
+
     /**
      * Analyzes the structure of a policy rule
      *
@@ -44,4 +72,29 @@ public interface PolicyService {
      * @param pr a policy rule
      */
     void remove(PolicyRule pr);
+
+    /**
+     * Enforces a batch of policy rules in the underlying network. Policy
+     * types that can install many rules at once should override it; by
+     * default each rule is enforced individually.
+     *
+     * @param prs the policy rules, in the order they have to be enforced
+     */
+    default void enforceAll(List<PolicyRule> prs) {
+        for (PolicyRule pr : prs) {
+            enforce(pr);
+        }
+    }
+
+    /**
+     * Removes a batch of policy rules from the underlying network. By
+     * default each rule is removed individually.
+     *
+     * @param prs the policy rules, in the order they have to be removed
+     */
+    default void removeAll(List<PolicyRule> prs) {
+        for (PolicyRule pr : prs) {
+            remove(pr);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package eu.ngpaas.pmlib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Declares the policies a policy type accepts: the condition and action
+ * variables it supports, the type or the enumeration of valid values of
+ * each variable, and which variables must or must not be specified
+ * together. The policy manager compiles the schema into a PolicyValidator
+ * and validates the policies of the type with it, without calling the
+ * formal validation of the policy type app.
+ * <p>
+ * Relations are keyed by variable. A "must coexist" entry lists
+ * alternatives: a clause (or the action list) with the variable must also
+ * contain every variable of at least one alternative. A "must not coexist"
+ * entry lists the variables that cannot appear with it.
+ */
+public class PolicyTypeSchema {
+
+    @JsonProperty("type")
+    private String type;
+
+    @JsonProperty("conditions")
+    private Map<String, VariableSchema> conditions = new HashMap<>();
+
+    @JsonProperty("actions")
+    private Map<String, VariableSchema> actions = new HashMap<>();
+
+    @JsonProperty("conditionsMustCoexist")
+    private Map<String, List<List<String>>> conditionsMustCoexist = new HashMap<>();
+
+    @JsonProperty("conditionsMustNotCoexist")
+    private Map<String, List<String>> conditionsMustNotCoexist = new HashMap<>();
+
+    @JsonProperty("actionsMustCoexist")
+    private Map<String, List<List<String>>> actionsMustCoexist = new HashMap<>();
+
+    @JsonProperty("actionsMustNotCoexist")
+    private Map<String, List<String>> actionsMustNotCoexist = new HashMap<>();
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Map<String, VariableSchema> getConditions() {
+        return conditions;
+    }
+
+    public void setConditions(Map<String, VariableSchema> conditions) {
+        this.conditions = conditions;
+    }
+
+    public Map<String, VariableSchema> getActions() {
+        return actions;
+    }
+
+    public void setActions(Map<String, VariableSchema> actions) {
+        this.actions = actions;
+    }
+
+    public Map<String, List<List<String>>> getConditionsMustCoexist() {
+        return conditionsMustCoexist;
+    }
+
+    public void setConditionsMustCoexist(Map<String, List<List<String>>> conditionsMustCoexist) {
+        this.conditionsMustCoexist = conditionsMustCoexist;
+    }
+
+    public Map<String, List<String>> getConditionsMustNotCoexist() {
+        return conditionsMustNotCoexist;
+    }
+
+    public void setConditionsMustNotCoexist(Map<String, List<String>> conditionsMustNotCoexist) {
+        this.conditionsMustNotCoexist = conditionsMustNotCoexist;
+    }
+
+    public Map<String, List<List<String>>> getActionsMustCoexist() {
+        return actionsMustCoexist;
+    }
+
+    public void setActionsMustCoexist(Map<String, List<List<String>>> actionsMustCoexist) {
+        this.actionsMustCoexist = actionsMustCoexist;
+    }
+
+    public Map<String, List<String>> getActionsMustNotCoexist() {
+        return actionsMustNotCoexist;
+    }
+
+    public void setActionsMustNotCoexist(Map<String, List<String>> actionsMustNotCoexist) {
+        this.actionsMustNotCoexist = actionsMustNotCoexist;
+    }
+
+    /**
+     * Adds a condition variable.
+     *
+     * @param variable the variable
+     * @param type     the type of its values, or null
+     * @param values   the valid values, or null for any value
+     * @return this schema
+     */
+    public PolicyTypeSchema addCondition(String variable, PolicyVariableType type, List<String> values) {
+        conditions.put(variable, new VariableSchema(type, values));
+        return this;
+    }
+
+    /**
+     * Adds an action variable.
+     *
+     * @param variable the variable
+     * @param type     the type of its values, or null
+     * @param values   the valid values, or null for any value
+     * @return this schema
+     */
+    public PolicyTypeSchema addAction(String variable, PolicyVariableType type, List<String> values) {
+        actions.put(variable, new VariableSchema(type, values));
+        return this;
+    }
+
+    /**
+     * Compiles the schema into a validator.
+     *
+     * @return the validator
+     * @throws IllegalArgumentException if a relation refers to an undeclared variable
+     */
+    public PolicyValidator compile() {
+        return new PolicyValidator(this);
+    }
+
+    /**
+     * Declares the values of a policy variable. A null type or list of
+     * values does not restrict the values.
+     */
+    public static class VariableSchema {
+
+        @JsonProperty("type")
+        private PolicyVariableType type;
+
+        @JsonProperty("values")
+        private List<String> values;
+
+        public VariableSchema() {
+        }
+
+        public VariableSchema(PolicyVariableType type, List<String> values) {
+            this.type = type;
+            this.values = values == null ? null : new ArrayList<>(values);
+        }
+
+        public PolicyVariableType getType() {
+            return type;
+        }
+
+        public void setType(PolicyVariableType type) {
+            this.type = type;
+        }
+
+        public List<String> getValues() {
+            return values;
+        }
+
+        public void setValues(List<String> values) {
+            this.values = values;
+        }
+    }
+}
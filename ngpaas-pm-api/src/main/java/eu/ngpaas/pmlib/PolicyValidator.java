@@ -0,0 +1,234 @@
+package eu.ngpaas.pmlib;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The compiled form of a PolicyTypeSchema. Variables are looked up in hash
+ * maps, enumerations in hash sets, and value formats are checked by the
+ * allocation-free parsers of PolicyValues. Instances are immutable and can
+ * be shared between threads. The messages are the ones of the equivalent
+ * PolicyHelper checks.
+ */
+public final class PolicyValidator {
+
+    private final String type;
+    private final Map<String, ValueCheck> conditionVariables;
+    private final Map<String, ValueCheck> actionVariables;
+    private final Map<String, String[][]> conditionsMustCoexist;
+    private final Map<String, String[]> conditionsMustNotCoexist;
+    private final Map<String, String[][]> actionsMustCoexist;
+    private final Map<String, String[]> actionsMustNotCoexist;
+
+    PolicyValidator(PolicyTypeSchema schema) {
+        this.type = schema.getType();
+        this.conditionVariables = compileVariables(schema.getConditions());
+        this.actionVariables = compileVariables(schema.getActions());
+        this.conditionsMustCoexist = compileMustCoexist(schema.getConditionsMustCoexist(), conditionVariables,
+                                                        "condition");
+        this.conditionsMustNotCoexist = compileMustNotCoexist(schema.getConditionsMustNotCoexist(),
+                                                              conditionVariables, "condition");
+        this.actionsMustCoexist = compileMustCoexist(schema.getActionsMustCoexist(), actionVariables, "action");
+        this.actionsMustNotCoexist = compileMustNotCoexist(schema.getActionsMustNotCoexist(), actionVariables,
+                                                           "action");
+    }
+
+    /**
+     * Returns the policy type of the schema.
+     *
+     * @return the policy type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Validates the variables, the values and the relations between
+     * variables of the conditions and the actions of a policy rule.
+     *
+     * @param pr a policy rule, with its conditions in DNF
+     * @return a SimpleResponse object with the success/fail message
+     */
+    public SimpleResponse validate(PolicyRule pr) {
+        for (CopyOnWriteArrayList<PolicyCondition> clause : pr.getPolicyConditions()) {
+            String[] variables = new String[clause.size()];
+            int i = 0;
+            for (PolicyCondition pc : clause) {
+                ValueCheck check = conditionVariables.get(pc.getPolicyVariable());
+                if (check == null) {
+                    return new SimpleResponse("Formal error: '" +
+                                              pc.getPolicyVariable() + "' is not a valid condition variable.", false);
+                }
+                if (!check.hasValidFormat(pc.getPolicyValue())) {
+                    return new SimpleResponse("Policy Condition value '" + pc.getPolicyValue() +
+                                              "' does not have a valid format.", false);
+                }
+                if (!check.isValidValue(pc.getPolicyValue())) {
+                    return new SimpleResponse("Policy Variable '" +
+                                              pc.getPolicyVariable() + "' does not have a valid value.", false);
+                }
+                variables[i++] = pc.getPolicyVariable();
+            }
+            SimpleResponse sr = validateRelations(variables, conditionsMustCoexist, conditionsMustNotCoexist,
+                                                  "condition");
+            if (!sr.isSuccess()) {
+                return sr;
+            }
+        }
+
+        String[] variables = new String[pr.getPolicyActions().size()];
+        int i = 0;
+        for (PolicyAction pa : pr.getPolicyActions()) {
+            ValueCheck check = actionVariables.get(pa.getPolicyVariable());
+            if (check == null) {
+                return new SimpleResponse("Formal error: '" + pa.getPolicyVariable() +
+                                          "' is not a valid action variable.", false);
+            }
+            if (!check.hasValidFormat(pa.getPolicyValue())) {
+                return new SimpleResponse("Policy Action value '" +
+                                          pa.getPolicyValue() + "' does not have a valid format.", false);
+            }
+            if (!check.isValidValue(pa.getPolicyValue())) {
+                return new SimpleResponse("Policy Variable '"
+                                          + pa.getPolicyVariable() + "' does not have a valid value.", false);
+            }
+            variables[i++] = pa.getPolicyVariable();
+        }
+        SimpleResponse sr = validateRelations(variables, actionsMustCoexist, actionsMustNotCoexist, "action");
+        if (!sr.isSuccess()) {
+            return sr;
+        }
+        return new SimpleResponse("Policy formally validated", true);
+    }
+
+    /**
+     * Validates the relations between the variables of a clause, or of the
+     * actions. The lists are short, so they are scanned linearly.
+     */
+    private static SimpleResponse validateRelations(String[] variables, Map<String, String[][]> mustCoexist,
+                                                    Map<String, String[]> mustNotCoexist, String kind) {
+        for (String variable : variables) {
+            String[][] alternatives = mustCoexist.get(variable);
+            if (alternatives != null) {
+                boolean fulfilled = false;
+                for (String[] required : alternatives) {
+                    if (containsAll(variables, required)) {
+                        fulfilled = true;
+                        break;
+                    }
+                }
+                if (!fulfilled) {
+                    return new SimpleResponse("Not all the " + kind + " relations of the policy " + kind + " '" +
+                                              variable + "' are fulfilled.", false);
+                }
+            }
+            String[] incompatible = mustNotCoexist.get(variable);
+            if (incompatible != null) {
+                for (String other : incompatible) {
+                    if (contains(variables, other)) {
+                        return new SimpleResponse("Some " + kind + "s are incompatible", false);
+                    }
+                }
+            }
+        }
+        return new SimpleResponse("Valid " + kind + "s relations", true);
+    }
+
+    private static boolean containsAll(String[] variables, String[] required) {
+        for (String variable : required) {
+            if (!contains(variables, variable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(String[] variables, String variable) {
+        for (String v : variables) {
+            if (v.equals(variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, ValueCheck> compileVariables(Map<String, PolicyTypeSchema.VariableSchema> schemas) {
+        Map<String, ValueCheck> checks = new HashMap<>();
+        if (schemas != null) {
+            for (Map.Entry<String, PolicyTypeSchema.VariableSchema> entry : schemas.entrySet()) {
+                PolicyTypeSchema.VariableSchema schema = entry.getValue();
+                checks.put(entry.getKey(), schema == null ? new ValueCheck(null, null) :
+                    new ValueCheck(schema.getType(), schema.getValues()));
+            }
+        }
+        return checks;
+    }
+
+    private static Map<String, String[][]> compileMustCoexist(Map<String, List<List<String>>> relations,
+                                                              Map<String, ValueCheck> declared, String kind) {
+        Map<String, String[][]> compiled = new HashMap<>();
+        if (relations != null) {
+            for (Map.Entry<String, List<List<String>>> entry : relations.entrySet()) {
+                checkDeclared(entry.getKey(), declared, kind);
+                String[][] alternatives = new String[entry.getValue().size()][];
+                int i = 0;
+                for (List<String> alternative : entry.getValue()) {
+                    for (String variable : alternative) {
+                        checkDeclared(variable, declared, kind);
+                    }
+                    alternatives[i++] = alternative.toArray(new String[0]);
+                }
+                compiled.put(entry.getKey(), alternatives);
+            }
+        }
+        return compiled;
+    }
+
+    private static Map<String, String[]> compileMustNotCoexist(Map<String, List<String>> relations,
+                                                               Map<String, ValueCheck> declared, String kind) {
+        Map<String, String[]> compiled = new HashMap<>();
+        if (relations != null) {
+            for (Map.Entry<String, List<String>> entry : relations.entrySet()) {
+                checkDeclared(entry.getKey(), declared, kind);
+                for (String variable : entry.getValue()) {
+                    checkDeclared(variable, declared, kind);
+                }
+                compiled.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+            }
+        }
+        return compiled;
+    }
+
+    private static void checkDeclared(String variable, Map<String, ValueCheck> declared, String kind) {
+        if (!declared.containsKey(variable)) {
+            throw new IllegalArgumentException("The relations of the schema refer to the undeclared " + kind +
+                                               " variable '" + variable + "'.");
+        }
+    }
+
+    /**
+     * The checks of the values of a single variable.
+     */
+    private static final class ValueCheck {
+
+        private final PolicyVariableType type;
+        private final Set<String> values;
+
+        private ValueCheck(PolicyVariableType type, List<String> values) {
+            this.type = type;
+            this.values = values == null ? null : new HashSet<>(values);
+        }
+
+        private boolean hasValidFormat(String value) {
+            return type == null || PolicyValues.matches(type, value);
+        }
+
+        private boolean isValidValue(String value) {
+            return values == null || values.contains(value);
+        }
+    }
+}
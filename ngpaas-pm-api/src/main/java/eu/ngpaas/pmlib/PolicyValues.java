@@ -0,0 +1,115 @@
+package eu.ngpaas.pmlib;
+
+/**
+ * Checks the format of the values of policy variables. The checks scan the
+ * characters of the value once and allocate nothing.
+ */
+public final class PolicyValues {
+
+    private PolicyValues() {
+    }
+
+    /**
+     * Checks if a value has the format of a type of policy variable.
+     *
+     * @param type  the type of the variable
+     * @param value the value
+     * @return true or false
+     */
+    public static boolean matches(PolicyVariableType type, String value) {
+        switch (type) {
+            case IPV4:
+                return isIpv4(value);
+            case MAC:
+                return isMac(value);
+            case PORT:
+                return isPort(value);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks if a value is an IPv4 address in dotted decimal notation: four
+     * numbers from 0 to 255 of up to three digits each (e.g. 10.0.0.1).
+     *
+     * @param value the value
+     * @return true or false
+     */
+    public static boolean isIpv4(String value) {
+        int length = value.length();
+        int i = 0;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (i >= length || value.charAt(i) != '.') {
+                    return false;
+                }
+                i++;
+            }
+            int start = i;
+            int number = 0;
+            while (i < length && i - start < 3 && isDigit(value.charAt(i))) {
+                number = number * 10 + value.charAt(i) - '0';
+                i++;
+            }
+            if (i == start || number > 255) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    /**
+     * Checks if a value is a MAC address: six pairs of hexadecimal digits
+     * separated by ':' or '-' (e.g. 00:11:22:33:44:55).
+     *
+     * @param value the value
+     * @return true or false
+     */
+    public static boolean isMac(String value) {
+        if (value.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            char c = value.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') {
+                    return false;
+                }
+            } else if (!isHexDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a value is a transport port: a decimal number from 0 to 65535.
+     *
+     * @param value the value
+     * @return true or false
+     */
+    public static boolean isPort(String value) {
+        int length = value.length();
+        if (length == 0 || length > 5) {
+            return false;
+        }
+        int number = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                return false;
+            }
+            number = number * 10 + c - '0';
+        }
+        return number < 65536;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
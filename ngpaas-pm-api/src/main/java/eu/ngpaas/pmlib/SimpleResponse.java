@@ -7,7 +7,6 @@ import java.util.List;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
@@ -219,12 +218,10 @@ public class SimpleResponse {
      */
     public String toJSON() {
 
-        ObjectMapper mapper = new ObjectMapper();
-
         String json = null;
 
         try {
-            json = mapper.writeValueAsString(this);
+            json = PolicyCodec.toJson(this);
 
         } catch (JsonProcessingException e) {
 
@@ -0,0 +1,116 @@
+package eu.ngpaas.pmlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the expansion of conditions in CNF to DNF: the clauses that can
+ * never be met and the subsumed ones are dropped, and the maximum number of
+ * clauses counts distinct clauses only and is enforced before the
+ * expansion grows any further.
+ */
+public class DnfExpanderTest {
+
+    @Test
+    public void distributesTheClauses() {
+        assertEquals(Arrays.asList("a=1 b=1", "a=2 b=1"),
+                     expand(Integer.MAX_VALUE, clause("a=1", "a=2"), clause("b=1")));
+    }
+
+    @Test
+    public void dropsClausesThatCanNeverBeMet() {
+        assertEquals(Collections.singletonList("b=1 a=2"),
+                     expand(Integer.MAX_VALUE, clause("a=1", "b=1"), clause("a=2")));
+        assertEquals(Collections.emptyList(), expand(Integer.MAX_VALUE, clause("a=1"), clause("a=2")));
+    }
+
+    @Test
+    public void dropsSubsumedClauses() {
+        assertEquals(Arrays.asList("a=1", "b=1 c=1"),
+                     expand(Integer.MAX_VALUE, clause("a=1", "b=1"), clause("a=1", "c=1")));
+    }
+
+    @Test
+    public void comparesIgnoringCase() {
+        assertEquals(Collections.singletonList("a=x"), expand(Integer.MAX_VALUE, clause("a=x"), clause("A=X")));
+        assertEquals(Collections.emptyList(), expand(Integer.MAX_VALUE, clause("a=x"), clause("A=Y")));
+    }
+
+    @Test
+    public void allowsExactlyTheMaximumNumberOfClauses() {
+        assertEquals(16, expand(16, binaryClauses(4)).size());
+    }
+
+    @Test
+    public void countsDistinctClausesOnly() {
+        List<List<PolicyCondition>> cnf = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            cnf.add(clause("a=1", "A=1"));
+        }
+        assertEquals(Collections.singletonList("a=1"), expand(1, cnf));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreThanTheMaximumNumberOfClauses() {
+        expand(16, binaryClauses(5));
+    }
+
+    @Test(timeout = 10000, expected = IllegalArgumentException.class)
+    public void rejectsBeforeTheExpansionBlowsUp() {
+        // 2^30 clauses: only an expansion aborted at the limit completes
+        expand(1000, binaryClauses(30));
+    }
+
+    /**
+     * Returns n CNF clauses (xi=0 or xi=1), whose DNF has 2^n clauses.
+     */
+    private static List<List<PolicyCondition>> binaryClauses(int n) {
+        List<List<PolicyCondition>> cnf = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            cnf.add(clause("x" + i + "=0", "x" + i + "=1"));
+        }
+        return cnf;
+    }
+
+    @SafeVarargs
+    private static List<String> expand(int maxClauses, List<PolicyCondition>... cnf) {
+        return expand(maxClauses, Arrays.asList(cnf));
+    }
+
+    /**
+     * Expands conditions and writes each DNF clause as its conditions
+     * separated by spaces.
+     */
+    private static List<String> expand(int maxClauses, List<List<PolicyCondition>> cnf) {
+        List<String> dnf = new ArrayList<>();
+        for (List<PolicyCondition> clause : DnfExpander.expand(cnf, maxClauses)) {
+            StringBuilder text = new StringBuilder();
+            for (PolicyCondition pc : clause) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(pc.getPolicyVariable()).append('=').append(pc.getPolicyValue());
+            }
+            dnf.add(text.toString());
+        }
+        return dnf;
+    }
+
+    private static List<PolicyCondition> clause(String... conditions) {
+        List<PolicyCondition> clause = new ArrayList<>();
+        for (String condition : conditions) {
+            String[] parts = condition.split("=");
+            PolicyCondition pc = new PolicyCondition();
+            pc.setPolicyVariable(parts[0]);
+            pc.setPolicyValue(parts[1]);
+            clause.add(pc);
+        }
+        return clause;
+    }
+}
@@ -0,0 +1,139 @@
+package eu.ngpaas.pmlib;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the fields of a header space do not share bits, including the
+ * ones that straddle two words, and that prefixes, masks, contradicting
+ * criteria and intersections are handled bit by bit.
+ */
+public class HeaderSpaceTest {
+
+    private static final MacAddress ONES_MAC = MacAddress.valueOf("ff:ff:ff:ff:ff:ff");
+    private static final MacAddress ZEROS_MAC = MacAddress.valueOf("00:00:00:00:00:00");
+
+    /**
+     * Matches every bit of a supported field to 1 (true) or to 0 (false)
+     */
+    private static final List<BiConsumer<TrafficSelector.Builder, Boolean>> FIELDS = Arrays.asList(
+        (b, ones) -> b.matchEthType((short) (ones ? 0xFFFF : 0)),
+        (b, ones) -> b.matchEthSrc(ones ? ONES_MAC : ZEROS_MAC),
+        (b, ones) -> b.matchEthDst(ones ? ONES_MAC : ZEROS_MAC),
+        (b, ones) -> b.matchIPProtocol((byte) (ones ? 0xFF : 0)),
+        (b, ones) -> b.matchIPSrc(IpPrefix.valueOf(ones ? "255.255.255.255/32" : "0.0.0.0/32")),
+        (b, ones) -> b.matchIPDst(IpPrefix.valueOf(ones ? "255.255.255.255/32" : "0.0.0.0/32")),
+        (b, ones) -> b.matchTcpSrc(TpPort.tpPort(ones ? 0xFFFF : 0)),
+        (b, ones) -> b.matchTcpDst(TpPort.tpPort(ones ? 0xFFFF : 0)),
+        (b, ones) -> b.matchUdpSrc(TpPort.tpPort(ones ? 0xFFFF : 0)),
+        (b, ones) -> b.matchUdpDst(TpPort.tpPort(ones ? 0xFFFF : 0)));
+
+    @Test
+    public void fieldsDoNotShareBits() {
+        for (int i = 0; i < FIELDS.size(); i++) {
+            for (int j = 0; j < FIELDS.size(); j++) {
+                HeaderSpace ones = field(i, true);
+                HeaderSpace zeros = field(j, false);
+                assertEquals("Fields " + i + " and " + j, i != j, ones.overlaps(zeros));
+                assertEquals("Fields " + i + " and " + j, i == j, ones.equals(field(j, true)));
+            }
+        }
+
+        TrafficSelector.Builder everyField = DefaultTrafficSelector.builder();
+        FIELDS.forEach(f -> f.accept(everyField, true));
+        HeaderSpace allOnes = HeaderSpace.of(everyField.build());
+        assertFalse(allOnes.isEmpty());
+        for (int i = 0; i < FIELDS.size(); i++) {
+            assertTrue("Field " + i, field(i, true).contains(allOnes));
+            assertFalse("Field " + i, allOnes.contains(field(i, true)));
+        }
+    }
+
+    @Test
+    public void prefixesMatchTheirLeadingBits() {
+        HeaderSpace wide = ipv4Src("10.0.0.0/8");
+        HeaderSpace narrow = ipv4Src("10.1.2.0/24");
+        assertTrue(wide.contains(narrow));
+        assertFalse(narrow.contains(wide));
+        assertTrue(wide.overlaps(narrow));
+        assertFalse(wide.overlaps(ipv4Src("11.0.0.0/8")));
+        assertTrue(ipv4Src("0.0.0.0/0").equals(HeaderSpace.all()));
+        // The same prefix on the other address field matches other bits
+        assertTrue(narrow.overlaps(HeaderSpace.of(DefaultTrafficSelector.builder()
+                                                      .matchIPDst(IpPrefix.valueOf("11.0.0.0/8"))
+                                                      .build())));
+    }
+
+    @Test
+    public void maskedCriteriaMatchTheMaskedBitsOnly() {
+        HeaderSpace ports = HeaderSpace.of(DefaultTrafficSelector.builder()
+                                               .matchTcpSrcMasked(TpPort.tpPort(0x1000), TpPort.tpPort(0xF000))
+                                               .build());
+        assertTrue(ports.contains(tcpSrc(0x1234)));
+        assertFalse(ports.overlaps(tcpSrc(0x2234)));
+
+        HeaderSpace vendor = HeaderSpace.of(DefaultTrafficSelector.builder()
+                                                .matchEthSrcMasked(MacAddress.valueOf("00:11:22:00:00:00"),
+                                                                   MacAddress.valueOf("ff:ff:ff:00:00:00"))
+                                                .build());
+        assertTrue(vendor.contains(ethSrc("00:11:22:33:44:55")));
+        assertFalse(vendor.overlaps(ethSrc("00:11:23:33:44:55")));
+    }
+
+    @Test
+    public void contradictingCriteriaMatchNothing() {
+        HeaderSpace contradiction = HeaderSpace.of(DefaultTrafficSelector.builder()
+                                                       .matchEthSrc(MacAddress.valueOf("00:00:00:00:00:01"))
+                                                       .matchEthSrcMasked(ZEROS_MAC, ONES_MAC)
+                                                       .build());
+        assertTrue(contradiction.isEmpty());
+        assertFalse(contradiction.overlaps(HeaderSpace.all()));
+        assertTrue(HeaderSpace.all().contains(contradiction));
+        assertTrue(contradiction.equals(ipv4Src("10.0.0.0/8").intersect(ipv4Src("11.0.0.0/8"))));
+    }
+
+    @Test
+    public void intersectionMatchesBothCriteria() {
+        HeaderSpace src = ipv4Src("10.0.0.0/8");
+        HeaderSpace dst = HeaderSpace.of(DefaultTrafficSelector.builder()
+                                             .matchIPDst(IpPrefix.valueOf("10.0.0.1/32"))
+                                             .build());
+        HeaderSpace both = HeaderSpace.of(DefaultTrafficSelector.builder()
+                                              .matchIPSrc(IpPrefix.valueOf("10.0.0.0/8"))
+                                              .matchIPDst(IpPrefix.valueOf("10.0.0.1/32"))
+                                              .build());
+        assertEquals(both, src.intersect(dst));
+        assertEquals(both.hashCode(), dst.intersect(src).hashCode());
+        assertEquals(ipv4Src("10.1.2.0/24"), src.intersect(ipv4Src("10.1.2.0/24")));
+    }
+
+    private static HeaderSpace field(int index, boolean ones) {
+        TrafficSelector.Builder builder = DefaultTrafficSelector.builder();
+        FIELDS.get(index).accept(builder, ones);
+        return HeaderSpace.of(builder.build());
+    }
+
+    private static HeaderSpace ipv4Src(String prefix) {
+        return HeaderSpace.of(DefaultTrafficSelector.builder().matchIPSrc(IpPrefix.valueOf(prefix)).build());
+    }
+
+    private static HeaderSpace tcpSrc(int port) {
+        return HeaderSpace.of(DefaultTrafficSelector.builder().matchTcpSrc(TpPort.tpPort(port)).build());
+    }
+
+    private static HeaderSpace ethSrc(String mac) {
+        return HeaderSpace.of(DefaultTrafficSelector.builder().matchEthSrc(MacAddress.valueOf(mac)).build());
+    }
+}
@@ -0,0 +1,58 @@
+package eu.ngpaas.pmbench;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expands CNF conditions with an increasing number of two-literal clauses
+ * to DNF. With few variables most partial clauses are contradictory or
+ * subsumed; with many variables the expansion hits the size limit and the
+ * policy is rejected. Run with -prof gc to obtain the allocated memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class Cnf2DnfBenchmark {
+
+    @Param({"4", "8", "12", "16", "20"})
+    private int clauseCount;
+
+    @Param({"4", "40"})
+    private int variableCount;
+
+    @Param({"1024"})
+    private int maxClauses;
+
+    private PolicyRule cnfRule;
+
+    @Setup
+    public void setup() {
+        cnfRule = new PolicyGenerator(42, "QOS", clauseCount, 2, variableCount, 2).cnfRule(1);
+    }
+
+    @Benchmark
+    public CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf2dnf() {
+        try {
+            return cnfRule.cnf2dnf(cnfRule.getPolicyConditions(), maxClauses);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package eu.ngpaas.pmbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.ngpaas.pmlib.PolicyCodec;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyRules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON parsing and serialization of policy rules: a new ObjectMapper per
+ * call, as the code did before PolicyCodec, against the shared readers and
+ * writers of PolicyCodec.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    @Param({"1", "100"})
+    private int policyCount;
+
+    private PolicyRules prs;
+    private PolicyRule pr;
+    private String json;
+
+    @Setup
+    public void setup() throws IOException {
+        prs = new PolicyGenerator(42, "QOS", 4, 2, 8, 16).newRules(policyCount);
+        pr = prs.getPolicyRules().get(0);
+        json = PolicyCodec.toJson(prs);
+    }
+
+    @Benchmark
+    public PolicyRules readPerCallMapper() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return mapper.readValue(json, PolicyRules.class);
+    }
+
+    @Benchmark
+    public PolicyRules readShared() throws IOException {
+        return PolicyCodec.readPolicyRules(json);
+    }
+
+    @Benchmark
+    public byte[] writePerCallMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(pr).getBytes();
+    }
+
+    @Benchmark
+    public byte[] writeShared() throws IOException {
+        return PolicyCodec.toJsonBytes(pr);
+    }
+}
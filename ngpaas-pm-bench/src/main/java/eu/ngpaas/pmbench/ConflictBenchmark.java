@@ -0,0 +1,67 @@
+package eu.ngpaas.pmbench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.CompiledConditions;
+import eu.ngpaas.pmlib.ConflictValidator;
+import eu.ngpaas.pmlib.PolicyRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Checks a new policy rule for conflicts against every active policy rule,
+ * as the conflict validation did before the candidates were pruned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ConflictBenchmark {
+
+    @Param({"1000", "10000"})
+    private int ruleCount;
+
+    @Param({"1", "4"})
+    private int clauseCount;
+
+    @Param({"4", "256"})
+    private int cardinality;
+
+    private List<PolicyRule> active;
+    private PolicyRule newRule;
+
+    @Setup
+    public void setup() {
+        PolicyGenerator generator = new PolicyGenerator(42, "QOS", clauseCount, 3, 4, cardinality);
+        active = generator.dnfRules(ruleCount);
+        newRule = generator.dnfRule(ruleCount + 1);
+    }
+
+    @Benchmark
+    public void checkConflict(Blackhole bh) {
+        for (PolicyRule apRule : active) {
+            bh.consume(ConflictValidator.checkConflict(newRule, apRule));
+        }
+    }
+
+    @Benchmark
+    public void allConditionsIndependent(Blackhole bh) {
+        CompiledConditions conditions = newRule.getCompiledConditions();
+        for (PolicyRule apRule : active) {
+            bh.consume(ConflictValidator.allConditionsIndependent(apRule.getCompiledConditions(), conditions));
+        }
+    }
+}
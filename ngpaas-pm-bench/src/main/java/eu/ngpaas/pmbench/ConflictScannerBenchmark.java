@@ -0,0 +1,70 @@
+package eu.ngpaas.pmbench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmrest.core.ConflictScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scans a large candidate set for conflicts sequentially and in parallel
+ * with an increasing number of threads, to obtain the speedup curve of the
+ * ConflictScanner.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ConflictScannerBenchmark {
+
+    @Param({"10000", "100000"})
+    private int ruleCount;
+
+    @Param({"1", "2", "4", "8"})
+    private int parallelism;
+
+    private List<PolicyRule> candidates;
+    private PolicyRule newRule;
+    private ConflictScanner sequential;
+    private ConflictScanner parallel;
+
+    @Setup
+    public void setup() {
+        PolicyGenerator generator = new PolicyGenerator(42, "QOS", 2, 3, 4, 4);
+        candidates = generator.dnfRules(ruleCount);
+        newRule = generator.dnfRule(ruleCount + 1);
+        sequential = new ConflictScanner(1, Integer.MAX_VALUE);
+        parallel = new ConflictScanner(parallelism, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sequential.close();
+        parallel.close();
+    }
+
+    @Benchmark
+    public ArrayList<PolicyRule> sequential() {
+        return sequential.scan(newRule, candidates);
+    }
+
+    @Benchmark
+    public ArrayList<PolicyRule> parallel() {
+        return parallel.scan(newRule, candidates);
+    }
+}
@@ -0,0 +1,147 @@
+package eu.ngpaas.pmbench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.ngpaas.pmlib.PolicyAction;
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyRules;
+import eu.ngpaas.pmlib.PolicyState;
+
+/**
+ * Generates synthetic policy rules. Conditions use a fixed set of variables
+ * (var0, var1, ...) whose values are IPv4 addresses taken from a set of a
+ * given cardinality, so the lower the cardinality the more policies
+ * overlap. The same seed always generates the same policies.
+ */
+public class PolicyGenerator {
+
+    private final Random random;
+    private final String type;
+    private final int clauseCount;
+    private final int literalsPerClause;
+    private final int variableCount;
+    private final int cardinality;
+
+    /**
+     * Constructs a generator.
+     *
+     * @param seed              seed of the random generator
+     * @param type              policy type of the generated policies
+     * @param clauseCount       number of clauses of the conditions
+     * @param literalsPerClause number of conditions of each clause
+     * @param variableCount     number of distinct condition variables
+     * @param cardinality       number of distinct values of each variable
+     */
+    public PolicyGenerator(long seed, String type, int clauseCount, int literalsPerClause,
+                           int variableCount, int cardinality) {
+        this.random = new Random(seed);
+        this.type = type;
+        this.clauseCount = clauseCount;
+        this.literalsPerClause = Math.min(literalsPerClause, variableCount);
+        this.variableCount = variableCount;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Returns a policy rule in DNF, preprocessed as the manager does.
+     *
+     * @param id the id of the policy
+     * @return the policy rule
+     */
+    public PolicyRule dnfRule(int id) {
+        PolicyRule pr = rule(id, "DNF");
+        pr.canonicalize();
+        return pr;
+    }
+
+    /**
+     * Returns a policy rule in CNF, as received by the manager.
+     *
+     * @param id the id of the policy
+     * @return the policy rule
+     */
+    public PolicyRule cnfRule(int id) {
+        return rule(id, "CNF");
+    }
+
+    /**
+     * Returns a list of policy rules in DNF with ids from 1 to count.
+     *
+     * @param count the number of policies
+     * @return the policy rules
+     */
+    public List<PolicyRule> dnfRules(int count) {
+        List<PolicyRule> rules = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            rules.add(dnfRule(i));
+        }
+        return rules;
+    }
+
+    /**
+     * Returns a batch of new policy rules, as received by the manager.
+     *
+     * @param count the number of policies
+     * @return the policy rules
+     */
+    public PolicyRules newRules(int count) {
+        CopyOnWriteArrayList<PolicyRule> rules = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rules.add(rule(0, "DNF"));
+        }
+        PolicyRules prs = new PolicyRules();
+        prs.setPolicyRules(rules);
+        return prs;
+    }
+
+    /**
+     * Returns an IPv4 address for the given value index.
+     */
+    static String value(int index) {
+        return "10." + (index >> 16 & 0xff) + "." + (index >> 8 & 0xff) + "." + (index & 0xff);
+    }
+
+    private PolicyRule rule(int id, String form) {
+        PolicyRule pr = new PolicyRule();
+        pr.setId(id);
+        pr.setType(type);
+        pr.setForm(form);
+        pr.setPriority(random.nextInt(10));
+        pr.setState(id == 0 ? PolicyState.NEW : PolicyState.ENFORCED);
+
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> conditions = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < clauseCount; i++) {
+            conditions.add(clause());
+        }
+        pr.setPolicyConditions(conditions);
+
+        CopyOnWriteArrayList<PolicyAction> actions = new CopyOnWriteArrayList<>();
+        PolicyAction pa = new PolicyAction();
+        pa.setPolicyVariable("action");
+        pa.setPolicyValue(String.valueOf(random.nextInt(4)));
+        actions.add(pa);
+        pr.setPolicyActions(actions);
+        return pr;
+    }
+
+    private CopyOnWriteArrayList<PolicyCondition> clause() {
+        List<Integer> variables = new ArrayList<>(variableCount);
+        for (int i = 0; i < variableCount; i++) {
+            variables.add(i);
+        }
+        Collections.shuffle(variables, random);
+        CopyOnWriteArrayList<PolicyCondition> clause = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < literalsPerClause; i++) {
+            PolicyCondition pc = new PolicyCondition();
+            pc.setPolicyVariable("var" + variables.get(i));
+            pc.setPolicyValue(value(random.nextInt(cardinality)));
+            clause.add(pc);
+        }
+        return clause;
+    }
+}
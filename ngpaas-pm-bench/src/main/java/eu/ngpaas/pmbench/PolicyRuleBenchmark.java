@@ -0,0 +1,114 @@
+package eu.ngpaas.pmbench;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyHelper;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyTypeSchema;
+import eu.ngpaas.pmlib.PolicyValidator;
+import eu.ngpaas.pmlib.PolicyVariableType;
+import eu.ngpaas.pmlib.SimpleResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operations applied to every single policy rule on admission: conversion to
+ * DNF, sorting, comparison and validation of the condition values, one
+ * variable at a time with PolicyHelper or all at once with a compiled schema.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PolicyRuleBenchmark {
+
+    @Param({"2", "4", "8"})
+    private int clauseCount;
+
+    @Param({"2", "3"})
+    private int literalsPerClause;
+
+    @Param({"16"})
+    private int cardinality;
+
+    private PolicyRule cnfRule;
+    private PolicyRule unsortedRule;
+    private PolicyRule dnfRule;
+    private PolicyRule equalRule;
+    private PolicyValidator validator;
+
+    @Setup
+    public void setup() {
+        cnfRule = new PolicyGenerator(42, "QOS", clauseCount, literalsPerClause, 8, cardinality).cnfRule(1);
+        unsortedRule = new PolicyGenerator(7, "QOS", clauseCount, literalsPerClause, 8, cardinality).cnfRule(2);
+        dnfRule = new PolicyGenerator(42, "QOS", clauseCount, literalsPerClause, 8, cardinality).dnfRule(3);
+        equalRule = new PolicyGenerator(42, "QOS", clauseCount, literalsPerClause, 8, cardinality).dnfRule(4);
+        PolicyTypeSchema schema = new PolicyTypeSchema();
+        schema.setType("QOS");
+        for (int i = 0; i < 8; i++) {
+            schema.addCondition("var" + i, PolicyVariableType.IPV4, null);
+        }
+        schema.addAction("action", null, Arrays.asList("0", "1", "2", "3"));
+        validator = schema.compile();
+    }
+
+    @Benchmark
+    public CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> cnf2dnf() {
+        return cnfRule.cnf2dnf(cnfRule.getPolicyConditions());
+    }
+
+    /**
+     * Baseline of sortConditions: copying the conditions to sort.
+     */
+    @Benchmark
+    public PolicyRule copyConditions() {
+        return copyOf(unsortedRule);
+    }
+
+    @Benchmark
+    public PolicyRule sortConditions() {
+        PolicyRule pr = copyOf(unsortedRule);
+        pr.sortConditions();
+        return pr;
+    }
+
+    @Benchmark
+    public Boolean equalPolicyConditions() {
+        return dnfRule.equalPolicyConditions(equalRule);
+    }
+
+    @Benchmark
+    public SimpleResponse validateConditionValue() {
+        return PolicyHelper.validateConditionValue(dnfRule, "var0", PolicyVariableType.IPV4);
+    }
+
+    @Benchmark
+    public SimpleResponse validateSchema() {
+        return validator.validate(dnfRule);
+    }
+
+    private static PolicyRule copyOf(PolicyRule source) {
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> conditions = new CopyOnWriteArrayList<>();
+        for (CopyOnWriteArrayList<PolicyCondition> clause : source.getPolicyConditions()) {
+            conditions.add(new CopyOnWriteArrayList<>(clause));
+        }
+        PolicyRule pr = new PolicyRule();
+        pr.setType(source.getType());
+        pr.setPolicyConditions(conditions);
+        return pr;
+    }
+}
@@ -0,0 +1,98 @@
+package eu.ngpaas.pmbench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmrest.core.Ip4PrefixTrie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finds the installed IPv4 prefixes that overlap the prefix of a new flow
+ * rule, comparing every pair of prefixes, and walking an Ip4PrefixTrie as
+ * the FlowEntryIndex does. The prefixes look like ACL entries: /8 to /32
+ * under a few /8 networks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PrefixTrieBenchmark {
+
+    private static final int QUERIES = 256;
+
+    @Param({"1000", "10000", "100000"})
+    private int entryCount;
+
+    private int[] addresses;
+    private int[] lengths;
+    private int[] queryAddresses;
+    private int[] queryLengths;
+    private Ip4PrefixTrie<Integer> trie;
+    private int query = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        addresses = new int[entryCount];
+        lengths = new int[entryCount];
+        trie = new Ip4PrefixTrie<>();
+        for (int i = 0; i < entryCount; i++) {
+            addresses[i] = randomAddress(random);
+            lengths[i] = 8 + random.nextInt(25);
+            trie.add(addresses[i], lengths[i], i);
+        }
+        queryAddresses = new int[QUERIES];
+        queryLengths = new int[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queryAddresses[i] = randomAddress(random);
+            queryLengths[i] = 16 + random.nextInt(17);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> pairwise() {
+        int q = nextQuery();
+        int address = queryAddresses[q];
+        int length = queryLengths[q];
+        List<Integer> overlapping = new ArrayList<>();
+        for (int i = 0; i < entryCount; i++) {
+            // Two prefixes overlap if they agree on the bits of the shorter one
+            int offset = 32 - Math.min(length, lengths[i]);
+            if (offset == 32 || (address >> offset) << offset == (addresses[i] >> offset) << offset) {
+                overlapping.add(i);
+            }
+        }
+        return overlapping;
+    }
+
+    @Benchmark
+    public List<Integer> trie() {
+        int q = nextQuery();
+        List<Integer> overlapping = new ArrayList<>();
+        trie.forEachOverlapping(queryAddresses[q], queryLengths[q], overlapping::add);
+        return overlapping;
+    }
+
+    private int nextQuery() {
+        query = (query + 1) % QUERIES;
+        return query;
+    }
+
+    private static int randomAddress(Random random) {
+        return (10 + random.nextInt(4)) << 24 | random.nextInt(1 << 16) << 8 | random.nextInt(256);
+    }
+}
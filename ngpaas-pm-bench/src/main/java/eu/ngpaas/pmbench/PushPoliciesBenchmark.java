@@ -0,0 +1,84 @@
+package eu.ngpaas.pmbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyRules;
+import eu.ngpaas.pmlib.SimpleResponse;
+import eu.ngpaas.pmrest.core.PolicyFrameworkManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Admits a batch of new policies end to end: preprocessing, formal and
+ * context validation, conflict validation and enforcement, against a
+ * stub of the policy type apps, reached either through REST or in-process
+ * as a PolicyService. Each invocation starts from an empty manager.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PushPoliciesBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int batchSize;
+
+    @Param({"4", "256"})
+    private int cardinality;
+
+    @Param({"rest", "local"})
+    private String dispatch;
+
+    private StubTypeApp stub;
+    private PolicyFrameworkManager manager;
+    private PolicyGenerator generator;
+    private PolicyRules batch;
+
+    @Setup
+    public void setup() throws IOException {
+        stub = new StubTypeApp();
+        manager = new PolicyFrameworkManager();
+        manager.setSouthboundUri(stub.baseUri());
+        manager.activate();
+        manager.addPolicyType("QOS");
+        if ("local".equals(dispatch)) {
+            manager.bindPolicyService(new StubPolicyService("QOS"));
+        }
+        generator = new PolicyGenerator(42, "QOS", 2, 3, 4, cardinality);
+    }
+
+    @Setup(Level.Invocation)
+    public void newBatch() {
+        manager.deleteAllPolicyRules();
+        batch = generator.newRules(batchSize);
+        for (PolicyRule pr : batch.getPolicyRules()) {
+            manager.preprocess(pr);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.deactivate();
+        stub.stop();
+    }
+
+    @Benchmark
+    public SimpleResponse pushPolicies() {
+        return manager.pushPolicies(batch);
+    }
+}
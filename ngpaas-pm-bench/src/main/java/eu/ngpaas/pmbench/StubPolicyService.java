@@ -0,0 +1,53 @@
+package eu.ngpaas.pmbench;
+
+import eu.ngpaas.pmlib.ForwardingObjectiveList;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyService;
+import eu.ngpaas.pmlib.SimpleResponse;
+
+/**
+ * In-process stub of a policy type app: the counterpart of StubTypeApp
+ * for the policy types served in the same JVM. Every validation succeeds
+ * and enforce/remove do nothing.
+ */
+public class StubPolicyService implements PolicyService {
+
+    private final String type;
+
+    /**
+     * Constructs a stub of a policy type.
+     *
+     * @param type the policy type
+     */
+    public StubPolicyService(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public String getPolicyType() {
+        return type;
+    }
+
+    @Override
+    public SimpleResponse formalValidation(PolicyRule pr) {
+        return new SimpleResponse("OK", true);
+    }
+
+    @Override
+    public SimpleResponse contextValidation(PolicyRule pr) {
+        return new SimpleResponse("OK", true);
+    }
+
+    @Override
+    public ForwardingObjectiveList getFlowRules(PolicyRule pr) {
+        return new ForwardingObjectiveList();
+    }
+
+    @Override
+    public void enforce(PolicyRule pr) {
+    }
+
+    @Override
+    public void remove(PolicyRule pr) {
+    }
+}
@@ -0,0 +1,70 @@
+package eu.ngpaas.pmbench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub of the REST endpoints of the policy type apps. Every
+ * POST under /onos (validations, enforce, remove and their batch versions)
+ * is accepted with a 200 reply.
+ */
+public class StubTypeApp {
+
+    private static final byte[] REPLY = "OK".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts the stub on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException if the server cannot be started
+     */
+    public StubTypeApp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/onos", this::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Returns the base URI of the policy type endpoints.
+     *
+     * @return the base URI
+     */
+    public String baseUri() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/onos";
+    }
+
+    /**
+     * Stops the stub.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                // Consume the request so the connection can be reused
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, REPLY.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(REPLY);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package eu.ngpaas.pmrest.core;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Latencies and counters of the admission of policies. The latency of each
+ * stage of the admission is recorded in a LatencyHistogram per policy type;
+ * the stages that do not belong to a single policy type are recorded under
+ * ALL_TYPES, and the ones of policies whose type is not registered under
+ * UNKNOWN_TYPE, so that clients cannot add histograms at will. The manager also counts the conflict checks between pairs of
+ * policies, the ENFORCED policies displaced by new ones and the HTTP status
+ * codes returned by the policy type apps, and measures how long the lock of
+ * each policy type is waited for and held.
+ * <p>
+ * The metrics can be written as JSON, with latencies in microseconds, or in
+ * the Prometheus text format, with latencies in seconds.
+ */
+public class AdmissionMetrics {
+
+    /**
+     * Type under which the latencies not specific to a policy type are recorded
+     */
+    public static final String ALL_TYPES = "*";
+
+    /**
+     * Type under which the latencies of policies of unregistered types are recorded
+     */
+    public static final String UNKNOWN_TYPE = "unknown";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /**
+     * Stages of the admission of a policy
+     */
+    public enum Stage {
+        PARSE,
+        PREPROCESS,
+        FORMAL_VALIDATION,
+        CONTEXT_VALIDATION,
+        CONFLICT_VALIDATION,
+        ENFORCEMENT,
+        REACTIVATION;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * Returns the name of the stage in the metrics.
+         *
+         * @return the name
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final Map<Stage, ConcurrentMap<String, LatencyHistogram>> stages = new EnumMap<>(Stage.class);
+    private final ConcurrentMap<String, LatencyHistogram> lockWait = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> lockHold = new ConcurrentHashMap<>();
+    private final LongAdder conflictChecks = new LongAdder();
+    private final LongAdder displacedPolicies = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> southboundResponses = new ConcurrentHashMap<>();
+    private final Set<String> types = ConcurrentHashMap.newKeySet();
+
+    public AdmissionMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Records the metrics of a policy type under its own name from now on.
+     *
+     * @param type the policy type
+     */
+    public void typeAdded(String type) {
+        types.add(type);
+    }
+
+    /**
+     * Records the metrics of a policy type under UNKNOWN_TYPE from now on.
+     * Those recorded so far are kept.
+     *
+     * @param type the policy type
+     */
+    public void typeRemoved(String type) {
+        types.remove(type);
+    }
+
+    /**
+     * Records the time elapsed since the start of a stage.
+     *
+     * @param stage      the stage
+     * @param type       the policy type, or ALL_TYPES. Unregistered types are recorded under UNKNOWN_TYPE
+     * @param startNanos the start of the stage, as returned by System.nanoTime
+     */
+    public void recordSince(Stage stage, String type, long startNanos) {
+        histogramOf(stages.get(stage), type).recordSince(startNanos);
+    }
+
+    /**
+     * Records the time a thread waited for the lock of a policy type.
+     *
+     * @param type  the policy type, or ALL_TYPES for the lock of every type
+     * @param nanos the time in nanoseconds
+     */
+    public void lockWaited(String type, long nanos) {
+        histogramOf(lockWait, type).record(nanos);
+    }
+
+    /**
+     * Records the time a thread held the lock of a policy type.
+     *
+     * @param type  the policy type, or ALL_TYPES for the lock of every type
+     * @param nanos the time in nanoseconds
+     */
+    public void lockHeld(String type, long nanos) {
+        histogramOf(lockHold, type).record(nanos);
+    }
+
+    /**
+     * Counts conflict checks between a new policy and stored ones.
+     *
+     * @param pairs the number of pairs of policies checked
+     */
+    public void conflictsChecked(int pairs) {
+        conflictChecks.add(pairs);
+    }
+
+    /**
+     * Counts ENFORCED policies moved to PENDING by a new policy.
+     *
+     * @param policies the number of policies
+     */
+    public void policiesDisplaced(int policies) {
+        displacedPolicies.add(policies);
+    }
+
+    /**
+     * Counts a reply of a policy type app.
+     *
+     * @param status the HTTP status code, or a negative value if the app was unreachable
+     */
+    public void southboundResponse(int status) {
+        String code = status < 0 ? "unreachable" : Integer.toString(status);
+        LongAdder counter = southboundResponses.get(code);
+        if (counter == null) {
+            counter = southboundResponses.computeIfAbsent(code, c -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Writes the metrics as a JSON object.
+     *
+     * @param gen the generator
+     * @throws IOException if the metrics cannot be written
+     */
+    public void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        gen.writeObjectFieldStart("stages");
+        for (Map.Entry<Stage, ConcurrentMap<String, LatencyHistogram>> stage : stages.entrySet()) {
+            if (!stage.getValue().isEmpty()) {
+                gen.writeFieldName(stage.getKey().getLabel());
+                writeJson(gen, stage.getValue());
+            }
+        }
+        gen.writeEndObject();
+        gen.writeObjectFieldStart("locks");
+        gen.writeFieldName("wait");
+        writeJson(gen, lockWait);
+        gen.writeFieldName("hold");
+        writeJson(gen, lockHold);
+        gen.writeEndObject();
+        gen.writeNumberField("conflictChecks", conflictChecks.sum());
+        gen.writeNumberField("displacedPolicies", displacedPolicies.sum());
+        gen.writeObjectFieldStart("southboundResponses");
+        for (Map.Entry<String, LongAdder> response : new TreeMap<>(southboundResponses).entrySet()) {
+            gen.writeNumberField(response.getKey(), response.getValue().sum());
+        }
+        gen.writeEndObject();
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.
+     *
+     * @param out the text
+     */
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP ngpaas_pm_stage_seconds Latency of the stages of the admission of policies\n");
+        out.append("# TYPE ngpaas_pm_stage_seconds summary\n");
+        for (Map.Entry<Stage, ConcurrentMap<String, LatencyHistogram>> stage : stages.entrySet()) {
+            writePrometheus(out, "ngpaas_pm_stage_seconds", "stage=\"" + stage.getKey().getLabel() + "\",",
+                            stage.getValue());
+        }
+        out.append("# HELP ngpaas_pm_lock_wait_seconds Time waited for the lock of a policy type\n");
+        out.append("# TYPE ngpaas_pm_lock_wait_seconds summary\n");
+        writePrometheus(out, "ngpaas_pm_lock_wait_seconds", "", lockWait);
+        out.append("# HELP ngpaas_pm_lock_hold_seconds Time the lock of a policy type was held\n");
+        out.append("# TYPE ngpaas_pm_lock_hold_seconds summary\n");
+        writePrometheus(out, "ngpaas_pm_lock_hold_seconds", "", lockHold);
+        out.append("# HELP ngpaas_pm_conflict_checks_total Conflict checks between pairs of policies\n");
+        out.append("# TYPE ngpaas_pm_conflict_checks_total counter\n");
+        out.append("ngpaas_pm_conflict_checks_total ").append(conflictChecks.sum()).append('\n');
+        out.append("# HELP ngpaas_pm_displaced_policies_total Enforced policies moved to pending by new ones\n");
+        out.append("# TYPE ngpaas_pm_displaced_policies_total counter\n");
+        out.append("ngpaas_pm_displaced_policies_total ").append(displacedPolicies.sum()).append('\n');
+        out.append("# HELP ngpaas_pm_southbound_responses_total Replies of the policy type apps by HTTP status\n");
+        out.append("# TYPE ngpaas_pm_southbound_responses_total counter\n");
+        for (Map.Entry<String, LongAdder> response : new TreeMap<>(southboundResponses).entrySet()) {
+            out.append("ngpaas_pm_southbound_responses_total{code=\"").append(response.getKey()).append("\"} ")
+               .append(response.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void writeJson(JsonGenerator gen, Map<String, LatencyHistogram> histograms) throws IOException {
+        gen.writeStartObject();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            gen.writeObjectFieldStart(entry.getKey());
+            gen.writeNumberField("count", snapshot.getCount());
+            gen.writeNumberField("mean", snapshot.getMean() / 1e3);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                gen.writeNumberField(QUANTILE_NAMES[i], snapshot.getValueAtQuantile(QUANTILES[i]) / 1e3);
+            }
+            gen.writeNumberField("max", snapshot.getMax() / 1e3);
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+
+    private static void writePrometheus(StringBuilder out, String name, String labels,
+                                        Map<String, LatencyHistogram> histograms) {
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot();
+            String series = labels + "type=\"" + escape(entry.getKey()) + "\"";
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(series).append(",quantile=\"").append(quantile).append("\"} ")
+                   .append(snapshot.getValueAtQuantile(quantile) / 1e9).append('\n');
+            }
+            out.append(name).append("_sum{").append(series).append("} ").append(snapshot.getSum() / 1e9)
+               .append('\n');
+            out.append(name).append("_count{").append(series).append("} ").append(snapshot.getCount())
+               .append('\n');
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private LatencyHistogram histogramOf(ConcurrentMap<String, LatencyHistogram> histograms, String type) {
+        String key;
+        if (type == null || type.equals(ALL_TYPES)) {
+            key = ALL_TYPES;
+        } else {
+            key = types.contains(type) ? type : UNKNOWN_TYPE;
+        }
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key, t -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,489 @@
+package eu.ngpaas.pmrest.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import eu.ngpaas.pmlib.ConflictValidator;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyState;
+import eu.ngpaas.pmlib.SimpleResponse;
+
+/**
+ * Plans the admission of a batch of policies without modifying the stored
+ * policies. The decisions of pushPolicies (duplicate check, result of the
+ * formal and context validations, conflict resolution against the ENFORCED
+ * policies) are taken against a copy-on-write view of the PolicyStore: the
+ * store is only read, and the planned changes are kept in an overlay with
+ * the planned state of every policy that is not in that state in the store,
+ * and a ConditionIndex of the policies planned ENFORCED and PENDING that are
+ * not indexed as such by the store. Neither the policies nor the network are
+ * touched.
+ * <p>
+ * After the batch, the PENDING policies that may conflict with the ones it
+ * displaced are reconsidered by priority, as the reactivation scheduler
+ * would, until no more policies are displaced. Displacements only go to
+ * policies of strictly higher priority, so this ends.
+ * <p>
+ * The store must not change while planning, i.e. the caller holds the locks
+ * of the types of the batch. Not thread-safe.
+ */
+public class AdmissionPlanner {
+
+    private final PolicyStore store;
+    private final ConflictScanner scanner;
+    private final AdmissionMetrics metrics;
+    private final Function<PolicyRule, SimpleResponse> contextValidation;
+    private final IntSupplier ids;
+
+    /**
+     * Planned state of the policies that are not in that state in the store, by id
+     */
+    private final Map<Integer, PolicyState> plannedStates = new HashMap<>();
+
+    /**
+     * The policies of plannedStates, by id
+     */
+    private final Map<Integer, PolicyRule> plannedPolicies = new TreeMap<>();
+
+    /**
+     * Conditions of the policies planned ENFORCED that are not ENFORCED in the store
+     */
+    private final ConditionIndex enforcedOverlay = new ConditionIndex();
+
+    /**
+     * Conditions of the policies planned PENDING that are not PENDING in the store
+     */
+    private final ConditionIndex pendingOverlay = new ConditionIndex();
+
+    /**
+     * Fingerprint to the policies of pendingOverlay, to find duplicates
+     */
+    private final Map<Long, List<PolicyRule>> pendingByFingerprint = new HashMap<>();
+
+    /**
+     * Policies planned to leave the ENFORCED state whose PENDING neighbours are not reconsidered yet
+     */
+    private final List<PolicyRule> freed = new ArrayList<>();
+
+    private final List<Decision> decisions = new ArrayList<>();
+
+    /**
+     * PENDING policies that were not reconsidered for lack of a context validation result, by id
+     */
+    private final Map<Integer, PolicyRule> deferred = new TreeMap<>();
+
+    /**
+     * Constructs a planner.
+     *
+     * @param store             the policies, which are only read
+     * @param scanner           checks the conflicts between policies
+     * @param metrics           records the conflict validations, or null if they are not measured
+     * @param contextValidation result of the context validation of the PENDING policies reconsidered,
+     *                          or null if it is not known, in which case the policy is left PENDING
+     * @param ids               gives the ids of the new policies that are planned to be stored
+     */
+    public AdmissionPlanner(PolicyStore store, ConflictScanner scanner, AdmissionMetrics metrics,
+                            Function<PolicyRule, SimpleResponse> contextValidation, IntSupplier ids) {
+        this.store = store;
+        this.scanner = scanner;
+        this.metrics = metrics;
+        this.contextValidation = contextValidation;
+        this.ids = ids;
+    }
+
+    /**
+     * Plans the admission of a new policy, after the ones planned before.
+     * The policy is given an id if it is planned to be stored.
+     *
+     * @param pr            the policy rule, preprocessed
+     * @param preValidation result of its formal and context validations
+     * @return the result of the admission, with the codes of pushPolicies: 0 if
+     * the policy would not be stored, 1 or 2 if it would be stored as PENDING
+     */
+    public SimpleResponse admit(PolicyRule pr, SimpleResponse preValidation) {
+        // The new policy is not shared yet, unlike the stored ones, which are always canonical
+        if (!pr.isCanonical()) {
+            pr.canonicalize();
+        }
+        SimpleResponse sr = decide(pr, preValidation);
+        if (sr.getCode() != 0) {
+            pr.setId(ids.getAsInt());
+            setPlannedState(pr, sr.getCode() == 1 || sr.getCode() == 2 ? PolicyState.PENDING
+                                                                          : PolicyState.ENFORCED);
+        }
+        decisions.add(new Decision(pr, sr));
+        return sr;
+    }
+
+    /**
+     * Reconsiders the PENDING policies that may conflict with the policies
+     * displaced so far, as the reactivation scheduler would, and completes
+     * the plan.
+     *
+     * @return the plan
+     */
+    public Plan finish() {
+        while (!freed.isEmpty()) {
+            Map<Integer, PolicyRule> unblocked = new TreeMap<>();
+            for (PolicyRule pr : freed) {
+                unblocked.putAll(candidatesOf(pr, PolicyState.PENDING));
+            }
+            freed.clear();
+            List<PolicyRule> prs = new ArrayList<>(unblocked.values());
+            Collections.sort(prs);
+            for (PolicyRule pr : prs) {
+                if (stateOf(pr) != PolicyState.PENDING || isTagged(pr)) {
+                    continue;
+                }
+                SimpleResponse context = contextValidation.apply(pr);
+                if (context == null) {
+                    deferred.put(pr.getId(), pr);
+                } else if (context.isSuccess() && checkConflicts(pr).isSuccess()) {
+                    setPlannedState(pr, PolicyState.ENFORCED);
+                }
+            }
+        }
+        return new Plan(this);
+    }
+
+    /**
+     * Returns the planned state of a policy.
+     *
+     * @param pr the policy rule
+     * @return the state, or null if the policy is neither stored nor planned to be
+     */
+    public PolicyState stateOf(PolicyRule pr) {
+        PolicyState planned = plannedStates.get(pr.getId());
+        if (planned != null) {
+            return planned;
+        }
+        return storedStateOf(pr);
+    }
+
+    private SimpleResponse decide(PolicyRule pr, SimpleResponse preValidation) {
+        if (findPendingDuplicate(pr) != null) {
+            return new SimpleResponse(0, "Duplicated policy.", false);
+        }
+        // If the formal validation failed the policy is not stored, if the context one failed it is PENDING
+        if (!preValidation.isSuccess()) {
+            return preValidation;
+        }
+        SimpleResponse sr = checkConflicts(pr);
+        if (!sr.isSuccess()) {
+            return new SimpleResponse(1, "Policy failed at conflict validation.", false);
+        }
+        List<String> messages = sr.getMessages();
+        messages.add(0, "Policy activated.");
+        return new SimpleResponse(3, messages, true);
+    }
+
+    /**
+     * Conflict validation of the manager against the planned ENFORCED
+     * policies. If the policy wins, the policies it conflicts with are
+     * planned PENDING and untagged, as if deactivated and freed.
+     */
+    private SimpleResponse checkConflicts(PolicyRule npRule) {
+        long start = System.nanoTime();
+        try {
+            Collection<PolicyRule> candidates = candidatesOf(npRule, PolicyState.ENFORCED).values();
+            if (candidates.isEmpty()) {
+                return new SimpleResponse("Same-type conflict validated.", true);
+            }
+            // Unlike scan, detect does not give the id of a duplicated candidate to the policy
+            ArrayList<PolicyRule> crl = scanner.detect(npRule, candidates);
+            if (metrics != null) {
+                metrics.conflictsChecked(candidates.size());
+            }
+            if (ConflictValidator.conflictResolution(npRule, crl).isSuccess()) {
+                return new SimpleResponse("Policy failed at conflict validation", false);
+            }
+            CopyOnWriteArrayList<String> messages = new CopyOnWriteArrayList<>();
+            for (PolicyRule displaced : crl) {
+                setPlannedState(displaced, PolicyState.PENDING);
+                freed.add(displaced);
+                messages.add("Policy [" + displaced.getId() + "] moved to pending state");
+            }
+            messages.add("Policy passed conflict validation");
+            return new SimpleResponse(messages, true);
+        } finally {
+            if (metrics != null) {
+                metrics.recordSince(AdmissionMetrics.Stage.CONFLICT_VALIDATION, npRule.getType(), start);
+            }
+        }
+    }
+
+    /**
+     * Returns the policies planned in a state that may conflict with the
+     * given one, by id. Among the stored policies, these are the neighbours
+     * of a stored policy in the conflict graph of the store, or the ones
+     * that share conditions with a new policy.
+     */
+    private Map<Integer, PolicyRule> candidatesOf(PolicyRule pr, PolicyState state) {
+        Map<Integer, PolicyRule> candidates = new TreeMap<>();
+        Collection<PolicyRule> stored = store.getConflicts(pr);
+        if (stored == null) {
+            stored = state == PolicyState.ENFORCED ? store.getConflictCandidates(pr)
+                                                   : store.getPendingCandidates(pr);
+        }
+        for (PolicyRule candidate : stored) {
+            if (stateOf(candidate) == state) {
+                candidates.put(candidate.getId(), candidate);
+            }
+        }
+        for (PolicyRule candidate : overlayOf(state).candidates(pr)) {
+            candidates.put(candidate.getId(), candidate);
+        }
+        return candidates;
+    }
+
+    private PolicyRule findPendingDuplicate(PolicyRule pr) {
+        PolicyRule stored = store.findPendingDuplicate(pr);
+        if (stored != null && stateOf(stored) == PolicyState.PENDING) {
+            return stored;
+        }
+        for (PolicyRule pending : pendingByFingerprint.getOrDefault(pr.getFingerprint(),
+                                                                    Collections.emptyList())) {
+            if (pending.equals(pr)) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves a policy to a planned state, keeping the overlay consistent.
+     */
+    private void setPlannedState(PolicyRule pr, PolicyState state) {
+        PolicyState from = stateOf(pr);
+        if (from == state) {
+            return;
+        }
+        PolicyState stored = storedStateOf(pr);
+        if (from != null && from != stored) {
+            overlayOf(from).remove(pr);
+            if (from == PolicyState.PENDING) {
+                List<PolicyRule> sameFingerprint = pendingByFingerprint.get(pr.getFingerprint());
+                sameFingerprint.removeIf(pending -> pending == pr);
+                if (sameFingerprint.isEmpty()) {
+                    pendingByFingerprint.remove(pr.getFingerprint());
+                }
+            }
+        }
+        if (state != stored) {
+            overlayOf(state).add(pr);
+            if (state == PolicyState.PENDING) {
+                pendingByFingerprint.computeIfAbsent(pr.getFingerprint(), f -> new ArrayList<>()).add(pr);
+            }
+            plannedStates.put(pr.getId(), state);
+            plannedPolicies.put(pr.getId(), pr);
+        } else {
+            plannedStates.remove(pr.getId());
+            plannedPolicies.remove(pr.getId());
+        }
+    }
+
+    private PolicyState storedStateOf(PolicyRule pr) {
+        return store.get(pr.getId()) == pr ? pr.getState() : null;
+    }
+
+    private ConditionIndex overlayOf(PolicyState state) {
+        return state == PolicyState.ENFORCED ? enforcedOverlay : pendingOverlay;
+    }
+
+    /**
+     * Checks if a policy is tagged as manually deactivated. The policies
+     * displaced by the plan are untagged.
+     */
+    private boolean isTagged(PolicyRule pr) {
+        return !plannedStates.containsKey(pr.getId()) && Boolean.TRUE.equals(pr.isDeactivated());
+    }
+
+    /**
+     * The result of the admission of a new policy
+     */
+    public static final class Decision {
+
+        private final PolicyRule rule;
+        private final SimpleResponse response;
+        private PolicyState state;
+
+        private Decision(PolicyRule rule, SimpleResponse response) {
+            this.rule = rule;
+            this.response = response;
+        }
+
+        /**
+         * Returns the policy rule.
+         *
+         * @return the policy rule
+         */
+        public PolicyRule getRule() {
+            return rule;
+        }
+
+        /**
+         * Returns the result of the admission, with the codes of pushPolicies.
+         *
+         * @return the result
+         */
+        public SimpleResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * Returns the state of the policy at the end of the plan, which may
+         * differ from the result of its admission if a later policy displaced it.
+         *
+         * @return the state, or null if the policy is not stored
+         */
+        public PolicyState getState() {
+            return state;
+        }
+    }
+
+    /**
+     * The outcome of a batch: the result of each new policy and the net
+     * changes of the enforced policies, as they were when the plan was
+     * completed.
+     */
+    public static final class Plan {
+
+        private final List<Decision> decisions;
+        private final List<PolicyRule> enforced = new ArrayList<>();
+        private final List<PolicyRule> removed = new ArrayList<>();
+        private final List<PolicyRule> reactivated = new ArrayList<>();
+        private final List<PolicyRule> deferred;
+
+        private Plan(AdmissionPlanner planner) {
+            this.decisions = planner.decisions;
+            for (Decision decision : decisions) {
+                decision.state = decision.response.getCode() == 0 ? null : planner.stateOf(decision.rule);
+            }
+            for (PolicyRule pr : planner.plannedPolicies.values()) {
+                PolicyState stored = planner.storedStateOf(pr);
+                if (planner.stateOf(pr) == PolicyState.ENFORCED) {
+                    enforced.add(pr);
+                    if (stored == PolicyState.PENDING) {
+                        reactivated.add(pr);
+                    }
+                } else if (stored == PolicyState.ENFORCED) {
+                    removed.add(pr);
+                }
+            }
+            this.deferred = new ArrayList<>(planner.deferred.values());
+        }
+
+        /**
+         * Returns the results of the new policies, in the order they were admitted.
+         *
+         * @return the decisions
+         */
+        public List<Decision> getDecisions() {
+            return Collections.unmodifiableList(decisions);
+        }
+
+        /**
+         * Returns the policies planned to be enforced: the new ones and the
+         * PENDING ones that are reactivated, by id.
+         *
+         * @return the policy rules
+         */
+        public List<PolicyRule> getEnforced() {
+            return Collections.unmodifiableList(enforced);
+        }
+
+        /**
+         * Returns the ENFORCED policies planned to be displaced, and so
+         * removed from the network, by id. New policies that are displaced by
+         * later ones are never enforced, so they are not included.
+         *
+         * @return the policy rules
+         */
+        public List<PolicyRule> getRemoved() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Returns the PENDING policies planned to be enforced, by id.
+         *
+         * @return the policy rules
+         */
+        public List<PolicyRule> getReactivated() {
+            return Collections.unmodifiableList(reactivated);
+        }
+
+        /**
+         * Returns the PENDING policies that may be unblocked but were left
+         * PENDING because their context validation was not known, by id.
+         * pushPolicies leaves them to the reactivation scheduler.
+         *
+         * @return the policy rules
+         */
+        public List<PolicyRule> getDeferred() {
+            return Collections.unmodifiableList(deferred);
+        }
+
+        /**
+         * Checks if some PENDING policies that may be unblocked were left
+         * PENDING because their context validation was not known.
+         *
+         * @return true or false
+         */
+        public boolean hasDeferred() {
+            return !deferred.isEmpty();
+        }
+
+        /**
+         * Writes the plan as a JSON object: the final state, provisional id,
+         * code and messages of each new policy, in the order they are
+         * admitted, and the ids of the policies that are enforced, removed,
+         * reactivated and deferred.
+         *
+         * @param gen the generator
+         * @throws IOException if the plan cannot be written
+         */
+        public void writeJson(JsonGenerator gen) throws IOException {
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("policies");
+            for (Decision decision : decisions) {
+                gen.writeStartObject();
+                gen.writeNumberField("id", decision.state == null ? 0 : decision.rule.getId());
+                gen.writeStringField("type", decision.rule.getType());
+                gen.writeNumberField("priority", decision.rule.getPriority());
+                gen.writeStringField("state", decision.state == null ? null : decision.state.getCommonName());
+                gen.writeNumberField("code", decision.response.getCode());
+                gen.writeBooleanField("success", decision.response.isSuccess());
+                gen.writeArrayFieldStart("messages");
+                for (String message : decision.response.getMessages()) {
+                    gen.writeString(message);
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            writeIds(gen, "enforced", enforced);
+            writeIds(gen, "removed", removed);
+            writeIds(gen, "reactivated", reactivated);
+            writeIds(gen, "deferred", deferred);
+            gen.writeEndObject();
+        }
+
+        private static void writeIds(JsonGenerator gen, String name, List<PolicyRule> prs) throws IOException {
+            gen.writeArrayFieldStart(name);
+            for (PolicyRule pr : prs) {
+                gen.writeNumber(pr.getId());
+            }
+            gen.writeEndArray();
+        }
+    }
+}
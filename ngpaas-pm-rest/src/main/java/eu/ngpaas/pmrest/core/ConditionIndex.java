@@ -0,0 +1,201 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+
+/**
+ * Inverted index from (type, condition variable, value) to policies. It is
+ * used to prune the policies that have to be checked for conflicts against a
+ * new policy.
+ * Two DNF clauses are independent only if they share a variable with a
+ * different value; clauses that share no variable at all are dependent. To
+ * account for the latter, clauses are partitioned by their signature (the set
+ * of variables they constrain). For a new clause, a signature with no
+ * variable in common contributes all its policies, and any other signature
+ * only contributes the policies that have the same value in one of the
+ * shared variables. The number of signatures per type is bounded by the
+ * variables each policy type supports, so the cost of a query is
+ * proportional to the number of overlapping policies.
+ */
+public class ConditionIndex {
+
+    /**
+     * Policy type to the clause signatures of that type
+     */
+    private final Map<String, Map<String, SignatureIndex>> signaturesByType = new HashMap<>();
+
+    /**
+     * Indexes the conditions of a policy.
+     *
+     * @param pr the policy rule
+     */
+    public synchronized void add(PolicyRule pr) {
+        Map<String, SignatureIndex> signatures = signaturesByType.computeIfAbsent(pr.getType(), t -> new HashMap<>());
+        for (CopyOnWriteArrayList<PolicyCondition> clause : pr.getPolicyConditions()) {
+            Map<String, String> literals = literals(clause);
+            signatures.computeIfAbsent(signatureOf(literals), s -> new SignatureIndex(literals.keySet()))
+                      .add(pr, literals);
+        }
+    }
+
+    /**
+     * Removes the conditions of a policy from the index.
+     *
+     * @param pr the policy rule
+     */
+    public synchronized void remove(PolicyRule pr) {
+        Map<String, SignatureIndex> signatures = signaturesByType.get(pr.getType());
+        if (signatures == null) {
+            return;
+        }
+        for (CopyOnWriteArrayList<PolicyCondition> clause : pr.getPolicyConditions()) {
+            Map<String, String> literals = literals(clause);
+            String signature = signatureOf(literals);
+            SignatureIndex signatureIndex = signatures.get(signature);
+            if (signatureIndex != null && signatureIndex.remove(pr, literals)) {
+                signatures.remove(signature);
+            }
+        }
+        if (signatures.isEmpty()) {
+            signaturesByType.remove(pr.getType());
+        }
+    }
+
+    /**
+     * Removes all the policies from the index.
+     */
+    public synchronized void clear() {
+        signaturesByType.clear();
+    }
+
+    /**
+     * Returns the indexed policies that may conflict with the given policy,
+     * ordered by id. Every policy that is not returned is guaranteed to have
+     * all its conditions independent of the conditions of the given policy.
+     *
+     * @param pr the policy rule
+     * @return the candidate policies
+     */
+    public synchronized Collection<PolicyRule> candidates(PolicyRule pr) {
+        Map<Integer, PolicyRule> candidates = new TreeMap<>();
+        Map<String, SignatureIndex> signatures = signaturesByType.get(pr.getType());
+        if (signatures == null) {
+            return candidates.values();
+        }
+        for (CopyOnWriteArrayList<PolicyCondition> clause : pr.getPolicyConditions()) {
+            Map<String, String> literals = literals(clause);
+            for (SignatureIndex signatureIndex : signatures.values()) {
+                signatureIndex.collect(literals, candidates);
+            }
+        }
+        return candidates.values();
+    }
+
+    /**
+     * Returns the variable to value dictionary of a clause. Values are
+     * lower-cased since they are compared ignoring case.
+     */
+    private static Map<String, String> literals(CopyOnWriteArrayList<PolicyCondition> clause) {
+        Map<String, String> literals = new HashMap<>();
+        for (PolicyCondition pc : clause) {
+            literals.put(pc.getPolicyVariable(), pc.getPolicyValue().toLowerCase());
+        }
+        return literals;
+    }
+
+    private static String signatureOf(Map<String, String> literals) {
+        return String.join("\u0000", new TreeSet<>(literals.keySet()));
+    }
+
+    /**
+     * Indexes the clauses that constrain exactly the same set of variables.
+     */
+    private static final class SignatureIndex {
+
+        private final Collection<String> variables;
+
+        /**
+         * Policy id to the number of clauses of the policy with this signature
+         */
+        private final Map<Integer, Integer> clauseCount = new HashMap<>();
+
+        private final Map<Integer, PolicyRule> policies = new HashMap<>();
+
+        private final Map<String, Map<String, Map<Integer, PolicyRule>>> policiesByValue = new HashMap<>();
+
+        private SignatureIndex(Collection<String> variables) {
+            this.variables = new TreeSet<>(variables);
+        }
+
+        private void add(PolicyRule pr, Map<String, String> literals) {
+            clauseCount.merge(pr.getId(), 1, Integer::sum);
+            policies.put(pr.getId(), pr);
+            for (Map.Entry<String, String> literal : literals.entrySet()) {
+                policiesByValue.computeIfAbsent(literal.getKey(), v -> new HashMap<>())
+                               .computeIfAbsent(literal.getValue(), v -> new HashMap<>())
+                               .put(pr.getId(), pr);
+            }
+        }
+
+        /**
+         * Removes a clause of a policy with this signature.
+         *
+         * @return true if the signature has no clauses left
+         */
+        private boolean remove(PolicyRule pr, Map<String, String> literals) {
+            for (Map.Entry<String, String> literal : literals.entrySet()) {
+                Map<String, Map<Integer, PolicyRule>> byValue = policiesByValue.get(literal.getKey());
+                Map<Integer, PolicyRule> bucket = byValue == null ? null : byValue.get(literal.getValue());
+                if (bucket == null) {
+                    continue;
+                }
+                bucket.remove(pr.getId());
+                if (bucket.isEmpty()) {
+                    byValue.remove(literal.getValue());
+                    if (byValue.isEmpty()) {
+                        policiesByValue.remove(literal.getKey());
+                    }
+                }
+            }
+            Integer count = clauseCount.get(pr.getId());
+            if (count != null && count > 1) {
+                clauseCount.put(pr.getId(), count - 1);
+            } else {
+                clauseCount.remove(pr.getId());
+                policies.remove(pr.getId());
+            }
+            return policies.isEmpty();
+        }
+
+        /**
+         * Adds to candidates the policies with a clause of this signature that
+         * is not independent of the given clause.
+         */
+        private void collect(Map<String, String> literals, Map<Integer, PolicyRule> candidates) {
+            Map<Integer, PolicyRule> smallest = null;
+            for (String variable : variables) {
+                String value = literals.get(variable);
+                if (value == null) {
+                    continue;
+                }
+                Map<String, Map<Integer, PolicyRule>> byValue = policiesByValue.get(variable);
+                Map<Integer, PolicyRule> bucket = byValue == null ? null : byValue.get(value);
+                if (bucket == null) {
+                    // Every clause of this signature has a different value for this variable
+                    return;
+                }
+                if (smallest == null || bucket.size() < smallest.size()) {
+                    smallest = bucket;
+                }
+            }
+            candidates.putAll(smallest == null ? policies : smallest);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import eu.ngpaas.pmlib.ConflictValidator;
+import eu.ngpaas.pmlib.PolicyRule;
+
+/**
+ * Undirected graph of the conflicts between policies: two policies are
+ * neighbours if ConflictValidator.detectConflict finds them in conflict
+ * (including duplicates). Whether two policies conflict depends neither on
+ * their states nor on their priorities, so the edges of a policy are
+ * computed once, when it is added, and removed with it. The conflict
+ * validation of a policy in the graph is then a lookup of its neighbours,
+ * and only the neighbours of a policy can be unblocked when it leaves the
+ * ENFORCED state.
+ * <p>
+ * Not thread-safe.
+ */
+public class ConflictGraph {
+
+    /**
+     * Policy id to its neighbours, by id
+     */
+    private final Map<Integer, Map<Integer, PolicyRule>> neighbours = new HashMap<>();
+
+    /**
+     * Adds a policy, linking it to the candidates it conflicts with. If a
+     * policy with the same id is in the graph, it is replaced.
+     *
+     * @param pr         the policy rule
+     * @param candidates the policies in the graph that may conflict with it, e.g. the ones found in a
+     *                   ConditionIndex; the other ones must not conflict with it
+     */
+    public void add(PolicyRule pr, Collection<PolicyRule> candidates) {
+        remove(pr.getId());
+        Map<Integer, PolicyRule> adjacent = new TreeMap<>();
+        for (PolicyRule candidate : candidates) {
+            Map<Integer, PolicyRule> candidateAdjacent = neighbours.get(candidate.getId());
+            if (candidate.getId() == pr.getId() || candidateAdjacent == null) {
+                continue;
+            }
+            if (!ConflictValidator.detectConflict(pr, candidate).isSuccess()) {
+                adjacent.put(candidate.getId(), candidate);
+                candidateAdjacent.put(pr.getId(), pr);
+            }
+        }
+        neighbours.put(pr.getId(), adjacent);
+    }
+
+    /**
+     * Removes a policy and its edges.
+     *
+     * @param id the policy identifier
+     * @return the former neighbours of the policy, by id, or an empty list if it was not in the graph
+     */
+    public List<PolicyRule> remove(int id) {
+        Map<Integer, PolicyRule> adjacent = neighbours.remove(id);
+        if (adjacent == null) {
+            return Collections.emptyList();
+        }
+        for (Integer neighbour : adjacent.keySet()) {
+            neighbours.get(neighbour).remove(id);
+        }
+        return new ArrayList<>(adjacent.values());
+    }
+
+    /**
+     * Checks if a policy is in the graph.
+     *
+     * @param id the policy identifier
+     * @return true or false
+     */
+    public boolean contains(int id) {
+        return neighbours.containsKey(id);
+    }
+
+    /**
+     * Returns the neighbours of a policy.
+     *
+     * @param id the policy identifier
+     * @return the policies in conflict with it, by id, or an empty list if it is not in the graph
+     */
+    public List<PolicyRule> neighbours(int id) {
+        Map<Integer, PolicyRule> adjacent = neighbours.get(id);
+        return adjacent == null ? Collections.emptyList() : new ArrayList<>(adjacent.values());
+    }
+
+    /**
+     * Removes all the policies.
+     */
+    public void clear() {
+        neighbours.clear();
+    }
+}
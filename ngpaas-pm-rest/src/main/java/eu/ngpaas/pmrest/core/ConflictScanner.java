@@ -0,0 +1,145 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import eu.ngpaas.pmlib.ConflictValidator;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.SimpleResponse;
+
+/**
+ * Checks a new policy rule for conflicts against a set of candidate policy
+ * rules. Sets smaller than a threshold are checked on the calling thread;
+ * larger ones are split in ranges that are checked in parallel on a
+ * ForkJoinPool. The results are merged in the order of the candidates, so
+ * the conflicting rule list is the same as the one of a sequential scan.
+ */
+public class ConflictScanner {
+
+    /**
+     * Number of candidates checked by a single task of the pool
+     */
+    private static final int LEAF_SIZE = 512;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * Constructs a scanner.
+     *
+     * @param parallelism number of threads of the pool
+     * @param threshold   minimum number of candidates checked in parallel
+     */
+    public ConflictScanner(int parallelism, int threshold) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the candidates in conflict with the new policy rule (including
+     * the duplicated ones), in the order of the candidates. If the new policy
+     * rule duplicates a candidate, it takes the id of the candidate, as
+     * ConflictValidator.checkConflict does.
+     *
+     * @param npRule     the new policy rule
+     * @param candidates the candidate policy rules
+     * @return the conflicting rule list
+     */
+    public ArrayList<PolicyRule> scan(PolicyRule npRule, Collection<PolicyRule> candidates) {
+        return scan(npRule, candidates, true);
+    }
+
+    /**
+     * Returns the candidates in conflict with the policy rule (including the
+     * duplicated ones), in the order of the candidates, like scan, but
+     * without modifying the policy rule, which must be in its canonical form.
+     * Stored policy rules can then be checked while others read them.
+     *
+     * @param npRule     the policy rule, in its canonical form
+     * @param candidates the candidate policy rules
+     * @return the conflicting rule list
+     */
+    public ArrayList<PolicyRule> detect(PolicyRule npRule, Collection<PolicyRule> candidates) {
+        if (!npRule.isCanonical()) {
+            throw new IllegalArgumentException("Policy [" + npRule.getId() + "] is not in its canonical form");
+        }
+        return scan(npRule, candidates, false);
+    }
+
+    private ArrayList<PolicyRule> scan(PolicyRule npRule, Collection<PolicyRule> candidates,
+                                       boolean takeDuplicateId) {
+        ArrayList<PolicyRule> crl = new ArrayList<>();
+        if (candidates.size() < threshold) {
+            for (PolicyRule apRule : candidates) {
+                SimpleResponse sr = takeDuplicateId ? ConflictValidator.checkConflict(npRule, apRule)
+                                                    : ConflictValidator.detectConflict(npRule, apRule);
+                if (!sr.isSuccess()) {
+                    crl.add(apRule);
+                }
+            }
+            return crl;
+        }
+
+        List<PolicyRule> rules = new ArrayList<>(candidates);
+        SimpleResponse[] results = new SimpleResponse[rules.size()];
+        // The tasks only read the new rule, so it is put in its canonical form beforehand
+        if (!npRule.isCanonical()) {
+            npRule.canonicalize();
+        }
+        pool.invoke(new ScanTask(npRule, rules, results, 0, rules.size()));
+
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isSuccess()) {
+                if (takeDuplicateId && results[i].getCode() == 2) {
+                    npRule.setId(rules.get(i).getId());
+                }
+                crl.add(rules.get(i));
+            }
+        }
+        return crl;
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Checks a range of candidates, splitting it while it is larger than
+     * LEAF_SIZE.
+     */
+    private static final class ScanTask extends RecursiveAction {
+
+        private final PolicyRule npRule;
+        private final List<PolicyRule> rules;
+        private final SimpleResponse[] results;
+        private final int from;
+        private final int to;
+
+        private ScanTask(PolicyRule npRule, List<PolicyRule> rules, SimpleResponse[] results, int from, int to) {
+            this.npRule = npRule;
+            this.rules = rules;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                for (int i = from; i < to; i++) {
+                    results[i] = ConflictValidator.detectConflict(npRule, rules.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ScanTask(npRule, rules, results, from, middle),
+                      new ScanTask(npRule, rules, results, middle, to));
+        }
+    }
+}
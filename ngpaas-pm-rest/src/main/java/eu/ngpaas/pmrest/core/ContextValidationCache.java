@@ -0,0 +1,173 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.ngpaas.pmlib.PolicyAction;
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.SimpleResponse;
+
+/**
+ * Caches the results of the context validation of the policies, keyed by
+ * the fingerprint of the policy, so that a new policy equal to one validated
+ * before hits the cache whether it has an id yet or not. Each entry keeps
+ * the content of its policy, which is compared on every hit, so a policy
+ * whose fingerprint collides with another one never gets its result. Only
+ * policies in their canonical form are cached. Entries expire after a TTL
+ * and are invalidated explicitly when the network changes, since the
+ * context validation depends on the state of the network. Expired entries
+ * are swept when the cache is full; while it stays full, new results are
+ * not stored.
+ */
+public class ContextValidationCache {
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation of the whole cache, so that results
+     * requested before a network change are not stored after it.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Constructs a cache.
+     *
+     * @param ttlMillis  time a result is considered valid
+     * @param maxEntries maximum number of cached results
+     */
+    public ContextValidationCache(long ttlMillis, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached context validation result of a policy.
+     *
+     * @param pr the policy rule
+     * @return the cached result, or null if there is no valid one
+     */
+    public SimpleResponse get(PolicyRule pr) {
+        if (!pr.isCanonical()) {
+            return null;
+        }
+        long fingerprint = pr.getFingerprint();
+        Entry entry = entries.get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        if (isStale(entry, System.nanoTime())) {
+            entries.remove(fingerprint, entry);
+            return null;
+        }
+        return entry.content.equals(contentOf(pr)) ? entry.result : null;
+    }
+
+    /**
+     * Returns the current generation of the cache. It has to be read before
+     * requesting a context validation and passed to put.
+     *
+     * @return the generation
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Stores the context validation result of a policy, unless the cache has
+     * been invalidated since the given generation. Results of calls that did
+     * not reach the policy type app are not stored.
+     *
+     * @param pr         the policy rule
+     * @param generation the generation read before the validation was requested
+     * @param result     the result of the context validation
+     */
+    public void put(PolicyRule pr, long generation, SimpleResponse result) {
+        if (!pr.isCanonical() || result.getCode() >= 500 || generation != this.generation.get()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (entries.size() >= maxEntries) {
+            entries.values().removeIf(entry -> isStale(entry, now));
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+        entries.put(pr.getFingerprint(), new Entry(contentOf(pr), generation, now, result));
+    }
+
+    /**
+     * Removes the cached result of a policy. Must be called before its
+     * priority changes, since the priority is part of its fingerprint.
+     *
+     * @param pr the policy rule
+     */
+    public void invalidate(PolicyRule pr) {
+        entries.remove(pr.getFingerprint());
+    }
+
+    /**
+     * Returns the number of cached results, including the stale ones that
+     * have not been removed yet.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isStale(Entry entry, long now) {
+        return entry.generation != generation.get() || now - entry.timestamp > ttlNanos;
+    }
+
+    /**
+     * Returns the type, priority, conditions and actions of a canonical
+     * policy, as immutable values that can be compared with equals.
+     */
+    private static List<Object> contentOf(PolicyRule pr) {
+        List<List<String>> conditions = new ArrayList<>();
+        for (List<PolicyCondition> clause : pr.getPolicyConditions()) {
+            List<String> literals = new ArrayList<>();
+            for (PolicyCondition pc : clause) {
+                literals.add(pc.getPolicyVariable());
+                literals.add(pc.getPolicyValue());
+            }
+            conditions.add(literals);
+        }
+        List<String> actions = new ArrayList<>();
+        for (PolicyAction pa : pr.getPolicyActions()) {
+            actions.add(pa.getPolicyVariable());
+            actions.add(pa.getPolicyValue());
+        }
+        return Arrays.asList(pr.getType(), pr.getPriority(), conditions, actions);
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    private static final class Entry {
+        private final List<Object> content;
+        private final long generation;
+        private final long timestamp;
+        private final SimpleResponse result;
+
+        private Entry(List<Object> content, long generation, long timestamp, SimpleResponse result) {
+            this.content = content;
+            this.generation = generation;
+            this.timestamp = timestamp;
+            this.result = result;
+        }
+    }
+}
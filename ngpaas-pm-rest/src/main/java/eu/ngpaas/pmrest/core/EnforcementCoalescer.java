@@ -0,0 +1,332 @@
+package eu.ngpaas.pmrest.core;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import eu.ngpaas.pmlib.PolicyCodec;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyService;
+import eu.ngpaas.pmlib.SimpleResponse;
+import org.slf4j.Logger;
+
+/**
+ * Groups the enforce and remove calls of each policy type within a short
+ * time window (or until a maximum batch size is reached) and sends each
+ * group to the enforceall/removeall endpoint of the policy type app in a
+ * single request. Policy types whose app does not expose the batch
+ * endpoints are detected on the first attempt and get per-rule calls from
+ * then on. Policy types served in-process get each group through
+ * PolicyService.enforceAll/removeAll instead, and their rules are never
+ * serialized. Calls of a type always reach the app in submission order.
+ */
+public class EnforcementCoalescer {
+
+    private static final byte[] BATCH_PREFIX = "{\"policies\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+
+    private final Logger log = getLogger(getClass());
+
+    private final PolicyTypeClient client;
+    private final LocalPolicyServices localServices;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Policy type to its queue of pending operations
+     */
+    private final ConcurrentMap<String, TypeQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Policy types whose app does not support the batch endpoints
+     */
+    private final Set<String> unbatchedTypes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of operations queued so far
+     */
+    private final AtomicLong submitted = new AtomicLong();
+
+    /**
+     * Constructs a coalescer on top of a policy type client.
+     *
+     * @param client        the client of the policy type apps
+     * @param localServices the policy type apps served in-process
+     * @param windowMillis time an operation may wait for others of the same type
+     * @param maxBatchSize number of operations that triggers an immediate flush
+     */
+    public EnforcementCoalescer(PolicyTypeClient client, LocalPolicyServices localServices, long windowMillis,
+                                int maxBatchSize) {
+        this.client = client;
+        this.localServices = localServices;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "policy-enforcement-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues the enforcement of a policy rule.
+     *
+     * @param type the policy type
+     * @param pr   the policy rule
+     * @return a future with the reply of the policy type app
+     */
+    public CompletableFuture<SimpleResponse> enforce(String type, PolicyRule pr) {
+        return submit(type, Operation.ENFORCE, pr);
+    }
+
+    /**
+     * Queues the removal of a policy rule.
+     *
+     * @param type the policy type
+     * @param pr   the policy rule
+     * @return a future with the reply of the policy type app
+     */
+    public CompletableFuture<SimpleResponse> remove(String type, PolicyRule pr) {
+        return submit(type, Operation.REMOVE, pr);
+    }
+
+    /**
+     * Stops the flush timer. Operations already queued are flushed.
+     */
+    public void close() {
+        timer.shutdown();
+        for (TypeQueue queue : queues.values()) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Flushes the queued operations and waits until every operation has
+     * been answered, for tests. Operations queued while waiting are flushed
+     * and waited for too.
+     *
+     * @param deadlineNanos the time to give up at, from System.nanoTime()
+     * @return the number of operations queued so far, or -1 if the deadline passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long awaitIdle(long deadlineNanos) throws InterruptedException {
+        long count;
+        do {
+            count = submitted.get();
+            for (TypeQueue queue : queues.values()) {
+                try {
+                    queue.drain().get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    return -1;
+                } catch (ExecutionException e) {
+                    // The failures of a group are reported to its operations
+                }
+            }
+        } while (count != submitted.get());
+        return count;
+    }
+
+    private CompletableFuture<SimpleResponse> submit(String type, Operation operation, PolicyRule pr) {
+        // Rules sent through REST are serialized as they are when submitted
+        Pending pending = new Pending(operation, pr, localServices.get(type) == null ? toJson(pr) : null);
+        queues.computeIfAbsent(type, TypeQueue::new).add(pending);
+        // Counted once queued, so that awaitIdle either flushes it or waits again
+        submitted.incrementAndGet();
+        return pending.future;
+    }
+
+    private enum Operation {
+        ENFORCE("enforce", "enforceall"),
+        REMOVE("remove", "removeall");
+
+        private final String endpoint;
+        private final String batchEndpoint;
+
+        Operation(String endpoint, String batchEndpoint) {
+            this.endpoint = endpoint;
+            this.batchEndpoint = batchEndpoint;
+        }
+    }
+
+    private static byte[] toJson(PolicyRule pr) {
+        try {
+            return PolicyCodec.toJsonBytes(pr);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Pending {
+        private final Operation operation;
+        private final PolicyRule pr;
+        /**
+         * The policy rule in JSON; null if it was submitted for an in-process policy type
+         */
+        private byte[] body;
+        private final CompletableFuture<SimpleResponse> future = new CompletableFuture<>();
+
+        private Pending(Operation operation, PolicyRule pr, byte[] body) {
+            this.operation = operation;
+            this.pr = pr;
+            this.body = body;
+        }
+
+        private byte[] body() {
+            if (body == null) {
+                body = toJson(pr);
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Pending operations of a single policy type.
+     */
+    private final class TypeQueue {
+
+        private final String type;
+        private List<Pending> pending = new ArrayList<>();
+        private boolean flushScheduled = false;
+
+        /**
+         * Completes when every flushed group of this type has been answered.
+         * Groups are chained to it so they reach the app in order.
+         */
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+        private TypeQueue(String type) {
+            this.type = type;
+        }
+
+        private synchronized void add(Pending op) {
+            pending.add(op);
+            if (pending.size() >= maxBatchSize) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                try {
+                    timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    // The timer is stopped, do not wait for more operations
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Flushes the pending operations.
+         *
+         * @return a future completed when every flushed group has been answered
+         */
+        private synchronized CompletableFuture<Void> drain() {
+            flush();
+            return tail;
+        }
+
+        private synchronized void flush() {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<Pending> ops = pending;
+            pending = new ArrayList<>();
+            // Consecutive operations of the same kind form a group
+            int start = 0;
+            for (int i = 1; i <= ops.size(); i++) {
+                if (i == ops.size() || ops.get(i).operation != ops.get(start).operation) {
+                    List<Pending> group = ops.subList(start, i);
+                    tail = tail.thenCompose(v -> send(group)).handle((v, t) -> {
+                        if (t != null) {
+                            group.forEach(op -> op.future.completeExceptionally(t));
+                        }
+                        return null;
+                    });
+                    start = i;
+                }
+            }
+        }
+
+        private CompletableFuture<Void> send(List<Pending> group) {
+            PolicyService service = localServices.get(type);
+            if (service != null) {
+                return sendLocal(service, group);
+            }
+            if (group.size() == 1 || unbatchedTypes.contains(type)) {
+                return sendEach(group);
+            }
+            Operation operation = group.get(0).operation;
+            return client.postOrdered(type, operation.batchEndpoint, batchBody(group))
+                         .thenCompose(response -> {
+                             if (response.getCode() == 404 || response.getCode() == 405) {
+                                 log.info("Policy type {} does not support batches, using per-rule calls", type);
+                                 unbatchedTypes.add(type);
+                                 return sendEach(group);
+                             }
+                             for (Pending op : group) {
+                                 op.future.complete(response);
+                             }
+                             return CompletableFuture.completedFuture(null);
+                         });
+        }
+
+        private CompletableFuture<Void> sendLocal(PolicyService service, List<Pending> group) {
+            Operation operation = group.get(0).operation;
+            List<PolicyRule> rules = new ArrayList<>(group.size());
+            for (Pending op : group) {
+                rules.add(op.pr);
+            }
+            return client.invokeOrdered(type, operation.batchEndpoint, () -> {
+                if (operation == Operation.ENFORCE) {
+                    service.enforceAll(rules);
+                    return new SimpleResponse("Policies enforced", true);
+                }
+                service.removeAll(rules);
+                return new SimpleResponse("Policies removed", true);
+            }).thenAccept(response -> {
+                for (Pending op : group) {
+                    op.future.complete(response);
+                }
+            });
+        }
+
+        private CompletableFuture<Void> sendEach(List<Pending> group) {
+            List<CompletableFuture<Void>> calls = new ArrayList<>();
+            for (Pending op : group) {
+                CompletableFuture<SimpleResponse> call = client.postOrdered(type, op.operation.endpoint, op.body());
+                // The group completes once the operations have been answered
+                calls.add(call.thenAccept(op.future::complete));
+            }
+            return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0]));
+        }
+
+        private byte[] batchBody(List<Pending> group) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(BATCH_PREFIX, 0, BATCH_PREFIX.length);
+            for (int i = 0; i < group.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                byte[] body = group.get(i).body();
+                out.write(body, 0, body.length);
+            }
+            out.write(BATCH_SUFFIX, 0, BATCH_SUFFIX.length);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.ngpaas.pmlib.HeaderSpace;
+import org.onlab.packet.Ip4Prefix;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+
+/**
+ * Local copy of the flow rules of the network, indexed by device and
+ * priority. Flow rules can only conflict with flow rules of the same
+ * priority on the same device, so the flow-level conflict validation only
+ * looks at the entries of a (device, priority) pair instead of every flow
+ * entry of every device. Within a pair, the IPv4 source and destination
+ * prefixes of the rules are kept in an Ip4PrefixTrie, so the rules whose
+ * prefixes overlap the ones of a new rule are found without comparing
+ * every pair of prefixes, and the HeaderSpace of each rule is kept to
+ * discard the ones that differ on other fields. The index is loaded once
+ * from the FlowRuleService and kept current with its events.
+ */
+public class FlowEntryIndex {
+
+    /**
+     * Device to priority to the flow rules
+     */
+    private final ConcurrentMap<DeviceId, ConcurrentMap<Integer, Bucket>> devices = new ConcurrentHashMap<>();
+
+    /**
+     * Adds flow rules, e.g. the flow entries of a device listed by the
+     * FlowRuleService.
+     *
+     * @param rules the flow rules
+     */
+    public void load(Iterable<? extends FlowRule> rules) {
+        for (FlowRule rule : rules) {
+            add(rule);
+        }
+    }
+
+    /**
+     * Adds or replaces a flow rule.
+     *
+     * @param rule the flow rule
+     */
+    public void add(FlowRule rule) {
+        devices.computeIfAbsent(rule.deviceId(), d -> new ConcurrentHashMap<>())
+               .computeIfAbsent(rule.priority(), p -> new Bucket())
+               .add(rule);
+    }
+
+    /**
+     * Removes a flow rule.
+     *
+     * @param rule the flow rule
+     */
+    public void remove(FlowRule rule) {
+        ConcurrentMap<Integer, Bucket> priorities = devices.get(rule.deviceId());
+        if (priorities == null) {
+            return;
+        }
+        // Empty buckets are kept: they are few and are likely to be filled again
+        Bucket bucket = priorities.get(rule.priority());
+        if (bucket != null) {
+            bucket.remove(rule.id().value());
+        }
+    }
+
+    /**
+     * Removes all the flow rules of a device.
+     *
+     * @param deviceId the device
+     */
+    public void removeDevice(DeviceId deviceId) {
+        devices.remove(deviceId);
+    }
+
+    /**
+     * Updates the index with a flow rule event. Rules requested to be added
+     * are indexed at once, and are only removed when their removal is
+     * confirmed, as the FlowRuleService lists them in the meantime.
+     *
+     * @param event the event
+     */
+    public void update(FlowRuleEvent event) {
+        switch (event.type()) {
+            case RULE_ADD_REQUESTED:
+            case RULE_ADDED:
+            case RULE_UPDATED:
+                add(event.subject());
+                break;
+            case RULE_REMOVED:
+                remove(event.subject());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the flow rules of a device with a given priority.
+     *
+     * @param deviceId the device
+     * @param priority the priority
+     * @return a copy of the flow rules
+     */
+    public Collection<FlowRule> get(DeviceId deviceId, int priority) {
+        Bucket bucket = bucketOf(deviceId, priority);
+        return bucket == null ? Collections.emptyList() : bucket.getAll();
+    }
+
+    /**
+     * Returns the flow rules of a device with a given priority whose header
+     * space overlaps the one of a selector. The rules excluded cannot
+     * conflict with a rule with the selector, as
+     * ConflictValidator.newCheckConflict would find them independent.
+     *
+     * @param deviceId the device
+     * @param priority the priority
+     * @param selector the selector of the new flow rule
+     * @return the candidate flow rules
+     */
+    public Collection<FlowRule> getCandidates(DeviceId deviceId, int priority, TrafficSelector selector) {
+        Bucket bucket = bucketOf(deviceId, priority);
+        return bucket == null ? Collections.emptyList() :
+            bucket.getCandidates(HeaderSpace.of(selector), prefixOf(selector, Criterion.Type.IPV4_SRC),
+                                 prefixOf(selector, Criterion.Type.IPV4_DST));
+    }
+
+    /**
+     * Removes all the flow rules.
+     */
+    public void clear() {
+        devices.clear();
+    }
+
+    private Bucket bucketOf(DeviceId deviceId, int priority) {
+        ConcurrentMap<Integer, Bucket> priorities = devices.get(deviceId);
+        return priorities == null ? null : priorities.get(priority);
+    }
+
+    /**
+     * Returns the IPv4 prefix a selector matches on a field, or null if it
+     * does not match on it or the prefix is not IPv4.
+     */
+    private static Ip4Prefix prefixOf(TrafficSelector selector, Criterion.Type type) {
+        Criterion criterion = selector.getCriterion(type);
+        if (!(criterion instanceof IPCriterion)) {
+            return null;
+        }
+        return ((IPCriterion) criterion).ip().getIp4Prefix();
+    }
+
+    /**
+     * The flow rules of a device with a given priority, by flow id, with
+     * their header spaces and their IPv4 prefixes indexed.
+     */
+    private static final class Bucket {
+
+        private final Map<Long, FlowRule> rules = new HashMap<>();
+        private final Map<Long, HeaderSpace> spaces = new HashMap<>();
+        private final Field source = new Field(Criterion.Type.IPV4_SRC);
+        private final Field destination = new Field(Criterion.Type.IPV4_DST);
+
+        private synchronized void add(FlowRule rule) {
+            long id = rule.id().value();
+            FlowRule previous = rules.put(id, rule);
+            if (previous != null) {
+                source.remove(id, previous);
+                destination.remove(id, previous);
+            }
+            spaces.put(id, HeaderSpace.of(rule.selector()));
+            source.add(id, rule);
+            destination.add(id, rule);
+        }
+
+        private synchronized void remove(long id) {
+            FlowRule previous = rules.remove(id);
+            spaces.remove(id);
+            if (previous != null) {
+                source.remove(id, previous);
+                destination.remove(id, previous);
+            }
+        }
+
+        private synchronized Collection<FlowRule> getAll() {
+            return new ArrayList<>(rules.values());
+        }
+
+        private synchronized Collection<FlowRule> getCandidates(HeaderSpace space, Ip4Prefix sourcePrefix,
+                                                                Ip4Prefix destinationPrefix) {
+            // The field with fewer candidates is used to select them, the header space is checked afterwards
+            Collection<Long> ids = rules.keySet();
+            if (sourcePrefix != null) {
+                List<Long> bySource = source.candidates(sourcePrefix);
+                if (bySource.size() < ids.size()) {
+                    ids = bySource;
+                }
+            }
+            if (destinationPrefix != null) {
+                List<Long> byDestination = destination.candidates(destinationPrefix);
+                if (byDestination.size() < ids.size()) {
+                    ids = byDestination;
+                }
+            }
+            List<FlowRule> candidates = new ArrayList<>();
+            for (Long id : ids) {
+                if (spaces.get(id).overlaps(space)) {
+                    candidates.add(rules.get(id));
+                }
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * The prefixes of the flow rules of a bucket on one IPv4 field.
+     */
+    private static final class Field {
+
+        private final Criterion.Type type;
+        private final Ip4PrefixTrie<Long> prefixes = new Ip4PrefixTrie<>();
+
+        /**
+         * Rules that do not match on the field with an IPv4 prefix, so they
+         * are candidates for any prefix
+         */
+        private final Set<Long> wildcards = new HashSet<>();
+
+        private Field(Criterion.Type type) {
+            this.type = type;
+        }
+
+        private void add(long id, FlowRule rule) {
+            Ip4Prefix prefix = prefixOf(rule.selector(), type);
+            if (prefix == null) {
+                wildcards.add(id);
+            } else {
+                prefixes.add(prefix.address().toInt(), prefix.prefixLength(), id);
+            }
+        }
+
+        private void remove(long id, FlowRule rule) {
+            Ip4Prefix prefix = prefixOf(rule.selector(), type);
+            if (prefix == null) {
+                wildcards.remove(id);
+            } else {
+                prefixes.remove(prefix.address().toInt(), prefix.prefixLength(), id);
+            }
+        }
+
+        private List<Long> candidates(Ip4Prefix prefix) {
+            List<Long> ids = new ArrayList<>(wildcards);
+            prefixes.forEachOverlapping(prefix.address().toInt(), prefix.prefixLength(), ids::add);
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Binary trie of IPv4 prefixes. Each value is stored in the node reached by
+ * following the bits of its prefix from the most significant one, so the
+ * prefixes containing a given prefix are the ones stored on the path to its
+ * node, and the prefixes it contains are the ones stored under its node.
+ * Both queries walk at most 32 nodes, plus the size of the subtree for the
+ * contained prefixes. Bits of an address beyond the prefix length are
+ * ignored. Not thread-safe.
+ *
+ * @param <V> the type of the values
+ */
+public class Ip4PrefixTrie<V> {
+
+    private final Node<V> root = new Node<>();
+    private int size = 0;
+
+    /**
+     * Adds a value with a prefix. A value is stored at most once per prefix.
+     *
+     * @param address the address of the prefix, as a 32-bit integer
+     * @param length  the prefix length, from 0 to 32
+     * @param value   the value
+     */
+    public void add(int address, int length, V value) {
+        Node<V> node = root;
+        for (int depth = 0; depth < length; depth++) {
+            int bit = bitAt(address, depth);
+            if (node.children[bit] == null) {
+                node.children[bit] = new Node<>();
+            }
+            node = node.children[bit];
+        }
+        if (node.values == null) {
+            node.values = new HashSet<>();
+        }
+        if (node.values.add(value)) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes a value with a prefix. The nodes left empty are released.
+     *
+     * @param address the address of the prefix, as a 32-bit integer
+     * @param length  the prefix length, from 0 to 32
+     * @param value   the value
+     * @return true if the value was stored with the prefix
+     */
+    public boolean remove(int address, int length, V value) {
+        @SuppressWarnings("unchecked")
+        Node<V>[] path = new Node[length + 1];
+        Node<V> node = root;
+        path[0] = node;
+        for (int depth = 0; depth < length; depth++) {
+            node = node.children[bitAt(address, depth)];
+            if (node == null) {
+                return false;
+            }
+            path[depth + 1] = node;
+        }
+        if (node.values == null || !node.values.remove(value)) {
+            return false;
+        }
+        size--;
+        if (node.values.isEmpty()) {
+            node.values = null;
+        }
+        // Unlinks the nodes without values nor children, from the bottom
+        for (int depth = length; depth > 0 && path[depth].isEmpty(); depth--) {
+            path[depth - 1].children[bitAt(address, depth - 1)] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Passes the values whose prefix contains the given prefix (including
+     * the ones with the same prefix) to an action.
+     *
+     * @param address the address of the prefix, as a 32-bit integer
+     * @param length  the prefix length, from 0 to 32
+     * @param action  the action
+     */
+    public void forEachContaining(int address, int length, Consumer<? super V> action) {
+        Node<V> node = root;
+        for (int depth = 0; node != null; depth++) {
+            if (node.values != null) {
+                node.values.forEach(action);
+            }
+            if (depth == length) {
+                return;
+            }
+            node = node.children[bitAt(address, depth)];
+        }
+    }
+
+    /**
+     * Passes the values whose prefix is contained in the given prefix
+     * (including the ones with the same prefix) to an action.
+     *
+     * @param address the address of the prefix, as a 32-bit integer
+     * @param length  the prefix length, from 0 to 32
+     * @param action  the action
+     */
+    public void forEachContained(int address, int length, Consumer<? super V> action) {
+        Node<V> node = root;
+        for (int depth = 0; depth < length && node != null; depth++) {
+            node = node.children[bitAt(address, depth)];
+        }
+        if (node != null) {
+            forEachIn(node, action);
+        }
+    }
+
+    /**
+     * Passes the values whose prefix overlaps the given prefix, i.e.
+     * contains it or is contained in it, to an action. Each value is passed
+     * once per prefix it is stored with.
+     *
+     * @param address the address of the prefix, as a 32-bit integer
+     * @param length  the prefix length, from 0 to 32
+     * @param action  the action
+     */
+    public void forEachOverlapping(int address, int length, Consumer<? super V> action) {
+        Node<V> node = root;
+        for (int depth = 0; depth < length && node != null; depth++) {
+            if (node.values != null) {
+                node.values.forEach(action);
+            }
+            node = node.children[bitAt(address, depth)];
+        }
+        if (node != null) {
+            forEachIn(node, action);
+        }
+    }
+
+    /**
+     * Returns the number of values stored.
+     *
+     * @return the size
+     */
+    public int size() {
+        return size;
+    }
+
+    private static <V> void forEachIn(Node<V> node, Consumer<? super V> action) {
+        if (node.values != null) {
+            node.values.forEach(action);
+        }
+        for (Node<V> child : node.children) {
+            if (child != null) {
+                forEachIn(child, action);
+            }
+        }
+    }
+
+    private static int bitAt(int address, int depth) {
+        return (address >>> (31 - depth)) & 1;
+    }
+
+    private static final class Node<V> {
+
+        @SuppressWarnings("unchecked")
+        private final Node<V>[] children = new Node[2];
+        private Set<V> values;
+
+        private boolean isEmpty() {
+            return values == null && children[0] == null && children[1] == null;
+        }
+    }
+}
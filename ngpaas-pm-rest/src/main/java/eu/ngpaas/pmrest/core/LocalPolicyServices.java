@@ -0,0 +1,62 @@
+package eu.ngpaas.pmrest.core;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.ngpaas.pmlib.PolicyService;
+import org.slf4j.Logger;
+
+/**
+ * The PolicyService implementations registered in the same JVM, by policy
+ * type. The policy types without a local service are reached through the
+ * REST endpoints of their app.
+ */
+public class LocalPolicyServices {
+
+    private final Logger log = getLogger(getClass());
+
+    /**
+     * Upper-cased policy type to its service
+     */
+    private final ConcurrentMap<String, PolicyService> services = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a service. Services that do not tell their policy type are ignored.
+     *
+     * @param service the policy service
+     */
+    public void add(PolicyService service) {
+        String type = service.getPolicyType();
+        if (type == null) {
+            log.info("Policy service {} has no policy type, using its REST endpoints",
+                     service.getClass().getName());
+            return;
+        }
+        services.put(type.toUpperCase(), service);
+        log.info("Policy type {} is served in-process by {}", type.toUpperCase(), service.getClass().getName());
+    }
+
+    /**
+     * Unregisters a service, if it is the registered one of its policy type.
+     *
+     * @param service the policy service
+     */
+    public void remove(PolicyService service) {
+        String type = service.getPolicyType();
+        if (type != null && services.remove(type.toUpperCase(), service)) {
+            log.info("Policy type {} is served through its REST endpoints", type.toUpperCase());
+        }
+    }
+
+    /**
+     * Returns the local service of a policy type.
+     *
+     * @param type the policy type
+     * @return the policy service, or null if the type has to be reached through REST
+     */
+    public PolicyService get(String type) {
+        return type == null ? null : services.get(type.toUpperCase());
+    }
+}
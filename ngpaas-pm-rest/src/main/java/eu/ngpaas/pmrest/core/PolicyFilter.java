@@ -0,0 +1,61 @@
+package eu.ngpaas.pmrest.core;
+
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyState;
+
+/**
+ * Selects policies by type, state and priority range. The criteria that are
+ * not set match every policy.
+ */
+public final class PolicyFilter {
+
+    private final String type;
+    private final PolicyState state;
+    private final int minPriority;
+    private final int maxPriority;
+
+    /**
+     * Constructs a filter.
+     *
+     * @param type        the policy type, or null for any type
+     * @param state       the policy state, or null for any state
+     * @param minPriority the minimum priority, inclusive
+     * @param maxPriority the maximum priority, inclusive
+     */
+    public PolicyFilter(String type, PolicyState state, int minPriority, int maxPriority) {
+        this.type = type;
+        this.state = state;
+        this.minPriority = minPriority;
+        this.maxPriority = maxPriority;
+    }
+
+    /**
+     * Returns a filter that matches every policy.
+     *
+     * @return the filter
+     */
+    public static PolicyFilter all() {
+        return new PolicyFilter(null, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public PolicyState getState() {
+        return state;
+    }
+
+    /**
+     * Returns whether a policy meets every criterion of the filter.
+     *
+     * @param pr the policy rule
+     * @return true or false
+     */
+    public boolean matches(PolicyRule pr) {
+        return (type == null || type.equals(pr.getType()))
+               && (state == null || state == pr.getState())
+               && pr.getPriority() >= minPriority
+               && pr.getPriority() <= maxPriority;
+    }
+}
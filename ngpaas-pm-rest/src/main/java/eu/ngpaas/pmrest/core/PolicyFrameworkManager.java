@@ -2,48 +2,64 @@ package eu.ngpaas.pmrest.core;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import eu.ngpaas.pmlib.ConflictValidator;
 import eu.ngpaas.pmlib.ForwardingObjectiveList;
 import eu.ngpaas.pmlib.PolicyAction;
-import eu.ngpaas.pmlib.PolicyCollector;
+import eu.ngpaas.pmlib.PolicyCodec;
+import eu.ngpaas.pmlib.PolicyHelper;
 import eu.ngpaas.pmlib.PolicyCondition;
 import eu.ngpaas.pmlib.PolicyRule;
 import eu.ngpaas.pmlib.PolicyRules;
+import eu.ngpaas.pmlib.PolicyService;
 import eu.ngpaas.pmlib.PolicyState;
+import eu.ngpaas.pmlib.PolicyTypeSchema;
+import eu.ngpaas.pmlib.PolicyValidator;
 import eu.ngpaas.pmlib.SimpleResponse;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
-import org.glassfish.jersey.client.ClientConfig;
-import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
 import org.onlab.osgi.DefaultServiceDirectory;
 import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
-import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
 import org.slf4j.Logger;
 
 /**
@@ -53,83 +69,350 @@ import org.slf4j.Logger;
 @Service
 public class PolicyFrameworkManager implements PolicyFrameworkService {
 
+    /**
+     * Base URI of the REST endpoints of the policy type apps
+     */
+    private static final String SOUTHBOUND_URI =
+        System.getProperty("eu.ngpaas.pm.southbound.uri", "http://localhost:8181/onos");
+    /**
+     * Number of threads calling the policy type apps
+     */
+    private static final int SOUTHBOUND_POOL_SIZE = Integer.getInteger("eu.ngpaas.pm.southbound.poolSize", 16);
+    /**
+     * Maximum number of concurrent validation calls to a single policy type app
+     */
+    private static final int SOUTHBOUND_MAX_PER_TYPE = Integer.getInteger("eu.ngpaas.pm.southbound.maxPerType", 8);
+    /**
+     * Connect and read timeout of the calls to the policy type apps
+     */
+    private static final int SOUTHBOUND_TIMEOUT_MS = Integer.getInteger("eu.ngpaas.pm.southbound.timeoutMs", 30000);
+    /**
+     * Time an enforce/remove call may wait to be grouped with others of the same type
+     */
+    private static final int ENFORCEMENT_WINDOW_MS = Integer.getInteger("eu.ngpaas.pm.enforcement.windowMs", 5);
+    /**
+     * Number of grouped enforce/remove calls of the same type that are sent without waiting
+     */
+    private static final int ENFORCEMENT_MAX_BATCH = Integer.getInteger("eu.ngpaas.pm.enforcement.maxBatch", 200);
+    /**
+     * Time a context validation result is reused if the network does not change
+     */
+    private static final int CONTEXT_CACHE_TTL_MS = Integer.getInteger("eu.ngpaas.pm.contextCache.ttlMs", 60000);
+    /**
+     * Maximum number of context validation results kept
+     */
+    private static final int CONTEXT_CACHE_MAX_ENTRIES =
+        Integer.getInteger("eu.ngpaas.pm.contextCache.maxEntries", 100000);
+    /**
+     * Number of threads checking large candidate sets for conflicts
+     */
+    private static final int CONFLICT_PARALLELISM =
+        Integer.getInteger("eu.ngpaas.pm.conflict.parallelism", Runtime.getRuntime().availableProcessors());
+    /**
+     * Minimum number of conflict candidates that are checked in parallel
+     */
+    private static final int CONFLICT_PARALLEL_THRESHOLD =
+        Integer.getInteger("eu.ngpaas.pm.conflict.parallelThreshold", 4096);
+    /**
+     * Maximum number of clauses of the DNF form of the conditions of a policy
+     */
+    private static final int DNF_MAX_CLAUSES = Integer.getInteger("eu.ngpaas.pm.dnf.maxClauses", 1024);
+    /**
+     * Number of policies of a stream whose formal and context validations run ahead of their admission
+     */
+    private static final int STREAM_WINDOW = Integer.getInteger("eu.ngpaas.pm.stream.window", 64);
+    /**
+     * Time without removals nor network changes after which pending policies are reconsidered
+     */
+    private static final int REACTIVATION_DEBOUNCE_MS = Integer.getInteger("eu.ngpaas.pm.reactivation.debounceMs", 50);
+    /**
+     * Maximum time pending policies wait to be reconsidered after a removal or a network change
+     */
+    private static final int REACTIVATION_MAX_WAIT_MS = Integer.getInteger("eu.ngpaas.pm.reactivation.maxWaitMs", 500);
+    /**
+     * Checks the flow rules of new policies against the flow rules of the network, keeping an index of the latter
+     */
+    private static final boolean FLOW_CONFLICTS = Boolean.getBoolean("eu.ngpaas.pm.flowConflicts.enabled");
+    /**
+     * Directory of the snapshot and the write-ahead log of the policies. Without it the policies are not persisted
+     */
+    private static final String JOURNAL_DIR = System.getProperty(
+        "eu.ngpaas.pm.journal.dir",
+        System.getProperty("karaf.data") == null ? null : System.getProperty("karaf.data") + "/ngpaas-pm");
+    /**
+     * Maximum time a change of the policies waits to be written to the log with others
+     */
+    private static final int JOURNAL_COMMIT_MS = Integer.getInteger("eu.ngpaas.pm.journal.commitMs", 5);
+    /**
+     * Number of log records after which a snapshot of the policies is taken
+     */
+    private static final int JOURNAL_SNAPSHOT_RECORDS =
+        Integer.getInteger("eu.ngpaas.pm.journal.snapshotRecords", 100000);
+
     private final Logger log = getLogger(getClass());
     /**
      * Contains all the policies of the framework
      */
-    private PolicyRules policies = null;
+    private PolicyStore store = null;
+    /**
+     * Persists the policies of the store, or null if they are not persisted
+     */
+    private PolicyJournal journal = null;
     /**
      * Contains the list of the supported policy types
      */
-    private List<String> policyTypes = new ArrayList<>();
+    private List<String> policyTypes = new CopyOnWriteArrayList<>();
+    /**
+     * Compiled schemas of the policy types that registered one, by policy type
+     */
+    private final ConcurrentMap<String, PolicyValidator> validators = new ConcurrentHashMap<>();
+    /**
+     * Compiled schemas registered by the PolicyServices bound, by service
+     */
+    private final ConcurrentMap<PolicyService, PolicyValidator> serviceValidators = new ConcurrentHashMap<>();
     private AtomicInteger uniqueId = new AtomicInteger();
-    private WebTarget RESTtarget = ClientBuilder.newClient(new ClientConfig())
-                                                .register(HttpAuthenticationFeature.basic("onos", "rocks"))
-                                                .target(UriBuilder.fromUri("http://localhost:8181/onos").build());
-    private ReentrantLock lock = new ReentrantLock();
+    /**
+     * Base URI of the REST endpoints of the policy type apps, SOUTHBOUND_URI unless set before the activation
+     */
+    private volatile String southboundUri = SOUTHBOUND_URI;
+    /**
+     * Policy type apps served in-process, bound as they register their PolicyService
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC,
+        referenceInterface = PolicyService.class, bind = "bindPolicyService", unbind = "unbindPolicyService")
+    private final LocalPolicyServices localServices = new LocalPolicyServices();
+    /**
+     * Client of the REST endpoints of the policy type apps
+     */
+    private PolicyTypeClient southbound = null;
+    /**
+     * Groups the enforce/remove calls to the policy type apps
+     */
+    private EnforcementCoalescer enforcer = null;
+    /**
+     * Results of the context validations, invalidated on network changes
+     */
+    private ContextValidationCache contextCache = null;
+    /**
+     * Reconsiders the pending policies in the background
+     */
+    private ReactivationScheduler reactivation = null;
+    /**
+     * Checks the conflict candidates, in parallel when there are many
+     */
+    private ConflictScanner conflictScanner = null;
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    /**
+     * Flow rules of the network by device and priority, for the flow-level conflict validation. Empty if it is
+     * disabled
+     */
+    private final FlowEntryIndex flowEntries = new FlowEntryIndex();
+    /**
+     * Latencies and counters of the admission of policies
+     */
+    private final AdmissionMetrics metrics = new AdmissionMetrics();
+    /**
+     * Locks of the policies, one per policy type
+     */
+    private final PolicyTypeLocks locks = new PolicyTypeLocks(metrics);
 
     @Activate
     public void activate() {
         log.info("Policy Service started");
-        this.policies = new PolicyRules();
+        this.store = new PolicyStore();
+        restorePolicies();
+        this.southbound = new PolicyTypeClient(UriBuilder.fromUri(southboundUri).build(),
+                                               "onos", "rocks", SOUTHBOUND_POOL_SIZE, SOUTHBOUND_MAX_PER_TYPE,
+                                               SOUTHBOUND_TIMEOUT_MS, metrics);
+        this.enforcer = new EnforcementCoalescer(southbound, localServices, ENFORCEMENT_WINDOW_MS,
+                                                 ENFORCEMENT_MAX_BATCH);
+        this.contextCache = new ContextValidationCache(CONTEXT_CACHE_TTL_MS, CONTEXT_CACHE_MAX_ENTRIES);
+        this.conflictScanner = new ConflictScanner(CONFLICT_PARALLELISM, CONFLICT_PARALLEL_THRESHOLD);
+        this.reactivation = new ReactivationScheduler(this::reactivatePendingPolicies, REACTIVATION_DEBOUNCE_MS,
+                                                     REACTIVATION_MAX_WAIT_MS);
+        DeviceService deviceService = lookupService(DeviceService.class);
+        if (deviceService != null) {
+            deviceService.addListener(deviceListener);
+        }
+        TopologyService topologyService = lookupService(TopologyService.class);
+        if (topologyService != null) {
+            topologyService.addListener(topologyListener);
+        }
+        FlowRuleService flowRuleService = FLOW_CONFLICTS ? lookupService(FlowRuleService.class) : null;
+        if (flowRuleService != null) {
+            // Listens first, so no change is missed while the current flow rules are loaded
+            flowRuleService.addListener(flowRuleListener);
+            if (deviceService != null) {
+                for (Device d : deviceService.getDevices()) {
+                    flowEntries.load(flowRuleService.getFlowEntries(d.id()));
+                }
+            }
+        }
     }
 
     @Deactivate
     public void deactivate() {
+        DeviceService deviceService = lookupService(DeviceService.class);
+        if (deviceService != null) {
+            deviceService.removeListener(deviceListener);
+        }
+        TopologyService topologyService = lookupService(TopologyService.class);
+        if (topologyService != null) {
+            topologyService.removeListener(topologyListener);
+        }
+        FlowRuleService flowRuleService = FLOW_CONFLICTS ? lookupService(FlowRuleService.class) : null;
+        if (flowRuleService != null) {
+            flowRuleService.removeListener(flowRuleListener);
+        }
+        flowEntries.clear();
+        reactivation.close();
+        conflictScanner.close();
+        enforcer.close();
+        southbound.close();
+        if (journal != null) {
+            store.setJournal(null);
+            journal.close();
+        }
         log.info("Policy Service stopped ");
     }
 
+    /**
+     * Loads the policies persisted before the last stop into the store, as
+     * they were, without validating them again, and starts persisting the
+     * changes of the store.
+     */
+    private void restorePolicies() {
+        if (JOURNAL_DIR == null) {
+            log.info("No policy journal directory, policies will not be persisted");
+            return;
+        }
+        try {
+            journal = PolicyJournal.open(Paths.get(JOURNAL_DIR), JOURNAL_COMMIT_MS, JOURNAL_SNAPSHOT_RECORDS);
+        } catch (IOException e) {
+            log.error("Cannot open the policy journal in {}, policies will not be persisted: {}",
+                      JOURNAL_DIR, e.getMessage());
+            return;
+        }
+        int maxId = 0;
+        for (PolicyRule pr : journal.getRecovered()) {
+            pr.canonicalize();
+            store.add(pr);
+            maxId = Math.max(maxId, pr.getId());
+        }
+        uniqueId.set(maxId);
+        store.setJournal(journal);
+        journal.start(store::checkpoint);
+    }
+
+    /**
+     * Waits until the changes of the policies made so far are persisted.
+     * Must not be called while holding a lock of the policies.
+     */
+    private void persist() {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    /**
+     * Sets the base URI of the REST endpoints of the policy type apps, in
+     * place of the one of eu.ngpaas.pm.southbound.uri. Takes effect when the
+     * manager is activated.
+     *
+     * @param southboundUri the base URI
+     */
+    public void setSouthboundUri(String southboundUri) {
+        this.southboundUri = southboundUri;
+    }
+
+    /**
+     * Serves a policy type in-process. Called by the OSGi runtime when a
+     * PolicyService is registered.
+     *
+     * @param service the policy service
+     */
+    public void bindPolicyService(PolicyService service) {
+        localServices.add(service);
+        PolicyTypeSchema schema = service.getSchema();
+        if (schema != null && service.getPolicyType() != null) {
+            schema.setType(service.getPolicyType());
+            SimpleResponse sr = addPolicyTypeSchema(schema);
+            if (sr.isSuccess()) {
+                serviceValidators.put(service, validators.get(service.getPolicyType().toUpperCase()));
+            } else {
+                log.warn(sr.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops serving a policy type in-process. Called by the OSGi runtime when
+     * a PolicyService is unregistered. The schema it registered is removed,
+     * unless another one has replaced it since.
+     *
+     * @param service the policy service
+     */
+    public void unbindPolicyService(PolicyService service) {
+        localServices.remove(service);
+        PolicyValidator validator = serviceValidators.remove(service);
+        if (validator != null) {
+            validators.remove(service.getPolicyType().toUpperCase(), validator);
+        }
+    }
+
     @Override
     public PolicyRules getAllPolicies() {
-        return this.policies;
+        return store.getAll();
     }
 
     @Override
     public PolicyRules getActivePolicies() {
-        PolicyRules apr = new PolicyRules();
-        apr.setPolicyRules(this.policies.getPolicyRules()
-                                        .stream()
-                                        .filter(policy -> policy.getState().equals(PolicyState.ENFORCED))
-                                        .collect(new PolicyCollector()));
-        return apr;
+        return store.getByState(PolicyState.ENFORCED);
+    }
+
+    @Override
+    public Iterator<PolicyRule> getPolicies(PolicyFilter filter, int after) {
+        return store.iterator(filter, after);
     }
 
     @Override
     public PolicyRule getPolicyById(int id) {
-        CopyOnWriteArrayList<PolicyRule> filteredPolicies = this.policies.getPolicyRules()
-                                                                         .stream()
-                                                                         .filter(policy -> policy.getId() == id)
-                                                                         .collect(new PolicyCollector());
-        if (filteredPolicies.isEmpty()) {
+        return store.get(id);
+    }
+
+    @Override
+    public PolicyRules getConflictingPolicies(int id) {
+        PolicyRule pr = store.get(id);
+        List<PolicyRule> neighbours = pr == null ? null : store.getConflicts(pr);
+        if (neighbours == null) {
             return null;
-        } else {
-            return filteredPolicies.get(0);
         }
+        PolicyRules prs = new PolicyRules();
+        prs.setPolicyRules(new CopyOnWriteArrayList<>(neighbours));
+        return prs;
     }
 
     @Override
     public PolicyRules getPoliciesByState(PolicyState policyState) {
-        PolicyRules apr = new PolicyRules();
-        apr.setPolicyRules(this.policies.getPolicyRules()
-                                        .stream()
-                                        .filter(policy -> policy.getState().equals(policyState))
-                                        .collect(new PolicyCollector()));
-        return apr;
+        return store.getByState(policyState);
     }
 
     @Override
     public PolicyRules getPoliciesByType(String policyType) {
-        PolicyRules apr = new PolicyRules();
-        apr.setPolicyRules(this.policies.getPolicyRules()
-                                        .stream()
-                                        .filter(policy -> policy.getType().equals(policyType))
-                                        .collect(new PolicyCollector()));
-        return apr;
+        // Waits for in-progress changes of the type, so the result is consistent
+        try {
+            locks.readLock(policyType);
+            return store.getByType(policyType);
+        } finally {
+            locks.readUnlock(policyType);
+        }
     }
 
     @Override
     public int getNumberOfPolicies() {
-        return this.policies.getPolicyRules().size();
+        return store.size();
     }
 
     @Override
@@ -137,7 +420,7 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
 
         /* Looks for a policy with the given id in pending state.
         If it is not found, returns an error message */
-        PolicyRule p = getPolicyById(id, getPoliciesByState(PolicyState.PENDING));
+        PolicyRule p = store.get(id, PolicyState.PENDING);
         List messages = new ArrayList();
 
         if (p == null) {
@@ -149,28 +432,34 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         p.setDeactivated(false);
 
         // Apply the context validation. If fails, returns an error message
-        if (!contextValidation(p).isSuccess()) {
+        if (!contextValidation(p).join().isSuccess()) {
             return new SimpleResponse(
                 "Policy [" + String.valueOf(p.getId()) + "] failed at context validation.", false);
         }
+        CompletableFuture<Void> enforcement;
         try {
-            lock.lock();
+            locks.lock(p.getType());
+            if (store.get(id, PolicyState.PENDING) != p) {
+                return new SimpleResponse(
+                    "Policy [" + String.valueOf(id) + "] not in Pending state.", false);
+            }
             /* Apply the conflict validation to the policy we try to activate.
             If fails, returns an error messsage */
-            SimpleResponse sr = conflictValidator(p, getActivePolicies());
+            SimpleResponse sr = conflictValidator(p);
             messages = sr.getMessages();
             if (!sr.isSuccess()) {
                 messages.add("Policy [" + String.valueOf(p.getId()) + "] failed at conflict validation.");
                 return new SimpleResponse(
                     messages, false);
             }
+            /* If it makes it until here, conflict and context validation succeed.
+            Thus, we enforce the policy */
+            enforcement = enforcePolicy(p);
         } finally {
-            lock.unlock();
+            locks.unlock(p.getType());
         }
-
-        /* If it makes it until here, conflict and context validation succeed.
-        Thus, we enforce the policy */
-        enforcePolicy(p);
+        enforcement.join();
+        persist();
         messages.add("Policy [" + String.valueOf(p.getId()) + "] activated.");
         return new SimpleResponse(
             messages, true);
@@ -179,34 +468,42 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     @Override
     public SimpleResponse deactivatePolicyById(int id) {
 
-        PolicyRule pr;
+        /* Looks for a policy with the given id in enforced state.
+        If it is not found, returns an error message */
+        PolicyRule pr = store.get(id, PolicyState.ENFORCED);
+        if (pr == null) {
+            return new SimpleResponse(
+                "Policy [" + String.valueOf(id) + "] not in Enforced state", false);
+        }
+        List<PolicyRule> unblocked;
         try {
-            lock.lock();
-            /* Looks for a policy with the given id in enforced state.
-            If it is not found, returns an error message */
-            pr = getPolicyById(id, getActivePolicies());
-
-            if (pr == null) {
+            locks.lock(pr.getType());
+            // Checked again under the lock of its type
+            if (store.get(id, PolicyState.ENFORCED) != pr) {
                 return new SimpleResponse(
                     "Policy [" + String.valueOf(id) + "] not in Enforced state", false);
             }
 
+            // Tag the policy so it cannot be enforced until it is manually activated
+            pr.setDeactivated(true);
             // Move the policy to the pending state
-            pr.setState(PolicyState.PENDING);
+            store.setState(pr, PolicyState.PENDING);
+            unblocked = pendingNeighboursOf(pr);
         } finally {
-            lock.unlock();
+            locks.unlock(pr.getType());
         }
-        // Tag the policy so it cannot be enforced until it is manually activated
-        pr.setDeactivated(true);
 
-        // Remove the policy from the network
+        /* Remove the policy from the network. Later calls of the same type are
+        sent after this one, so there is no need to wait for the reply */
         removePolicy(pr);
+        persist();
 
         CopyOnWriteArrayList<String> messages = new CopyOnWriteArrayList<>();
         messages.add("Policy [" + String.valueOf(id) + "] deactivated.");
 
-        // Try to activate PENDING policies by priority order
-        messages.add(activatePendingPolicies().getMessage());
+        // The PENDING policies blocked by this one are reconsidered in the background
+        reactivation.policyFreed(unblocked);
+        messages.add("Pending policies scheduled for reactivation.");
 
         return new SimpleResponse(messages, true);
     }
@@ -215,34 +512,53 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     public SimpleResponse deletePolicyById(int id) {
 
         // Looks for a policy with the given id. If it is not found, returns an error message
-        PolicyRule pr;
+        PolicyRule pr = getPolicyById(id);
+        if (pr == null) {
+            return new SimpleResponse(
+                "Policy [" + String.valueOf(id) + "] not found.", false);
+        }
+        boolean wasEnforced;
+        List<PolicyRule> unblocked;
         try {
-            lock.lock();
-            pr = getPolicyById(id);
-
-            if (pr == null) {
+            locks.lock(pr.getType());
+            // Checked again under the lock of its type
+            if (getPolicyById(id) != pr) {
                 return new SimpleResponse(
                     "Policy [" + String.valueOf(id) + "] not found.", false);
             }
+            wasEnforced = pr.getState() == PolicyState.ENFORCED;
+            // Its neighbours in the conflict graph are dropped with it
+            unblocked = wasEnforced ? pendingNeighboursOf(pr) : Collections.emptyList();
             // Remove the policy from the framework
-            policies.getPolicyRules().remove(pr);
+            store.remove(id);
+            contextCache.invalidate(pr);
+            // Remove the policy from the network
+            removePolicy(pr);
         } finally {
-            lock.unlock();
+            locks.unlock(pr.getType());
         }
 
-        // Remove the policy from the network
-        removePolicy(pr);
-
-        // If we have just deleted the last policy, reset the id
-        if (policies.getPolicyRules().size() == 0) {
-            resetUniqueId();
+        // If we have just deleted the last policy, reset the id. No id is given while all the types are locked
+        if (store.size() == 0) {
+            try {
+                locks.lockAll();
+                if (store.size() == 0) {
+                    resetUniqueId();
+                }
+            } finally {
+                locks.unlockAll();
+            }
         }
+        persist();
 
         CopyOnWriteArrayList<String> messages = new CopyOnWriteArrayList<>();
         messages.add("Policy [" + String.valueOf(id) + "] deleted.");
 
-        // Try to activate PENDING policies by priority order
-        messages.add(activatePendingPolicies().getMessage());
+        // The PENDING policies blocked by this one are reconsidered in the background
+        if (wasEnforced) {
+            reactivation.policyFreed(unblocked);
+            messages.add("Pending policies scheduled for reactivation.");
+        }
 
         return new SimpleResponse(messages, true);
     }
@@ -251,25 +567,27 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     public void deleteAllPolicyRules() {
 
         try {
-            lock.lock();
+            locks.lockAll();
             // Iterate over the ENFORCED policies
+            List<CompletableFuture<Void>> removals = new ArrayList<>();
             for (PolicyRule pr : getActivePolicies().getPolicyRules()) {
                 // Remove all the policies from the network
-                removePolicy(pr);
+                removals.add(removePolicy(pr));
             }
+            CompletableFuture.allOf(removals.toArray(new CompletableFuture[0])).join();
             // Remove all policy rules from the policy framework
-            this.policies.setPolicyRules(new CopyOnWriteArrayList<>());
+            store.clear();
+            contextCache.invalidateAll();
             resetUniqueId();
         } finally {
-            lock.unlock();
+            locks.unlockAll();
         }
+        persist();
     }
 
     @Override
     public SimpleResponse pushPolicies(PolicyRules policies) {
-        // Get active policy rules (to check conflict with new policies)
-        PolicyRules activePolicies = getActivePolicies();
-        CopyOnWriteArrayList<PolicyRule> policyRules = policies.getPolicyRules();
+        List<PolicyRule> policyRules = new ArrayList<>(policies.getPolicyRules());
         // restResponse initialization
         SimpleResponse sr;
         SimpleResponse restResponse;
@@ -280,56 +598,64 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         int num_success = 0;
         int num_error = 0;
 
-        int[] sortedIndices = IntStream.range(0, policies.getPolicyRules().size())
-                                       .boxed().sorted(Comparator.comparing(policyRules::get))
-                                       .mapToInt(ele -> ele).toArray();
-        // Iterate over all the received policies
-        for (int pos : sortedIndices) {
-            PolicyRule pr = policyRules.get(pos);
-            // Validate policy
-            restResponse = validatePolicyRule(pr, activePolicies);
-            if (isPendingPolicy(pr)) {
-                restResponse.setCode(0);
-                restResponse.setMessage("Duplicated policy.");
+        policyRules.sort(Comparator.naturalOrder());
+        /* The formal and context validations of a policy do not depend on the
+        other policies, so they are started for the whole batch at once and
+        overlap with each other. */
+        List<CompletableFuture<SimpleResponse>> preValidations = new ArrayList<>();
+        for (PolicyRule pr : policyRules) {
+            preValidations.add(preValidatePolicyRule(pr));
+        }
+        List<SimpleResponse> preValidated = new ArrayList<>();
+        for (CompletableFuture<SimpleResponse> preValidation : preValidations) {
+            preValidated.add(preValidation.join());
+        }
+        /* The whole batch is planned first, and only the net changes are
+        applied: a policy displaced and reactivated within the batch, or
+        reactivated and displaced again, is not removed and enforced again */
+        List<String> types = policyTypesOf(policyRules);
+        List<CompletableFuture<Void>> operations = new ArrayList<>();
+        List<PolicyRule> unblocked = new ArrayList<>();
+        AdmissionPlanner.Plan plan;
+        for (String type : types) {
+            locks.lock(type);
+        }
+        try {
+            // The PENDING policies whose context validation is not cached are left to the reactivation scheduler
+            AdmissionPlanner planner = new AdmissionPlanner(store, conflictScanner, metrics, contextCache::get,
+                                                            this::getUniqueId);
+            for (int i = 0; i < policyRules.size(); i++) {
+                planner.admit(policyRules.get(i), preValidated.get(i));
             }
-            // If formal validation failed
-            if (restResponse.getCode() == 0) {
-                num_error += 1;
-
-                // If conflict or context validation failed
-            } else if (restResponse.getCode() == 1 || restResponse.getCode() == 2) {
-
+            plan = planner.finish();
+            applyPlan(plan, operations);
+            if (plan.hasDeferred()) {
+                for (PolicyRule pr : plan.getRemoved()) {
+                    unblocked.addAll(pendingNeighboursOf(pr));
+                }
+            }
+        } finally {
+            for (String type : types) {
+                locks.unlock(type);
+            }
+        }
+        for (AdmissionPlanner.Decision decision : plan.getDecisions()) {
+            restResponse = decision.getResponse();
+            if (restResponse.getCode() == 0 || restResponse.getCode() == 1 || restResponse.getCode() == 2) {
                 num_error += 1;
-
-                // Give an id to this policy
-                pr.setId(getUniqueId());
-
-                // Add policy with PENDING state.
-                addPolicy(pr);
-
-                // All the validations succeed
             } else {
-
                 num_success += 1;
-
-                // Give an id to this policy
-                pr.setId(getUniqueId());
-                // Enforce policy
-                enforcePolicy(pr);
-
-                // Add policy with ENFORCED state
-                addPolicy(pr);
-
-                // Update active policies before the next iteration
-                activePolicies = getActivePolicies();
-
             }
-            ids.add(pr.getId());
+            ids.add(decision.getRule().getId());
             messages = restResponse.getMessages();
             for (String message : messages) {
                 log.info("Debug: " + message);
             }
         }
+        reactivation.policyFreed(unblocked);
+        // Wait until the policy type apps have enforced the policies
+        CompletableFuture.allOf(operations.toArray(new CompletableFuture[0])).join();
+        persist();
         // If there is any error (create Status code 400 response)
         if (num_error > 0) {
             sr = new SimpleResponse(messages, false, ids);
@@ -343,22 +669,184 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         return sr;
     }
 
+    /**
+     * Applies the net changes of a plan to the store and the network: the
+     * displaced policies are removed and moved to PENDING, then the new
+     * policies are stored and, with the reactivated ones, enforced if planned
+     * so. The removals are issued first, so the policy type apps free the
+     * flows before they are claimed by another policy. The locks of the
+     * types of the plan must be held.
+     *
+     * @param plan       the plan
+     * @param operations collects the removals and enforcements
+     */
+    private void applyPlan(AdmissionPlanner.Plan plan, List<CompletableFuture<Void>> operations) {
+        for (PolicyRule pr : plan.getRemoved()) {
+            operations.add(displacePolicy(pr));
+        }
+        metrics.policiesDisplaced(plan.getRemoved().size());
+        for (AdmissionPlanner.Decision decision : plan.getDecisions()) {
+            PolicyRule pr = decision.getRule();
+            if (decision.getState() == PolicyState.ENFORCED) {
+                operations.add(enforcePolicy(pr));
+                addPolicy(pr);
+            } else if (decision.getState() == PolicyState.PENDING) {
+                pr.setState(PolicyState.PENDING);
+                addPolicy(pr);
+            }
+        }
+        for (PolicyRule pr : plan.getReactivated()) {
+            operations.add(enforcePolicy(pr));
+        }
+    }
+
+    /**
+     * Returns the policy types of some policies, sorted, to lock them in a
+     * consistent order.
+     */
+    private static List<String> policyTypesOf(List<PolicyRule> prs) {
+        return prs.stream().map(PolicyRule::getType).distinct().sorted().collect(Collectors.toList());
+    }
+
+    @Override
+    public void pushPolicies(Iterator<PolicyRule> policies, BiConsumer<PolicyRule, SimpleResponse> results) {
+        /* The rules are admitted in arrival order. The formal and context
+        validations of the next rules of the window run while the current one
+        is admitted, and only the rules of the window are held in memory. */
+        Deque<PolicyRule> window = new ArrayDeque<>();
+        Deque<SimpleResponse> preprocessed = new ArrayDeque<>();
+        // Only the rules that are preprocessed successfully are validated
+        Deque<CompletableFuture<SimpleResponse>> preValidations = new ArrayDeque<>();
+        while (true) {
+            while (window.size() < STREAM_WINDOW && policies.hasNext()) {
+                PolicyRule pr = policies.next();
+                SimpleResponse sr = PolicyHelper.validateStructure(pr);
+                if (sr.isSuccess()) {
+                    sr = preprocess(pr);
+                }
+                window.add(pr);
+                preprocessed.add(sr);
+                if (sr.isSuccess()) {
+                    preValidations.add(preValidatePolicyRule(pr));
+                }
+            }
+            if (window.isEmpty()) {
+                persist();
+                return;
+            }
+            PolicyRule pr = window.poll();
+            SimpleResponse sr = preprocessed.poll();
+            if (!sr.isSuccess()) {
+                results.accept(pr, sr);
+            } else {
+                results.accept(pr, admitPolicyRule(pr, preValidations.poll().join()));
+            }
+        }
+    }
+
+    @Override
+    public AdmissionPlanner.Plan simulatePolicies(PolicyRules policies, boolean offline) {
+        List<PolicyRule> prs = new ArrayList<>(policies.getPolicyRules());
+        // Same order as pushPolicies
+        prs.sort(Comparator.naturalOrder());
+        List<CompletableFuture<SimpleResponse>> preValidations = new ArrayList<>();
+        for (PolicyRule pr : prs) {
+            preValidations.add(preValidatePolicyRule(pr, offline));
+        }
+        List<SimpleResponse> results = new ArrayList<>();
+        for (CompletableFuture<SimpleResponse> preValidation : preValidations) {
+            results.add(preValidation.join());
+        }
+        List<String> types = policyTypesOf(prs);
+        for (String type : types) {
+            locks.readLock(type);
+        }
+        try {
+            // The ids are the ones the policies would get if pushed now
+            AtomicInteger nextId = new AtomicInteger(uniqueId.get());
+            // As in pushPolicies, the PENDING policies whose context validation is not cached are deferred
+            AdmissionPlanner planner = new AdmissionPlanner(store, conflictScanner, null, contextCache::get,
+                                                            nextId::incrementAndGet);
+            for (int i = 0; i < prs.size(); i++) {
+                planner.admit(prs.get(i), results.get(i));
+            }
+            return planner.finish();
+        } finally {
+            for (String type : types) {
+                locks.readUnlock(type);
+            }
+        }
+    }
+
+    /**
+     * Completes the admission of a policy rule whose formal and context
+     * validations are done: validates it against the stored policies, gives
+     * it an id and stores it, PENDING if any validation failed. Policies of
+     * other types are admitted concurrently.
+     *
+     * @param pr            the policy rule
+     * @param preValidation result of its formal and context validations
+     * @return the result of the validations. Code 0 if the policy is not stored,
+     * 1 or 2 if it is stored as PENDING
+     */
+    private SimpleResponse admitPolicyRule(PolicyRule pr, SimpleResponse preValidation) {
+        SimpleResponse restResponse;
+        try {
+            locks.lock(pr.getType());
+            // Duplicates are rejected before the conflict validation, which may displace other policies
+            if (isPendingPolicy(pr)) {
+                return new SimpleResponse(0, "Duplicated policy.", false);
+            }
+            // Validate policy
+            restResponse = validatePolicyRule(pr, preValidation);
+            // If formal validation failed
+            if (restResponse.getCode() == 0) {
+                return restResponse;
+            }
+            // Give an id to this policy
+            pr.setId(getUniqueId());
+            // If conflict and context validations succeed, enforce policy
+            if (restResponse.getCode() != 1 && restResponse.getCode() != 2) {
+                enforcePolicy(pr);
+            }
+            // Add policy with PENDING or ENFORCED state
+            addPolicy(pr);
+        } finally {
+            locks.unlock(pr.getType());
+        }
+        return restResponse;
+    }
+
     @Override
     public SimpleResponse changePolicyPriority(int id, int newPriority) {
 
         PolicyRule pr = getPolicyById(id);
         if (pr != null) {
-            removePolicy(pr);
-            pr.setPriority(newPriority);
-            pr.setState(PolicyState.PENDING);
+            boolean wasEnforced;
+            try {
+                locks.lock(pr.getType());
+                wasEnforced = pr.getState() == PolicyState.ENFORCED;
+                removePolicy(pr);
+                // Its cached result is keyed by its fingerprint, which includes the priority
+                contextCache.invalidate(pr);
+                store.setPriority(pr, newPriority);
+                store.setState(pr, PolicyState.PENDING);
+            } finally {
+                locks.unlock(pr.getType());
+            }
 
-            SimpleResponse sr = activatePendingPolicies();
+            // Only this policy is evaluated right away, the ones it blocked are reconsidered in the background
+            SimpleResponse sr = activatePendingPolicies(Collections.singletonList(pr));
+            if (wasEnforced) {
+                reactivation.policyFreed(pendingNeighboursOf(pr));
+            }
+            persist();
 
             List messages = new ArrayList();
             if (!sr.isSuccess()) {
                 messages.add(sr.getMessage());
             }
-            if (getPolicyById(id, getPoliciesByState(PolicyState.ENFORCED)) != null) {
+            if (store.get(id, PolicyState.ENFORCED) != null) {
                 messages
                     .add("Priority successfully changed. Policy [" + String.valueOf(id) + "] enforced with priority " +
                          newPriority + ".");
@@ -374,27 +862,40 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     }
 
     @Override
-    public void preprocess(PolicyRule pr) {
+    public SimpleResponse preprocess(PolicyRule pr) {
+        long start = System.nanoTime();
         pr.setType(pr.getType().toUpperCase());
-        pr.setState(PolicyState.NEW);
-        if (pr.getForm().equalsIgnoreCase("cnf")) {
-            pr.setPolicyConditions(pr.cnf2dnf(pr.getPolicyConditions()));
-            pr.setForm("DNF");
+        try {
+            pr.setState(PolicyState.NEW);
+            if (pr.getForm().equalsIgnoreCase("cnf")) {
+                try {
+                    pr.setPolicyConditions(pr.cnf2dnf(pr.getPolicyConditions(), DNF_MAX_CLAUSES));
+                } catch (IllegalArgumentException e) {
+                    return new SimpleResponse("Formal error: " + e.getMessage(), false);
+                }
+                if (pr.getPolicyConditions().isEmpty()) {
+                    return new SimpleResponse("Formal error: The conditions of this policy can never be met.",
+                                              false);
+                }
+                pr.setForm("DNF");
+            }
+            pr.canonicalize();
+            return new SimpleResponse("Policy preprocessed.", true);
+        } finally {
+            metrics.recordSince(AdmissionMetrics.Stage.PREPROCESS, pr.getType(), start);
         }
-        pr.sortConditions();
-        Collections.sort(pr.getPolicyActions());
     }
 
     @Override
     public PolicyRules parsePolicyRules(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         PolicyRules policyRules = null;
+        long start = System.nanoTime();
         try {
-            policyRules = mapper.readValue(json, PolicyRules.class);
+            policyRules = PolicyCodec.readPolicyRules(json);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        metrics.recordSince(AdmissionMetrics.Stage.PARSE, AdmissionMetrics.ALL_TYPES, start);
         return policyRules;
     }
 
@@ -403,6 +904,7 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         if (!this.policyTypes.contains(policyType)) {
             this.policyTypes.add(policyType);
         }
+        metrics.typeAdded(policyType);
         return new SimpleResponse("Policy type " + policyType +
                                   " successfully added", true);
     }
@@ -412,66 +914,125 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         if (this.policyTypes.contains(policyType)) {
             policyTypes.remove(policyType);
         }
+        validators.remove(policyType);
+        metrics.typeRemoved(policyType);
         return new SimpleResponse("Policy type " + policyType +
                                   " successfully removed", true);
     }
 
+    @Override
+    public SimpleResponse addPolicyTypeSchema(PolicyTypeSchema schema) {
+        if (schema.getType() == null) {
+            return new SimpleResponse("The schema does not specify a policy type", false);
+        }
+        String policyType = schema.getType().toUpperCase();
+        try {
+            validators.put(policyType, schema.compile());
+        } catch (IllegalArgumentException e) {
+            return new SimpleResponse("Invalid schema: " + e.getMessage(), false);
+        }
+        return new SimpleResponse("Schema of policy type " + policyType +
+                                  " successfully added", true);
+    }
+
     @Override
     public List<String> getPolicyTypes() {
         return this.policyTypes;
     }
 
+    @Override
+    public AdmissionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Returns if a policy that we are trying to push is identical to any policy in pending state
      *
      * @param pr The policy rule to check its state
      */
     private boolean isPendingPolicy(PolicyRule pr) {
-        for (PolicyRule pol : getPoliciesByState(PolicyState.PENDING).getPolicyRules()) {
-            if (pol.equals(pr)) {
-                return true;
-            }
-        }
-        return false;
+        return store.findPendingDuplicate(pr) != null;
     }
 
     /**
-     * Validates a policy rule
+     * Runs the formal and context validations of a policy rule. The policy is
+     * serialized once and the same body is sent to both endpoints.
      *
-     * @param newPolicyRule  The policy to validate
-     * @param activePolicies The list of active polices
+     * @param newPolicyRule The policy to validate
+     * @return a future with the result of the validations
      */
-    private SimpleResponse validatePolicyRule(PolicyRule newPolicyRule,
-                                              PolicyRules activePolicies) {
+    private CompletableFuture<SimpleResponse> preValidatePolicyRule(PolicyRule newPolicyRule) {
+        return preValidatePolicyRule(newPolicyRule, false);
+    }
 
-        SimpleResponse restResponse;
-        List<String> messages = new CopyOnWriteArrayList<>();
+    /**
+     * Runs the formal and context validations of a policy rule, optionally
+     * without calling its policy type app.
+     *
+     * @param newPolicyRule The policy to validate
+     * @param offline       true to assume the validations that need the app succeed
+     * @return a future with the result of the validations
+     */
+    private CompletableFuture<SimpleResponse> preValidatePolicyRule(PolicyRule newPolicyRule, boolean offline) {
         // Calls the formal validation
-        restResponse = formalValidation(newPolicyRule);
-        // If it fails it returns the error message with the code 0
-        if (!restResponse.isSuccess()) {
-
-            restResponse.setCode(0);
+        long start = System.nanoTime();
+        return formalValidation(newPolicyRule, offline).thenCompose(restResponse -> {
+            metrics.recordSince(AdmissionMetrics.Stage.FORMAL_VALIDATION, newPolicyRule.getType(), start);
+            // If it fails it returns the error message with the code 0
+            if (!restResponse.isSuccess()) {
+                restResponse.setCode(0);
+                return CompletableFuture.completedFuture(restResponse);
+            }
+            // If succeeds, changes the state to formally validated
+            newPolicyRule.setState(PolicyState.FORMALLY_VALIDATED);
+
+            // Then, calls the context validation
+            CompletableFuture<SimpleResponse> contextValidation = offline ?
+                CompletableFuture.completedFuture(new SimpleResponse("Context validation assumed.", true)) :
+                contextValidation(newPolicyRule);
+            return contextValidation.thenCompose(contextResponse -> {
+                /* If it fails, it moves the policy to the Pending state and returns an
+                error message with the code 2 */
+                if (!contextResponse.isSuccess()) {
+                    newPolicyRule.setState(PolicyState.PENDING);
+                    return CompletableFuture.completedFuture(
+                        new SimpleResponse(2, "Policy failed at context validation.", false));
+                }
+                // If succeeds, changes the state to context validated
+                newPolicyRule.setState(PolicyState.CONTEXT_VALIDATED);
+                if (!FLOW_CONFLICTS || offline) {
+                    return CompletableFuture.completedFuture(contextResponse);
+                }
+                /* Then, checks its flow rules against the ones in the network. If it fails, it moves
+                the policy to the Pending state and returns an error message with the code 1 */
+                return newConflictValidator(newPolicyRule).thenApply(flowResponse -> {
+                    if (!flowResponse.isSuccess()) {
+                        newPolicyRule.setState(PolicyState.PENDING);
+                        return new SimpleResponse(1, "Policy failed at flow rule conflict validation.", false);
+                    }
+                    return contextResponse;
+                });
+            });
+        });
+    }
 
-            return restResponse;
-        }
-        // If succeeds, changes the state to formally validated
-        newPolicyRule.setState(PolicyState.FORMALLY_VALIDATED);
+    /**
+     * Validates a policy rule
+     *
+     * @param newPolicyRule The policy to validate
+     * @param preValidation The result of the formal and context validations
+     */
+    private SimpleResponse validatePolicyRule(PolicyRule newPolicyRule, SimpleResponse preValidation) {
 
-        // Then, calls the context validation
-        restResponse = contextValidation(newPolicyRule);
-        /* If it fails, it moves the policy to the Pending state and returns an
-        error message with the code 2 */
+        SimpleResponse restResponse = preValidation;
+        List<String> messages = new CopyOnWriteArrayList<>();
+        // If the formal or context validation failed, returns their error message
         if (!restResponse.isSuccess()) {
-            newPolicyRule.setState(PolicyState.PENDING);
-            restResponse = new SimpleResponse(2, "Policy failed at context validation.", false);
             return restResponse;
         }
-        // If succeeds, changes the state to context validated
-        newPolicyRule.setState(PolicyState.CONTEXT_VALIDATED);
 
         // Finally, calls the conflict validator.
-        restResponse = conflictValidator(newPolicyRule, activePolicies);
+        restResponse = conflictValidator(newPolicyRule);
 
         // If it fails
         if (!restResponse.isSuccess()) {
@@ -494,35 +1055,35 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     }
 
     /**
-     * Formally validates a policy.
+     * Formally validates a policy. The self-conflict check runs locally
+     * before calling the formal validation endpoint of the policy type.
      *
-     * @param pr The policy rule to validate
+     * @param pr      The policy rule to validate
+     * @param offline true to assume the validation succeeds if it needs the app
      */
-    private SimpleResponse formalValidation(PolicyRule pr) {
+    private CompletableFuture<SimpleResponse> formalValidation(PolicyRule pr, boolean offline) {
         // Checks that the policy type is registered
         if (!policyTypes.contains(pr.getType())) {
-            return new SimpleResponse("Policy type " + pr.getType() +
-                                      " not registered.", false);
+            return CompletableFuture.completedFuture(new SimpleResponse("Policy type " + pr.getType() +
+                                                                        " not registered.", false));
         }
-
-        // Connects with the formal validation endpoint of the policy type
-        Response response =
-            RESTtarget.path(pr.getType().toLowerCase() + "policy/formalvalidation")
-                      .request()
-                      .post(Entity.json(new ByteArrayInputStream(pr.toJSONString().getBytes())));
-
-        // Returns the reply from the endpoint
-        SimpleResponse restResponse;
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            restResponse = new SimpleResponse(response.readEntity(String.class), true);
-        } else {
-            restResponse = new SimpleResponse(response.readEntity(String.class), false);
+        SimpleResponse selfConflict = selfConflictCheck(pr);
+        if (!selfConflict.isSuccess()) {
+            return CompletableFuture.completedFuture(selfConflict);
         }
-        response.close();
-        if (restResponse.isSuccess()) {
-            return selfConflictCheck(pr);
+        // Policy types with a schema are validated locally
+        PolicyValidator validator = validators.get(pr.getType());
+        if (validator != null) {
+            SimpleResponse sr = validator.validate(pr);
+            return CompletableFuture.completedFuture(sr.isSuccess() ? selfConflict : sr);
         }
-        return restResponse;
+        if (offline) {
+            return CompletableFuture.completedFuture(selfConflict);
+        }
+
+        // Connects with the formal validation endpoint of the policy type
+        return callPolicyType(pr, "formalvalidation", service -> service.formalValidation(pr))
+                         .thenApply(restResponse -> restResponse.isSuccess() ? selfConflict : restResponse);
     }
 
     /**
@@ -533,12 +1094,14 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     private SimpleResponse selfConflictCheck(PolicyRule pr) {
         SimpleResponse restResponse = new SimpleResponse("Formally validated.", true);
 
+        boolean modified = false;
         for (CopyOnWriteArrayList<PolicyCondition> clause : pr.getPolicyConditions()) {
             for (int j = 0; j < clause.size() - 1; j++) {
                 for (int k = j + 1; k < clause.size(); k++) {
                     if (clause.get(j).getPolicyVariable().equalsIgnoreCase(clause.get(k).getPolicyVariable())) {
                         if (clause.get(j).getPolicyValue().equalsIgnoreCase(clause.get(k).getPolicyValue())) {
                             clause.remove(k);
+                            modified = true;
                         } else {
                             return new SimpleResponse("Formal error: This policy has self-conflicting conditions.",
                                                       false);
@@ -553,6 +1116,7 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
                 if (pas.get(i).getPolicyVariable().equalsIgnoreCase(pas.get(j).getPolicyVariable())) {
                     if (pas.get(i).getPolicyValue().equalsIgnoreCase(pas.get(j).getPolicyValue())) {
                         pas.remove(j);
+                        modified = true;
                     } else {
                         return new SimpleResponse("Formal error: This policy has self-conflicting actions", false);
                     }
@@ -560,6 +1124,10 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
             }
 
         }
+        // Duplicated conditions or actions were removed in place, so the canonical form is computed again
+        if (modified) {
+            pr.canonicalize();
+        }
         // Policy does not have conflicting conditions
         return restResponse;
     }
@@ -569,21 +1137,35 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
      *
      * @param pr The policy rule to validate.
      */
-    private SimpleResponse contextValidation(PolicyRule pr) {
+    private CompletableFuture<SimpleResponse> contextValidation(PolicyRule pr) {
+        long start = System.nanoTime();
+        // Reuses the last result if neither the policy nor the network changed since then
+        SimpleResponse cached = contextCache.get(pr);
+        if (cached != null) {
+            metrics.recordSince(AdmissionMetrics.Stage.CONTEXT_VALIDATION, pr.getType(), start);
+            return CompletableFuture.completedFuture(cached);
+        }
+        long generation = contextCache.generation();
         // Connects with the context validation enpoint of the policy type
-        Response response = RESTtarget.path(pr.getType().toLowerCase() + "policy/contextvalidation")
-                                      .request()
-                                      .post(Entity.json(new ByteArrayInputStream(pr.toJSONString().getBytes())));
+        return callPolicyType(pr, "contextvalidation", service -> service.contextValidation(pr))
+                         .thenApply(response -> {
+                             contextCache.put(pr, generation, response);
+                             metrics.recordSince(AdmissionMetrics.Stage.CONTEXT_VALIDATION, pr.getType(), start);
+                             return response;
+                         });
+    }
 
-        // Returns the reply of the endpoint
-        SimpleResponse restResponse;
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            restResponse = new SimpleResponse(response.getEntity().toString(), true);
-        } else {
-            restResponse = new SimpleResponse(response.getEntity().toString(), false);
+    /**
+     * Returns an ONOS service, or null if it is not available.
+     *
+     * @param serviceClass the class of the service
+     */
+    private static <T> T lookupService(Class<T> serviceClass) {
+        try {
+            return DefaultServiceDirectory.getService(serviceClass);
+        } catch (RuntimeException e) {
+            return null;
         }
-        response.close();
-        return restResponse;
     }
 
     /**
@@ -592,7 +1174,7 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
      * @param newPolicy PolicyRule to add
      */
     private void addPolicy(PolicyRule newPolicy) {
-        this.policies.getPolicyRules().add(newPolicy);
+        store.add(newPolicy);
     }
 
     /**
@@ -610,59 +1192,115 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     }
 
     /**
-     * Returns the policy with the given id.
+     * Waits until the reactivation scheduler has no round scheduled or
+     * running and every call queued for the policy type apps has been
+     * answered, for tests.
      *
-     * @param id       Policy identifier
-     * @param policies PolicyRules object with the list of policy rules, where the
-     *                 the PolicyRule with the given id should be found
-     * @return PolicyRule with given id, or null.
-     */
-    private PolicyRule getPolicyById(int id, PolicyRules policies) {
-
-        CopyOnWriteArrayList<PolicyRule> filteredPolicies = policies.getPolicyRules()
-                                                                    .stream()
-                                                                    .filter(policy -> policy.getId() == id)
-                                                                    .collect(new PolicyCollector());
-        if (filteredPolicies.isEmpty()) {
-            return null;
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long lastEvents = -1;
+        long lastCalls = -1;
+        while (true) {
+            long events = reactivation.awaitIdle(deadline);
+            long calls = events < 0 ? -1 : enforcer.awaitIdle(deadline);
+            if (calls < 0) {
+                return false;
+            }
+            // Rounds queue calls and answered calls may schedule rounds: both must be idle with nothing new
+            if (events == lastEvents && calls == lastCalls) {
+                return true;
+            }
+            lastEvents = events;
+            lastCalls = calls;
+        }
+    }
+
+    /**
+     * Reactivation round of the scheduler: tries to activate the PENDING
+     * neighbours of the policies that left the ENFORCED state, or all the
+     * PENDING policies if the network changed.
+     *
+     * @param unblocked the PENDING policies that may have been unblocked
+     * @param all       true to reconsider every PENDING policy
+     */
+    private void reactivatePendingPolicies(Collection<PolicyRule> unblocked, boolean all) {
+        long start = System.nanoTime();
+        List<PolicyRule> prs;
+        if (all) {
+            prs = new ArrayList<>(store.viewByState(PolicyState.PENDING));
         } else {
-            return filteredPolicies.get(0);
+            prs = new ArrayList<>(unblocked);
+        }
+        if (!prs.isEmpty()) {
+            log.info(activatePendingPolicies(prs).getMessage());
+            persist();
         }
+        metrics.recordSince(AdmissionMetrics.Stage.REACTIVATION, AdmissionMetrics.ALL_TYPES, start);
+    }
+
+    /**
+     * Returns the PENDING policies a policy that leaves the ENFORCED state
+     * may unblock: its PENDING neighbours in the conflict graph. Must be
+     * called before the policy is removed from the store.
+     *
+     * @param pr the policy rule
+     * @return the PENDING policies in conflict with it
+     */
+    private List<PolicyRule> pendingNeighboursOf(PolicyRule pr) {
+        List<PolicyRule> neighbours = store.getConflicts(pr, PolicyState.PENDING);
+        return neighbours == null ? Collections.emptyList() : neighbours;
     }
 
     /**
-     * Tries to activate the policies in Pending state.
+     * Tries to activate the given policies in Pending state, by priority order.
      *
+     * @param candidates The policies to activate
      * @return A SimpleResponse object with a success/failure message
      */
-    private SimpleResponse activatePendingPolicies() {
+    private SimpleResponse activatePendingPolicies(List<PolicyRule> candidates) {
 
-        PolicyRules prs = getPoliciesByState(PolicyState.PENDING);
-        Collections.sort(prs.getPolicyRules());
+        List<PolicyRule> prs = new ArrayList<>(candidates);
+        // Policies may have left the Pending state since they were selected
+        prs.removeIf(pr -> store.get(pr.getId(), PolicyState.PENDING) != pr);
+        Collections.sort(prs);
 
-        if (prs.getPolicyRules().size() == 0) {
+        if (prs.size() == 0) {
             return new SimpleResponse("No pending policies to activate", false);
         } else {
             ArrayList<Integer> enforced_ids = new ArrayList<>();
-            for (PolicyRule pr : prs.getPolicyRules()) {
+            // Context validations of all the candidates run concurrently
+            List<CompletableFuture<SimpleResponse>> contextValidations = new ArrayList<>();
+            for (PolicyRule pr : prs) {
                 // If the policy is tagged, it has to be kept as PENDING
-                if (pr.isDeactivated()) {
+                contextValidations.add(pr.isDeactivated() ? null : contextValidation(pr));
+            }
+            List<CompletableFuture<Void>> enforcements = new ArrayList<>();
+            for (int i = 0; i < prs.size(); i++) {
+                PolicyRule pr = prs.get(i);
+                if (contextValidations.get(i) == null) {
                     continue;
                 }
-                if (contextValidation(pr).isSuccess()) {
+                if (contextValidations.get(i).join().isSuccess()) {
                     try {
-                        lock.lock();
-                        if (conflictValidator(pr, getActivePolicies()).isSuccess()) {
+                        locks.lock(pr.getType());
+                        // Checked again, since the lock was not held while validating the context
+                        if (store.get(pr.getId(), PolicyState.PENDING) == pr && conflictValidator(pr).isSuccess()) {
                             // Enforce policy
-                            enforcePolicy(pr);
+                            enforcements.add(enforcePolicy(pr));
                             // Update the active policies
                             enforced_ids.add(pr.getId());
                         }
                     } finally {
-                        lock.unlock();
+                        locks.unlock(pr.getType());
                     }
                 }
             }
+            CompletableFuture.allOf(enforcements.toArray(new CompletableFuture[0])).join();
             if (enforced_ids.isEmpty()) {
                 return new SimpleResponse("No pending policy could be activated.", false);
             } else {
@@ -674,32 +1312,51 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
     }
 
     /**
-     * Checks if the given PolicyRule is in conflict with the policy rules
-     * contained in the passed PolicyRules.
+     * Checks if the given PolicyRule is in conflict with the active policy
+     * rules. For a stored policy, these are its ENFORCED neighbours in the
+     * conflict graph of the store. For a new policy, only the active
+     * policies that share conditions with it, according to the condition
+     * index of the store, are checked.
      *
-     * @param npRule    the policy rule
-     * @param activeprs the list of policy rules to check the conflict with.
+     * @param npRule the policy rule
+     */
+    private SimpleResponse conflictValidator(PolicyRule npRule) {
+        long start = System.nanoTime();
+        try {
+            return checkConflicts(npRule);
+        } finally {
+            metrics.recordSince(AdmissionMetrics.Stage.CONFLICT_VALIDATION, npRule.getType(), start);
+        }
+    }
+
+    /**
+     * Conflict validation of conflictValidator, without its measurement.
      */
-    private SimpleResponse conflictValidator(PolicyRule npRule, PolicyRules activeprs) {
+    private SimpleResponse checkConflicts(PolicyRule npRule) {
 
         SimpleResponse sr = new SimpleResponse("Same-type conflict validated.", true);
         CopyOnWriteArrayList<String> messages = new CopyOnWriteArrayList<>();
 
-        //if we have no rules then just return that conflict validation is OK
-        if (activeprs.getPolicyRules().isEmpty()) {
-            return sr;
-        }
-        /* Same policy type conflict validation
-        apRule = active policy rule
-        First step is conflict identification.
-        Creates a list in which to host possible conflicting rules (crl).*/
-        ArrayList<PolicyRule> crl = new ArrayList();
-        for (PolicyRule apRule : activeprs.getPolicyRules()) { //only ACTIVATED policies
-            // Add the rule to crl
-            SimpleResponse sr_conflict = ConflictValidator.checkConflict(npRule, apRule);
-            if (!sr_conflict.isSuccess()) {
-                crl.add(apRule);
+        ArrayList<PolicyRule> crl;
+        List<PolicyRule> neighbours = store.getConflicts(npRule, PolicyState.ENFORCED);
+        if (neighbours != null) {
+            // The conflicts of a stored policy were found when it was added
+            if (neighbours.isEmpty()) {
+                return sr;
             }
+            crl = new ArrayList<>(neighbours);
+        } else {
+            Collection<PolicyRule> candidates = store.getConflictCandidates(npRule);
+            //if we have no candidate rules then just return that conflict validation is OK
+            if (candidates.isEmpty()) {
+                return sr;
+            }
+            /* Same policy type conflict validation
+            apRule = active policy rule
+            First step is conflict identification.
+            Creates a list in which to host possible conflicting rules (crl).*/
+            crl = conflictScanner.scan(npRule, candidates);
+            metrics.conflictsChecked(candidates.size());
         }
         /* Here crl should contain all conflicting rules.
         Now we need to she which to keep, the new rule or the old rule set.*/
@@ -710,9 +1367,11 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         } else {
             /* New rule should be installed
             First deactivate old policies */
+            metrics.policiesDisplaced(crl.size());
             for (PolicyRule ruleToDeactivate : crl) {
-                deactivatePolicyById(ruleToDeactivate.getId());
-                ruleToDeactivate.setDeactivated(false);
+                displacePolicy(ruleToDeactivate);
+                // The PENDING policies blocked by this one are reconsidered in the background
+                reactivation.policyFreed(pendingNeighboursOf(ruleToDeactivate));
                 messages.add("Policy [" + ruleToDeactivate.getId() + "] moved to pending state");
             }
             // Return true so that the policy will be activated
@@ -722,59 +1381,149 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
         return sr;
     }
 
+    /**
+     * Moves an ENFORCED policy displaced by a policy of higher priority to
+     * the PENDING state and removes it from the network. Unlike
+     * deactivatePolicyById, the policy is not tagged as manually deactivated,
+     * so it is reactivated automatically, and the change is not persisted:
+     * the caller holds the lock of its type, and persists once it releases it.
+     *
+     * @param pr the policy rule
+     * @return a future completed when the policy type app replies
+     */
+    private CompletableFuture<Void> displacePolicy(PolicyRule pr) {
+        // Untagged before the state change, which is the one recorded in the journal
+        pr.setDeactivated(false);
+        store.setState(pr, PolicyState.PENDING);
+        return removePolicy(pr);
+    }
+
     /**
      * Initial implementation of the conflict validation using the flow rules.
+     * Only the flow rules with the priority of each new flow rule on its
+     * target devices, and whose header space overlaps the one of the new
+     * flow rule, are checked, as found in the flow entry index. Only runs,
+     * after the context validation, if eu.ngpaas.pm.flowConflicts.enabled is
+     * set.
      */
-    private SimpleResponse newConflictValidator(PolicyRule npRule) {
+    private CompletableFuture<SimpleResponse> newConflictValidator(PolicyRule npRule) {
+        long start = System.nanoTime();
+        return getFlowRules(npRule).thenApply(forwardingObjectiveList -> {
+            try {
+                return checkFlowConflicts(forwardingObjectiveList);
+            } finally {
+                metrics.recordSince(AdmissionMetrics.Stage.CONFLICT_VALIDATION, npRule.getType(), start);
+            }
+        });
+    }
+
+    /**
+     * Flow rule conflict validation of newConflictValidator, once the flow
+     * rules of the new policy are known.
+     */
+    private SimpleResponse checkFlowConflicts(ForwardingObjectiveList forwardingObjectiveList) {
         SimpleResponse sr = new SimpleResponse("Conflict validated", true);
-        ObjectMapper mapper = new ObjectMapper();
-        Response response = RESTtarget.path(npRule.getType().toLowerCase() + "policy/rules")
-                                      .request()
-                                      .post(Entity.json(new ByteArrayInputStream(npRule.toJSONString().getBytes())));
-        FlowRuleService flowRuleService = DefaultServiceDirectory.getService(FlowRuleService.class);
-        DeviceService deviceService = DefaultServiceDirectory.getService(DeviceService.class);
-        if (response.getStatus() != Status.OK.getStatusCode()) {
+        if (forwardingObjectiveList == null) {
             sr = new SimpleResponse("Endpoint for conflict validation missing", false);
         } else {
-            try {
-                ForwardingObjectiveList forwardingObjectiveList =
-                    mapper.readValue(response.getEntity().toString(), ForwardingObjectiveList.class);
-                for (int i = 0; i < forwardingObjectiveList.getList().size(); i++) {
-                    ForwardingObjective newEntry = forwardingObjectiveList.getList().get(i);
-                    List<DeviceId> targetDevices = forwardingObjectiveList.getDevices().get(i);
-
-                    for (Device d : deviceService.getDevices()) {
-                        for (FlowEntry enforcedEntry : flowRuleService.getFlowEntries(d.id())) {
-                            sr = ConflictValidator.newCheckConflict(enforcedEntry, newEntry, targetDevices);
-                            if (!sr.isSuccess()) {
-                                return sr;
-                            }
+            for (int i = 0; i < forwardingObjectiveList.getList().size(); i++) {
+                ForwardingObjective newEntry = forwardingObjectiveList.getList().get(i);
+                List<DeviceId> targetDevices = forwardingObjectiveList.getDevices().get(i);
+
+                for (DeviceId deviceId : new LinkedHashSet<>(targetDevices)) {
+                    Collection<FlowRule> candidates = flowEntries.getCandidates(deviceId, newEntry.priority(),
+                                                                                newEntry.selector());
+                    for (FlowRule enforcedEntry : candidates) {
+                        sr = ConflictValidator.newCheckConflict(enforcedEntry, newEntry, targetDevices);
+                        if (!sr.isSuccess()) {
+                            return sr;
                         }
                     }
                 }
-                forwardingObjectiveList.getDevices();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
         return sr;
     }
 
+    /**
+     * Returns the flow rules a policy rule would install, as computed by its
+     * policy type app.
+     *
+     * @param pr the policy rule
+     * @return a future with the flow rules and their devices, or null if the app does not provide them
+     */
+    private CompletableFuture<ForwardingObjectiveList> getFlowRules(PolicyRule pr) {
+        PolicyService service = localServices.get(pr.getType());
+        if (service != null) {
+            try {
+                return CompletableFuture.completedFuture(service.getFlowRules(pr));
+            } catch (RuntimeException e) {
+                log.warn("In-process call rules of policy type {} failed: {}", pr.getType(), e.getMessage());
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        return southbound.post(pr.getType(), "rules", body(pr)).thenApply(response -> {
+            if (!response.isSuccess()) {
+                return null;
+            }
+            try {
+                return PolicyCodec.readForwardingObjectiveList(response.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new ForwardingObjectiveList();
+            }
+        });
+    }
+
     /**
      * Enforces a policy rule in the underlying network by calling the
-     * corresponding endpoint of the policy type app.
+     * corresponding endpoint of the policy type app. The policy moves to the
+     * ENFORCED state immediately; the call may be grouped with other calls
+     * of the same policy type, which reach the app in the order they are issued.
      *
      * @param pr The policy rule to enforce
+     * @return a future completed when the policy type app replies
      */
-    private void enforcePolicy(PolicyRule pr) {
+    private CompletableFuture<Void> enforcePolicy(PolicyRule pr) {
+        long start = System.nanoTime();
+        CompletableFuture<SimpleResponse> enforcement = enforcer.enforce(pr.getType(), pr);
+        store.setState(pr, PolicyState.ENFORCED);
+        return enforcement.thenAccept(response -> {
+            metrics.recordSince(AdmissionMetrics.Stage.ENFORCEMENT, pr.getType(), start);
+            if (response.isSuccess()) {
+                log.info("Policy successfuly enforced");
+            }
+        });
+    }
 
-        Response response = RESTtarget.path(pr.getType().toLowerCase() + "policy/enforce").request()
-                                      .post(Entity.json(new ByteArrayInputStream(pr.toJSONString().getBytes())));
-        pr.setState(PolicyState.ENFORCED);
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            log.info("Policy successfuly enforced");
+    /**
+     * Calls an endpoint of the app of a policy type: in-process if the app
+     * registered its PolicyService, otherwise through REST.
+     *
+     * @param pr       the policy rule
+     * @param endpoint the REST endpoint under the policy type path
+     * @param local    the equivalent call to the PolicyService
+     * @return a future with the reply of the app
+     */
+    private CompletableFuture<SimpleResponse> callPolicyType(PolicyRule pr, String endpoint,
+                                                             Function<PolicyService, SimpleResponse> local) {
+        PolicyService service = localServices.get(pr.getType());
+        if (service == null) {
+            return southbound.post(pr.getType(), endpoint, body(pr));
+        }
+        return southbound.invoke(pr.getType(), endpoint, () -> local.apply(service));
+    }
+
+    /**
+     * Serializes a policy rule to the UTF-8 body of a request to its policy
+     * type app.
+     */
+    private static byte[] body(PolicyRule pr) {
+        try {
+            return PolicyCodec.toJsonBytes(pr);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
         }
-        response.close();
     }
 
     /**
@@ -782,14 +1531,54 @@ public class PolicyFrameworkManager implements PolicyFrameworkService {
      * corresponding endpoint of the policy type app.
      *
      * @param pr The policy rule to remove
+     * @return a future completed when the policy type app replies
+     */
+    private CompletableFuture<Void> removePolicy(PolicyRule pr) {
+        return enforcer.remove(pr.getType(), pr)
+                         .thenAccept(response -> {
+                             if (response.isSuccess()) {
+                                 log.info("Policy successfuly removed");
+                             }
+                         });
+    }
+
+    /**
+     * Invalidates the cached context validations and reconsiders the pending
+     * policies when a device or its ports change.
      */
-    private void removePolicy(PolicyRule pr) {
-        Response response = RESTtarget.path(pr.getType().toLowerCase() + "policy/remove").request()
-                                      .post(Entity.json(new ByteArrayInputStream(pr.toJSONString().getBytes())));
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                flowEntries.removeDevice(event.subject().id());
+            }
+            if (event.type() != DeviceEvent.Type.PORT_STATS_UPDATED) {
+                contextCache.invalidateAll();
+                reactivation.networkChanged();
+            }
+        }
+    }
 
-        if (response.getStatus() == Status.OK.getStatusCode()) {
-            log.info("Policy successfuly removed");
+    /**
+     * Invalidates the cached context validations and reconsiders the pending
+     * policies when the topology changes.
+     */
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            contextCache.invalidateAll();
+            reactivation.networkChanged();
+        }
+    }
+
+    /**
+     * Keeps the flow entry index current. Only registered if the flow rule
+     * conflict validation is enabled.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public void event(FlowRuleEvent event) {
+            flowEntries.update(event);
         }
-        response.close();
     }
 }
@@ -1,10 +1,13 @@
 package eu.ngpaas.pmrest.core;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 import eu.ngpaas.pmlib.PolicyRule;
 import eu.ngpaas.pmlib.PolicyRules;
 import eu.ngpaas.pmlib.PolicyState;
+import eu.ngpaas.pmlib.PolicyTypeSchema;
 import eu.ngpaas.pmlib.SimpleResponse;
 
 /**
@@ -35,6 +38,18 @@ public interface PolicyFrameworkService {
      */
     PolicyRules getActivePolicies();
 
+    /**
+     * Returns the policies that match a filter and have an id greater than
+     * the given one, ordered by id. The policies are looked up as the
+     * iterator advances, so it is suitable for paging through large numbers
+     * of policies; it may or may not reflect changes made while it is used.
+     *
+     * @param filter the filter
+     * @param after  the policies with this id or a lower one are skipped
+     * @return an iterator over the matching policies
+     */
+    Iterator<PolicyRule> getPolicies(PolicyFilter filter, int after);
+
     /**
      * Returns the policy with the given id.
      *
@@ -43,6 +58,16 @@ public interface PolicyFrameworkService {
      */
     PolicyRule getPolicyById(int id);
 
+    /**
+     * Returns the policies in conflict with the policy with the given id,
+     * i.e. its neighbours in the conflict graph of the ENFORCED and PENDING
+     * policies.
+     *
+     * @param id the policy identifier
+     * @return the conflicting policies ordered by id, or null if there is no policy with that id
+     */
+    PolicyRules getConflictingPolicies(int id);
+
     /**
      * Returns the policies in the given PolicyState.
      *
@@ -98,13 +123,43 @@ public interface PolicyFrameworkService {
     /**
      * Pushes policies to the framework. This will perform the formal, context and
      * conflict validations. Por the policies that succeed, the corresponding
-     * flow rules will be enforced in the underlying network.
+     * flow rules will be enforced in the underlying network. The whole batch
+     * is planned before anything is changed, so each policy is enforced or
+     * removed at most once, whatever the number of policies that displace
+     * or unblock it.
      *
      * @param policies list of policy rules
      * @return a SimpleResponse object containing a success/fail message.
      */
     SimpleResponse pushPolicies(PolicyRules policies);
 
+    /**
+     * Pushes a stream of policies to the framework, one at a time and in
+     * arrival order. Each policy is checked, preprocessed and validated as in
+     * pushPolicies, and its result is reported as soon as it is admitted,
+     * before the policy type app confirms the enforcement. Only a bounded
+     * number of policies is held in memory.
+     *
+     * @param policies the policy rules, as parsed
+     * @param results  called with each policy rule and its result, in arrival order
+     */
+    void pushPolicies(Iterator<PolicyRule> policies, BiConsumer<PolicyRule, SimpleResponse> results);
+
+    /**
+     * Plans the admission of policies as pushPolicies would, without storing
+     * or enforcing them. The formal and context validations are run; if
+     * offline, the ones that need a policy type app are assumed to succeed.
+     * The PENDING policies that may be reactivated are validated with their
+     * cached context validation; as in pushPolicies, the ones without one
+     * are left PENDING and reported as deferred.
+     * The policies are modified as pushPolicies would, but not stored.
+     *
+     * @param policies list of preprocessed policy rules
+     * @param offline  true to not call the policy type apps
+     * @return the plan
+     */
+    AdmissionPlanner.Plan simulatePolicies(PolicyRules policies, boolean offline);
+
     /**
      * Changes the priority of a policy
      *
@@ -119,8 +174,9 @@ public interface PolicyFrameworkService {
      * policy conditions to DNF.
      *
      * @param pr the policy rule to preprocess
+     * @return a SimpleResponse object containing a success/fail message.
      */
-    void preprocess(PolicyRule pr);
+    SimpleResponse preprocess(PolicyRule pr);
 
     /**
      * Registers a policy type
@@ -138,6 +194,17 @@ public interface PolicyFrameworkService {
      */
     SimpleResponse removePolicyType(String policyType);
 
+    /**
+     * Registers the schema of a policy type. From then on the formal
+     * validation of the policies of the type is performed locally with the
+     * compiled schema, without calling the policy type app. Registering a
+     * schema does not register the policy type.
+     *
+     * @param schema the policy type schema
+     * @return a SimpleResponse object containing a success/fail message.
+     */
+    SimpleResponse addPolicyTypeSchema(PolicyTypeSchema schema);
+
     /**
      * Lists the available policy types
      *
@@ -145,4 +212,11 @@ public interface PolicyFrameworkService {
      */
     List<String> getPolicyTypes();
 
+    /**
+     * Returns the latencies and counters of the admission of policies
+     *
+     * @return the metrics
+     */
+    AdmissionMetrics getMetrics();
+
 }
@@ -0,0 +1,597 @@
+package eu.ngpaas.pmrest.core;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import eu.ngpaas.pmlib.PolicyCodec;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyState;
+import org.slf4j.Logger;
+
+/**
+ * Persists the policies of the store, so they survive a restart of the
+ * application or the controller without being validated again.
+ * <p>
+ * Every change of the store is appended to a write-ahead log as a record
+ * (a policy added with its JSON form, a change of state or priority, a
+ * removal, or the removal of all the policies). Records are buffered and
+ * written by a single thread, which writes everything appended since the
+ * previous write with one FileChannel write and one force (group commit);
+ * sync waits until the records appended so far are durable.
+ * <p>
+ * When the log has grown by a given number of records, the policies are
+ * written to a compact snapshot and the log starts a new generation; the
+ * logs of the generations covered by the snapshot are then deleted. On
+ * start, the snapshot is loaded and the newer logs are replayed on top of
+ * it. All the records are idempotent, so replaying a change that the
+ * snapshot already contains is harmless. A record that is truncated or
+ * fails its checksum ends the log: it is the tail of a write interrupted by
+ * a crash.
+ * <p>
+ * Each record is framed as [length][CRC32][kind][payload]. The manual
+ * deactivation tag of the policies, which is not part of their JSON form,
+ * is stored next to it.
+ */
+public class PolicyJournal {
+
+    private static final int SNAPSHOT_MAGIC = 0x4e475053;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT = "policies.snapshot";
+    private static final String SNAPSHOT_TMP = "policies.snapshot.tmp";
+    private static final String LOG_PREFIX = "policies-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final byte ADDED = 1;
+    private static final byte STATE_CHANGED = 2;
+    private static final byte PRIORITY_CHANGED = 3;
+    private static final byte REMOVED = 4;
+    private static final byte CLEARED = 5;
+
+    private static final PolicyState[] STATES = PolicyState.values();
+
+    private final Logger log = getLogger(getClass());
+
+    private final Path dir;
+    private final long commitMillis;
+    private final int snapshotRecords;
+
+    /**
+     * Policies recovered on open, by id, in the order they were added
+     */
+    private final Map<Integer, PolicyRule> recovered;
+
+    /**
+     * Copies the policies of the store and runs the given action while no
+     * change can be made to the store
+     */
+    private Function<Runnable, Collection<PolicyRule>> snapshotSource = null;
+
+    private FileChannel channel;
+    private long generation;
+
+    /**
+     * Records appended and not written yet, guarded by this
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private long appended = 0;
+    private long durable = 0;
+    private long recordsSinceSnapshot = 0;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    private final Thread writer;
+
+    private PolicyJournal(Path dir, long commitMillis, int snapshotRecords) throws IOException {
+        this.dir = dir;
+        this.commitMillis = commitMillis;
+        this.snapshotRecords = snapshotRecords;
+        Files.createDirectories(dir);
+        this.recovered = new LinkedHashMap<>();
+        this.generation = recover();
+        this.channel = openLog(generation);
+        this.writer = new Thread(this::writeLoop, "policy-journal");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the journal in a directory and recovers the policies it holds.
+     * The journal does not record anything until it is started.
+     *
+     * @param dir             the directory of the snapshot and the logs
+     * @param commitMillis    maximum time a record waits to be written
+     * @param snapshotRecords number of records that triggers a snapshot
+     * @return the journal
+     * @throws IOException if the directory cannot be read or written
+     */
+    public static PolicyJournal open(Path dir, long commitMillis, int snapshotRecords) throws IOException {
+        return new PolicyJournal(dir, commitMillis, snapshotRecords);
+    }
+
+    /**
+     * Returns the policies recovered when the journal was opened, in the
+     * order they were added, with their last state and priority.
+     *
+     * @return the policy rules
+     */
+    public Collection<PolicyRule> getRecovered() {
+        return recovered.values();
+    }
+
+    /**
+     * Starts writing the records in the background.
+     *
+     * @param snapshotSource copies the policies of the store while running
+     *                       the given action atomically with respect to any
+     *                       change of the store
+     */
+    public void start(Function<Runnable, Collection<PolicyRule>> snapshotSource) {
+        this.snapshotSource = snapshotSource;
+        recovered.clear();
+        writer.start();
+    }
+
+    /**
+     * Records that a policy has been added to the store.
+     *
+     * @param pr the policy rule
+     */
+    public void added(PolicyRule pr) {
+        byte[] json;
+        try {
+            json = PolicyCodec.toJsonBytes(pr);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer record = record(ADDED, 1 + json.length);
+        record.put((byte) (Boolean.TRUE.equals(pr.isDeactivated()) ? 1 : 0)).put(json);
+        append(record);
+    }
+
+    /**
+     * Records that a stored policy changed its state.
+     *
+     * @param id          the policy identifier
+     * @param state       the new state
+     * @param deactivated whether the policy is deactivated manually
+     */
+    public void stateChanged(int id, PolicyState state, boolean deactivated) {
+        ByteBuffer record = record(STATE_CHANGED, 6);
+        record.putInt(id).put((byte) state.ordinal()).put((byte) (deactivated ? 1 : 0));
+        append(record);
+    }
+
+    /**
+     * Records that a stored policy changed its priority.
+     *
+     * @param id       the policy identifier
+     * @param priority the new priority
+     */
+    public void priorityChanged(int id, int priority) {
+        ByteBuffer record = record(PRIORITY_CHANGED, 8);
+        record.putInt(id).putInt(priority);
+        append(record);
+    }
+
+    /**
+     * Records that a policy has been removed from the store.
+     *
+     * @param id the policy identifier
+     */
+    public void removed(int id) {
+        ByteBuffer record = record(REMOVED, 4);
+        record.putInt(id);
+        append(record);
+    }
+
+    /**
+     * Records that all the policies have been removed from the store.
+     */
+    public void cleared() {
+        append(record(CLEARED, 0));
+    }
+
+    /**
+     * Waits until every record appended so far is written and forced to disk.
+     * Many callers waiting at once share the same write. Returns at once if
+     * the log could not be written.
+     */
+    public synchronized void sync() {
+        long target = appended;
+        notifyAll();
+        boolean interrupted = false;
+        while (durable < target && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the pending records, takes a final snapshot so the next start
+     * only has to read it, and closes the log.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (snapshotSource != null && failure == null) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            log.warn("Cannot write the policy snapshot: {}", e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Cannot close the policy log: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static ByteBuffer record(byte kind, int payloadLength) {
+        ByteBuffer record = ByteBuffer.allocate(9 + payloadLength);
+        record.putInt(payloadLength + 1).putInt(0).put(kind);
+        return record;
+    }
+
+    private synchronized void append(ByteBuffer record) {
+        if (closed || snapshotSource == null) {
+            // Not started (restoring) or already stopped: nothing to record
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.position() - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        if (pending.remaining() < record.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                                                             pending.position() + record.remaining()));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.put(record);
+        appended++;
+        recordsSinceSnapshot++;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchEnd;
+            boolean snapshotDue;
+            synchronized (this) {
+                if (pending.position() == 0 && !closed) {
+                    try {
+                        wait(commitMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0 && closed) {
+                    notifyAll();
+                    return;
+                }
+                batch = pending;
+                batchEnd = appended;
+                pending = ByteBuffer.allocate(batch.capacity());
+                snapshotDue = recordsSinceSnapshot >= snapshotRecords && !closed;
+            }
+            try {
+                batch.flip();
+                write(batch);
+                synchronized (this) {
+                    durable = batchEnd;
+                    notifyAll();
+                }
+                if (snapshotDue) {
+                    snapshot();
+                }
+            } catch (IOException e) {
+                log.error("Cannot write the policy log, policies will not be persisted: {}", e.getMessage());
+                synchronized (this) {
+                    failure = e;
+                    closed = true;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Writes a snapshot of the store and starts a new generation of the log.
+     * Only the copy of the store blocks its changes; the policies are
+     * serialized afterwards. Changes made in between are both in the
+     * snapshot and in the new log, which is harmless.
+     */
+    private void snapshot() throws IOException {
+        long[] newGeneration = new long[1];
+        IOException[] rotationFailure = new IOException[1];
+        Collection<PolicyRule> rules = snapshotSource.apply(() -> {
+            try {
+                newGeneration[0] = rotate();
+            } catch (IOException e) {
+                rotationFailure[0] = e;
+            }
+        });
+        if (rotationFailure[0] != null) {
+            throw rotationFailure[0];
+        }
+
+        Path tmp = dir.resolve(SNAPSHOT_TMP);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out),
+                                                                                  64 * 1024));
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(SNAPSHOT_VERSION);
+            data.writeLong(newGeneration[0]);
+            data.writeInt(rules.size());
+            CRC32 crc = new CRC32();
+            for (PolicyRule pr : rules) {
+                byte[] json = PolicyCodec.toJsonBytes(pr);
+                crc.reset();
+                crc.update(json, 0, json.length);
+                data.writeBoolean(Boolean.TRUE.equals(pr.isDeactivated()));
+                data.writeInt(json.length);
+                data.writeInt((int) crc.getValue());
+                data.write(json);
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long obsolete : logGenerations()) {
+            if (obsolete < newGeneration[0]) {
+                Files.deleteIfExists(logPath(obsolete));
+            }
+        }
+        log.info("Policy snapshot written: {} policies", rules.size());
+    }
+
+    /**
+     * Writes the pending records to the current log and switches to a new
+     * generation. Called while the store cannot change.
+     */
+    private synchronized long rotate() throws IOException {
+        pending.flip();
+        write(pending);
+        pending.clear();
+        durable = appended;
+        notifyAll();
+        channel.close();
+        generation++;
+        channel = openLog(generation);
+        recordsSinceSnapshot = 0;
+        return generation;
+    }
+
+    /**
+     * Loads the snapshot and replays the newer logs.
+     *
+     * @return the generation of the log to write
+     */
+    private long recover() throws IOException {
+        long firstGeneration = readSnapshot();
+        long lastGeneration = firstGeneration;
+        List<Long> generations = logGenerations();
+        for (int i = 0; i < generations.size(); i++) {
+            long g = generations.get(i);
+            if (g >= firstGeneration) {
+                replay(logPath(g));
+                lastGeneration = Math.max(lastGeneration, g);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Recovered {} policies from {}", recovered.size(), dir);
+        }
+        // Older logs are not needed; a new generation starts after the last one
+        for (long g : generations) {
+            if (g < firstGeneration) {
+                Files.deleteIfExists(logPath(g));
+            }
+        }
+        return lastGeneration + 1;
+    }
+
+    /**
+     * Loads the snapshot, if any.
+     *
+     * @return the first generation of the log not covered by the snapshot
+     */
+    private long readSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                                                                                64 * 1024))) {
+            if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown format of the policy snapshot " + path);
+            }
+            long size = Files.size(path);
+            long generation = data.readLong();
+            int count = data.readInt();
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < count; i++) {
+                boolean deactivated = data.readBoolean();
+                int length = data.readInt();
+                if (length < 0 || length > size) {
+                    throw new IOException("Corrupted policy snapshot " + path);
+                }
+                byte[] json = new byte[length];
+                int checksum = data.readInt();
+                data.readFully(json);
+                crc.reset();
+                crc.update(json, 0, json.length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Corrupted policy snapshot " + path);
+                }
+                PolicyRule pr = parse(json);
+                pr.setDeactivated(deactivated);
+                recovered.put(pr.getId(), pr);
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Replays a log on the recovered policies. A damaged tail is cut off.
+     */
+    private void replay(Path path) throws IOException {
+        long size = Files.size(path);
+        long valid = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            DataInputStream data = new DataInputStream(in);
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] body;
+                try {
+                    length = data.readInt();
+                    checksum = data.readInt();
+                    // A torn or corrupted header may give any length, which must not be allocated
+                    if (length < 1 || length > size - valid - 8) {
+                        break;
+                    }
+                    body = new byte[length];
+                    data.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(body));
+                valid += 8 + length;
+            }
+        }
+        if (valid < size) {
+            log.warn("Discarding the damaged tail of the policy log {} at offset {}", path, valid);
+            try (FileChannel damaged = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                damaged.truncate(valid);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body) throws IOException {
+        byte kind = body.get();
+        switch (kind) {
+            case ADDED:
+                boolean deactivated = body.get() != 0;
+                byte[] json = new byte[body.remaining()];
+                body.get(json);
+                PolicyRule added = parse(json);
+                added.setDeactivated(deactivated);
+                recovered.put(added.getId(), added);
+                break;
+            case STATE_CHANGED:
+                PolicyRule moved = recovered.get(body.getInt());
+                byte state = body.get();
+                boolean tagged = body.get() != 0;
+                if (moved != null) {
+                    moved.setState(STATES[state]);
+                    moved.setDeactivated(tagged);
+                }
+                break;
+            case PRIORITY_CHANGED:
+                PolicyRule reprioritized = recovered.get(body.getInt());
+                int priority = body.getInt();
+                if (reprioritized != null) {
+                    reprioritized.setPriority(priority);
+                }
+                break;
+            case REMOVED:
+                recovered.remove(body.getInt());
+                break;
+            case CLEARED:
+                recovered.clear();
+                break;
+            default:
+                throw new IOException("Unknown policy log record " + kind);
+        }
+    }
+
+    private static PolicyRule parse(byte[] json) throws IOException {
+        return PolicyCodec.readPolicyRule(json);
+    }
+
+    private FileChannel openLog(long generation) throws IOException {
+        return FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.APPEND);
+    }
+
+    private Path logPath(long generation) {
+        return dir.resolve(String.format("%s%016d%s", LOG_PREFIX, generation, LOG_SUFFIX));
+    }
+
+    /**
+     * Returns the generations of the logs in the directory, in ascending order.
+     */
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path path : logs) {
+                String name = path.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(LOG_PREFIX.length(),
+                                                                  name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {}", path);
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+}
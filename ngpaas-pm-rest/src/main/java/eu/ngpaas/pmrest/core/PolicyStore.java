@@ -0,0 +1,496 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyRules;
+import eu.ngpaas.pmlib.PolicyState;
+
+/**
+ * Stores the policies of the framework. Policies are indexed by id, and
+ * secondary indexes by PolicyState and by policy type are kept consistent
+ * on every state transition. Id lookups are O(1) and state/type queries
+ * cost proportional to the size of the result. The conditions of the
+ * ENFORCED policies are also kept in a ConditionIndex to prune the
+ * candidates of the conflict validation, and the conditions of the PENDING
+ * policies in another one to find the policies a removal may unblock.
+ * PENDING policies are also indexed by fingerprint to find duplicates.
+ * The conflicts between the ENFORCED and PENDING policies are kept in a
+ * ConflictGraph, whose edges are computed when a policy is added, using
+ * both condition indexes to find its candidates, and dropped when it is
+ * removed.
+ */
+public class PolicyStore {
+
+    /**
+     * Primary index: policy id to policy rule
+     */
+    private final ConcurrentMap<Integer, PolicyRule> policiesById = new ConcurrentHashMap<>();
+
+    /**
+     * Secondary index: all the policies, ordered by id
+     */
+    private final ConcurrentSkipListMap<Integer, PolicyRule> orderedPolicies = new ConcurrentSkipListMap<>();
+
+    /**
+     * Secondary index: policy state to the policies in that state, ordered by id
+     */
+    private final Map<PolicyState, ConcurrentSkipListMap<Integer, PolicyRule>> policiesByState =
+        new EnumMap<>(PolicyState.class);
+
+    /**
+     * Secondary index: policy type to the policies of that type, ordered by id
+     */
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Integer, PolicyRule>> policiesByType =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Condition index of the ENFORCED policies
+     */
+    private final ConditionIndex activeConditions = new ConditionIndex();
+
+    /**
+     * Condition index of the PENDING policies
+     */
+    private final ConditionIndex pendingConditions = new ConditionIndex();
+
+    /**
+     * Conflicts between the ENFORCED and PENDING policies
+     */
+    private final ConflictGraph conflicts = new ConflictGraph();
+
+    /**
+     * Fingerprint to the PENDING policies with that fingerprint, used to find duplicates
+     */
+    private final Map<Long, Map<Integer, PolicyRule>> pendingByFingerprint = new HashMap<>();
+
+    /**
+     * Records the changes of the store, or null if the policies are not persisted
+     */
+    private PolicyJournal journal = null;
+
+    public PolicyStore() {
+        for (PolicyState state : PolicyState.values()) {
+            policiesByState.put(state, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * Adds a policy to the store, indexing it by its current state and type.
+     * If a policy with the same id is already stored, it is replaced. The
+     * policy is put in its canonical form if it is not.
+     *
+     * @param pr the policy rule
+     */
+    public synchronized void add(PolicyRule pr) {
+        if (!pr.isCanonical()) {
+            pr.canonicalize();
+        }
+        PolicyRule previous = policiesById.put(pr.getId(), pr);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(pr);
+        if (journal != null) {
+            journal.added(pr);
+        }
+    }
+
+    /**
+     * Removes the policy with the given id from the store.
+     *
+     * @param id the policy identifier
+     * @return the removed policy rule, or null if it was not stored
+     */
+    public synchronized PolicyRule remove(int id) {
+        PolicyRule pr = policiesById.remove(id);
+        if (pr != null) {
+            unindex(pr);
+            if (journal != null) {
+                journal.removed(id);
+            }
+        }
+        return pr;
+    }
+
+    /**
+     * Removes all the policies from the store.
+     */
+    public synchronized void clear() {
+        policiesById.clear();
+        orderedPolicies.clear();
+        policiesByState.values().forEach(Map::clear);
+        policiesByType.clear();
+        activeConditions.clear();
+        pendingConditions.clear();
+        conflicts.clear();
+        pendingByFingerprint.clear();
+        if (journal != null) {
+            journal.cleared();
+        }
+    }
+
+    /**
+     * Moves a policy to a new state. If the policy is stored, the state index
+     * is updated accordingly; otherwise only the policy itself is modified.
+     *
+     * @param pr    the policy rule
+     * @param state the new state
+     */
+    public synchronized void setState(PolicyRule pr, PolicyState state) {
+        if (policiesById.get(pr.getId()) != pr) {
+            pr.setState(state);
+            return;
+        }
+        if (pr.getState() != null) {
+            policiesByState.get(pr.getState()).remove(pr.getId());
+        }
+        if (pr.getState() == PolicyState.PENDING) {
+            unindexFingerprint(pr);
+        }
+        if (state == PolicyState.PENDING) {
+            indexFingerprint(pr);
+        }
+        ConditionIndex from = conditionIndexOf(pr.getState());
+        ConditionIndex to = conditionIndexOf(state);
+        if (from != to) {
+            if (from != null) {
+                from.remove(pr);
+            }
+            if (to != null) {
+                to.add(pr);
+            }
+            // The edges do not depend on the state, only on being ENFORCED or PENDING
+            if (from == null) {
+                link(pr);
+            } else if (to == null) {
+                conflicts.remove(pr.getId());
+            }
+        }
+        pr.setState(state);
+        policiesByState.get(state).put(pr.getId(), pr);
+        if (journal != null) {
+            journal.stateChanged(pr.getId(), state, Boolean.TRUE.equals(pr.isDeactivated()));
+        }
+    }
+
+    /**
+     * Changes the priority of a policy, keeping the fingerprint index
+     * consistent.
+     *
+     * @param pr       the policy rule
+     * @param priority the new priority
+     */
+    public synchronized void setPriority(PolicyRule pr, int priority) {
+        boolean stored = policiesById.get(pr.getId()) == pr;
+        boolean indexed = stored && pr.getState() == PolicyState.PENDING;
+        if (indexed) {
+            unindexFingerprint(pr);
+        }
+        pr.setPriority(priority);
+        if (indexed) {
+            indexFingerprint(pr);
+        }
+        if (stored && journal != null) {
+            journal.priorityChanged(pr.getId(), priority);
+        }
+    }
+
+    /**
+     * Records every later change of the store in a journal. The policies
+     * already stored are expected to be in the journal.
+     *
+     * @param journal the journal, or null to stop recording
+     */
+    public synchronized void setJournal(PolicyJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Copies the stored policies and runs an action while the store cannot
+     * change, so the copy and the action are consistent with each other.
+     *
+     * @param action the action
+     * @return the policy rules, ordered by id
+     */
+    public synchronized Collection<PolicyRule> checkpoint(Runnable action) {
+        Collection<PolicyRule> rules = new ArrayList<>(orderedPolicies.values());
+        action.run();
+        return rules;
+    }
+
+    /**
+     * Returns a PENDING policy equal to the given one (same type, priority,
+     * conditions and actions). Only the policies with the same fingerprint
+     * are compared.
+     *
+     * @param pr the policy rule
+     * @return the equal PENDING policy, or null
+     */
+    public synchronized PolicyRule findPendingDuplicate(PolicyRule pr) {
+        Map<Integer, PolicyRule> sameFingerprint = pendingByFingerprint.get(pr.getFingerprint());
+        if (sameFingerprint != null) {
+            for (PolicyRule pending : sameFingerprint.values()) {
+                if (pending.equals(pr)) {
+                    return pending;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the policy with the given id.
+     *
+     * @param id the policy identifier
+     * @return the policy rule, or null
+     */
+    public PolicyRule get(int id) {
+        return policiesById.get(id);
+    }
+
+    /**
+     * Returns the policy with the given id only if it is in the given state.
+     *
+     * @param id    the policy identifier
+     * @param state the expected state
+     * @return the policy rule, or null
+     */
+    public PolicyRule get(int id, PolicyState state) {
+        return policiesByState.get(state).get(id);
+    }
+
+    /**
+     * Returns all the policies, ordered by id.
+     *
+     * @return a PolicyRules object
+     */
+    public PolicyRules getAll() {
+        return toPolicyRules(orderedPolicies.values());
+    }
+
+    /**
+     * Returns the policies in the given state, ordered by id.
+     *
+     * @param state the policy state
+     * @return a PolicyRules object
+     */
+    public PolicyRules getByState(PolicyState state) {
+        return toPolicyRules(policiesByState.get(state).values());
+    }
+
+    /**
+     * Returns the policies of the given type, ordered by id.
+     *
+     * @param type the policy type
+     * @return a PolicyRules object
+     */
+    public PolicyRules getByType(String type) {
+        ConcurrentSkipListMap<Integer, PolicyRule> byType = policiesByType.get(type);
+        if (byType == null) {
+            return new PolicyRules();
+        }
+        return toPolicyRules(byType.values());
+    }
+
+    /**
+     * Returns the policies that match a filter and have an id greater than
+     * the given one, ordered by id. The policies are looked up lazily, as
+     * the iterator advances, in the smallest index that covers the filter.
+     * The iterator is weakly consistent: it reflects some of the changes
+     * made while it is used, and never throws ConcurrentModificationException.
+     *
+     * @param filter the filter
+     * @param after  the policies with this id or a lower one are skipped
+     * @return an iterator over the matching policies
+     */
+    public Iterator<PolicyRule> iterator(PolicyFilter filter, int after) {
+        ConcurrentSkipListMap<Integer, PolicyRule> index;
+        if (filter.getType() != null) {
+            index = policiesByType.get(filter.getType());
+            if (index == null) {
+                return Collections.emptyIterator();
+            }
+        } else if (filter.getState() != null) {
+            index = policiesByState.get(filter.getState());
+        } else {
+            index = orderedPolicies;
+        }
+        return index.tailMap(after, false).values().stream().filter(filter::matches).iterator();
+    }
+
+    /**
+     * Returns a live, read-only view of the policies in the given state.
+     *
+     * @param state the policy state
+     * @return the policies in the given state
+     */
+    public Collection<PolicyRule> viewByState(PolicyState state) {
+        return Collections.unmodifiableCollection(policiesByState.get(state).values());
+    }
+
+    /**
+     * Returns the ENFORCED policies that may conflict with the given policy,
+     * ordered by id. The ENFORCED policies that are not returned have all
+     * their conditions independent of the conditions of the given policy.
+     *
+     * @param pr the policy rule
+     * @return the candidate policies
+     */
+    public Collection<PolicyRule> getConflictCandidates(PolicyRule pr) {
+        return activeConditions.candidates(pr);
+    }
+
+    /**
+     * Returns the PENDING policies that may conflict with the given policy,
+     * ordered by id. These are the only PENDING policies whose conflict
+     * validation may change when the given policy leaves the ENFORCED state.
+     *
+     * @param pr the policy rule
+     * @return the candidate policies
+     */
+    public Collection<PolicyRule> getPendingCandidates(PolicyRule pr) {
+        return pendingConditions.candidates(pr);
+    }
+
+    /**
+     * Returns the stored policies in conflict with a stored ENFORCED or
+     * PENDING policy, i.e. its neighbours in the conflict graph.
+     *
+     * @param pr the policy rule
+     * @return the conflicting policies, ordered by id, or null if the policy is not in the graph
+     */
+    public synchronized List<PolicyRule> getConflicts(PolicyRule pr) {
+        if (policiesById.get(pr.getId()) != pr || !conflicts.contains(pr.getId())) {
+            return null;
+        }
+        return conflicts.neighbours(pr.getId());
+    }
+
+    /**
+     * Returns the stored policies in a given state in conflict with a stored
+     * ENFORCED or PENDING policy.
+     *
+     * @param pr    the policy rule
+     * @param state the state of the conflicting policies
+     * @return the conflicting policies, ordered by id, or null if the policy is not in the graph
+     */
+    public synchronized List<PolicyRule> getConflicts(PolicyRule pr, PolicyState state) {
+        List<PolicyRule> neighbours = getConflicts(pr);
+        if (neighbours != null) {
+            neighbours.removeIf(neighbour -> neighbour.getState() != state);
+        }
+        return neighbours;
+    }
+
+    /**
+     * Returns the number of stored policies.
+     *
+     * @return the number of policies
+     */
+    public int size() {
+        return policiesById.size();
+    }
+
+    /**
+     * Returns whether there is any policy in the given state.
+     *
+     * @param state the policy state
+     * @return true or false
+     */
+    public boolean isEmpty(PolicyState state) {
+        return policiesByState.get(state).isEmpty();
+    }
+
+    private void index(PolicyRule pr) {
+        orderedPolicies.put(pr.getId(), pr);
+        if (pr.getState() != null) {
+            policiesByState.get(pr.getState()).put(pr.getId(), pr);
+        }
+        ConditionIndex conditions = conditionIndexOf(pr.getState());
+        if (conditions != null) {
+            conditions.add(pr);
+            link(pr);
+        }
+        if (pr.getState() == PolicyState.PENDING) {
+            indexFingerprint(pr);
+        }
+        policiesByType.computeIfAbsent(pr.getType(), t -> new ConcurrentSkipListMap<>()).put(pr.getId(), pr);
+    }
+
+    private void unindex(PolicyRule pr) {
+        orderedPolicies.remove(pr.getId());
+        if (pr.getState() != null) {
+            policiesByState.get(pr.getState()).remove(pr.getId());
+        }
+        ConditionIndex conditions = conditionIndexOf(pr.getState());
+        if (conditions != null) {
+            conditions.remove(pr);
+            conflicts.remove(pr.getId());
+        }
+        if (pr.getState() == PolicyState.PENDING) {
+            unindexFingerprint(pr);
+        }
+        ConcurrentSkipListMap<Integer, PolicyRule> byType = policiesByType.get(pr.getType());
+        if (byType != null) {
+            byType.remove(pr.getId());
+            if (byType.isEmpty()) {
+                policiesByType.remove(pr.getType());
+            }
+        }
+    }
+
+    /**
+     * Adds a policy to the conflict graph. Only the ENFORCED and PENDING
+     * policies that share conditions with it are checked.
+     */
+    private void link(PolicyRule pr) {
+        List<PolicyRule> candidates = new ArrayList<>(activeConditions.candidates(pr));
+        candidates.addAll(pendingConditions.candidates(pr));
+        conflicts.add(pr, candidates);
+    }
+
+    private void indexFingerprint(PolicyRule pr) {
+        pendingByFingerprint.computeIfAbsent(pr.getFingerprint(), f -> new HashMap<>()).put(pr.getId(), pr);
+    }
+
+    private void unindexFingerprint(PolicyRule pr) {
+        Map<Integer, PolicyRule> sameFingerprint = pendingByFingerprint.get(pr.getFingerprint());
+        if (sameFingerprint != null) {
+            sameFingerprint.remove(pr.getId());
+            if (sameFingerprint.isEmpty()) {
+                pendingByFingerprint.remove(pr.getFingerprint());
+            }
+        }
+    }
+
+    /**
+     * Returns the condition index of the policies in the given state, or null
+     * if the conditions of that state are not indexed.
+     */
+    private ConditionIndex conditionIndexOf(PolicyState state) {
+        if (state == PolicyState.ENFORCED) {
+            return activeConditions;
+        } else if (state == PolicyState.PENDING) {
+            return pendingConditions;
+        }
+        return null;
+    }
+
+    private static PolicyRules toPolicyRules(Collection<PolicyRule> rules) {
+        PolicyRules prs = new PolicyRules();
+        prs.setPolicyRules(new CopyOnWriteArrayList<>(rules));
+        return prs;
+    }
+}
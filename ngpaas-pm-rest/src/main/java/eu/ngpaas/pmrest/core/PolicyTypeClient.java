@@ -0,0 +1,236 @@
+package eu.ngpaas.pmrest.core;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import eu.ngpaas.pmlib.SimpleResponse;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
+import org.slf4j.Logger;
+
+/**
+ * Asynchronous client of the REST endpoints of the policy type apps.
+ * All the calls share a single JAX-RS client, so connections are reused
+ * (kept alive) across calls, and run on a bounded thread pool.
+ * Calls are scheduled per policy type: validation calls of a type run
+ * concurrently up to a configurable limit, while enforce/remove calls of a
+ * type run one at a time in submission order, so the network is always
+ * modified in the same order the manager decided.
+ * Calls to policy type apps served in-process are scheduled the same way.
+ */
+public class PolicyTypeClient {
+
+    private final Logger log = getLogger(getClass());
+
+    private final Client client;
+    private final WebTarget target;
+    private final ExecutorService executor;
+    private final int maxConcurrentPerType;
+    private final AdmissionMetrics metrics;
+
+    /**
+     * Policy type to the channel used for validation calls
+     */
+    private final ConcurrentMap<String, Channel> validationChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Policy type to the channel used for calls that modify the network
+     */
+    private final ConcurrentMap<String, Channel> orderedChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a client of the policy type apps.
+     *
+     * @param baseUri             base URI of the policy type endpoints
+     * @param username            user for the basic authentication
+     * @param password            password for the basic authentication
+     * @param poolSize            number of threads performing HTTP calls
+     * @param maxConcurrentPerType maximum number of concurrent validation calls per policy type
+     * @param timeoutMillis       connect and read timeout of each call
+     * @param metrics             counts the HTTP status codes of the replies
+     */
+    public PolicyTypeClient(URI baseUri, String username, String password, int poolSize,
+                            int maxConcurrentPerType, int timeoutMillis, AdmissionMetrics metrics) {
+        this.client = ClientBuilder.newClient(new ClientConfig()
+                                                  .property(ClientProperties.CONNECT_TIMEOUT, timeoutMillis)
+                                                  .property(ClientProperties.READ_TIMEOUT, timeoutMillis))
+                                   .register(HttpAuthenticationFeature.basic(username, password));
+        this.target = client.target(baseUri);
+        AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "policy-type-client-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxConcurrentPerType = maxConcurrentPerType;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Posts a JSON body to an endpoint of a policy type app. Calls of the
+     * same type may run concurrently.
+     *
+     * @param type     the policy type
+     * @param endpoint the endpoint under the policy type path (e.g. formalvalidation)
+     * @param body     the JSON body
+     * @return a future with a SimpleResponse holding the reply of the endpoint
+     */
+    public CompletableFuture<SimpleResponse> post(String type, String endpoint, byte[] body) {
+        return validationChannels.computeIfAbsent(type, t -> new Channel(maxConcurrentPerType))
+                                 .submit(() -> call(type, endpoint, body));
+    }
+
+    /**
+     * Posts a JSON body to an endpoint of a policy type app. Calls of the
+     * same type submitted through this method run one at a time, in order.
+     *
+     * @param type     the policy type
+     * @param endpoint the endpoint under the policy type path (e.g. enforce)
+     * @param body     the JSON body
+     * @return a future with a SimpleResponse holding the reply of the endpoint
+     */
+    public CompletableFuture<SimpleResponse> postOrdered(String type, String endpoint, byte[] body) {
+        return orderedChannels.computeIfAbsent(type, t -> new Channel(1))
+                              .submit(() -> call(type, endpoint, body));
+    }
+
+    /**
+     * Runs a call to a policy type app served in-process. Calls of the same
+     * type may run concurrently, with the same limit as the REST calls.
+     *
+     * @param type     the policy type
+     * @param endpoint name of the call, for the logs
+     * @param call     the call
+     * @return a future with the reply of the call, or a 500 SimpleResponse if it failed
+     */
+    public CompletableFuture<SimpleResponse> invoke(String type, String endpoint, Supplier<SimpleResponse> call) {
+        return validationChannels.computeIfAbsent(type, t -> new Channel(maxConcurrentPerType))
+                                 .submit(() -> callLocal(type, endpoint, call));
+    }
+
+    /**
+     * Runs a call to a policy type app served in-process. Calls of the same
+     * type submitted through this method or postOrdered run one at a time,
+     * in order.
+     *
+     * @param type     the policy type
+     * @param endpoint name of the call, for the logs
+     * @param call     the call
+     * @return a future with the reply of the call, or a 500 SimpleResponse if it failed
+     */
+    public CompletableFuture<SimpleResponse> invokeOrdered(String type, String endpoint,
+                                                           Supplier<SimpleResponse> call) {
+        return orderedChannels.computeIfAbsent(type, t -> new Channel(1))
+                              .submit(() -> callLocal(type, endpoint, call));
+    }
+
+    /**
+     * Stops the thread pool and releases the connections.
+     */
+    public void close() {
+        executor.shutdown();
+        client.close();
+    }
+
+    private SimpleResponse call(String type, String endpoint, byte[] body) {
+        Response response = null;
+        try {
+            response = target.path(type.toLowerCase() + "policy/" + endpoint)
+                             .request()
+                             .post(Entity.json(new ByteArrayInputStream(body)));
+            metrics.southboundResponse(response.getStatus());
+            // Always consume the entity so the connection can be reused
+            String entity = response.readEntity(String.class);
+            return new SimpleResponse(entity == null ? "" : entity,
+                                      response.getStatus() == Status.OK.getStatusCode() ? 200 :
+                                          response.getStatus());
+        } catch (RuntimeException e) {
+            log.warn("Call to {}policy/{} failed: {}", type.toLowerCase(), endpoint, e.getMessage());
+            metrics.southboundResponse(-1);
+            return new SimpleResponse(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                                      "Policy type " + type + " unreachable: " + e.getMessage(), false);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    private SimpleResponse callLocal(String type, String endpoint, Supplier<SimpleResponse> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            log.warn("In-process call {} of policy type {} failed: {}", endpoint, type, e.getMessage());
+            return new SimpleResponse(Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                                      "Policy type " + type + " failed: " + e.getMessage(), false);
+        }
+    }
+
+    /**
+     * Runs tasks on the shared executor with at most a given number of them
+     * in flight. Tasks beyond that limit wait in a FIFO queue without
+     * holding a thread.
+     */
+    private final class Channel {
+
+        private final int limit;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight = 0;
+
+        private Channel(int limit) {
+            this.limit = limit;
+        }
+
+        private CompletableFuture<SimpleResponse> submit(Supplier<SimpleResponse> task) {
+            CompletableFuture<SimpleResponse> future = new CompletableFuture<>();
+            Runnable runnable = () -> {
+                try {
+                    future.complete(task.get());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    next();
+                }
+            };
+            synchronized (this) {
+                if (inFlight >= limit) {
+                    waiting.add(runnable);
+                    return future;
+                }
+                inFlight++;
+            }
+            executor.execute(runnable);
+            return future;
+        }
+
+        private void next() {
+            Runnable runnable;
+            synchronized (this) {
+                runnable = waiting.poll();
+                if (runnable == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            executor.execute(runnable);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks of the policies, striped by policy type. Policies of different types
+ * never conflict, so the validation and enforcement of a policy only needs
+ * to exclude the operations on policies of the same type. Each type has a
+ * read/write lock: operations that modify the policies of a type take the
+ * write lock and queries take the read lock.
+ * Operations on every type (e.g. deleting all the policies) take the write
+ * side of a global lock, whose read side is held by every per-type operation.
+ * All the locks are reentrant. The time the write locks are waited for and
+ * held is recorded in the AdmissionMetrics.
+ */
+public class PolicyTypeLocks {
+
+    private final AdmissionMetrics metrics;
+    private final TimedLock global = new TimedLock();
+    private final ConcurrentMap<String, TimedLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the locks.
+     *
+     * @param metrics records the wait and hold times of the write locks
+     */
+    public PolicyTypeLocks(AdmissionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Acquires the lock to modify the policies of a type.
+     *
+     * @param type the policy type
+     */
+    public void lock(String type) {
+        global.readLock().lock();
+        try {
+            lockOf(type).lockWrite(type);
+        } catch (RuntimeException | Error e) {
+            global.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock to modify the policies of a type.
+     *
+     * @param type the policy type
+     */
+    public void unlock(String type) {
+        lockOf(type).unlockWrite(type);
+        global.readLock().unlock();
+    }
+
+    /**
+     * Acquires the lock to query the policies of a type.
+     *
+     * @param type the policy type
+     */
+    public void readLock(String type) {
+        global.readLock().lock();
+        try {
+            lockOf(type).readLock().lock();
+        } catch (RuntimeException | Error e) {
+            global.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the lock to query the policies of a type.
+     *
+     * @param type the policy type
+     */
+    public void readUnlock(String type) {
+        lockOf(type).readLock().unlock();
+        global.readLock().unlock();
+    }
+
+    /**
+     * Acquires the lock to modify the policies of every type. It waits until
+     * no per-type operation is in progress.
+     */
+    public void lockAll() {
+        global.lockWrite(AdmissionMetrics.ALL_TYPES);
+    }
+
+    /**
+     * Releases the lock to modify the policies of every type.
+     */
+    public void unlockAll() {
+        global.unlockWrite(AdmissionMetrics.ALL_TYPES);
+    }
+
+    private TimedLock lockOf(String type) {
+        TimedLock lock = locks.get(type);
+        if (lock == null) {
+            lock = locks.computeIfAbsent(type, t -> new TimedLock());
+        }
+        return lock;
+    }
+
+    /**
+     * A read/write lock that records how long its write lock is waited for
+     * and, from the outermost acquisition to the matching release, held.
+     */
+    private final class TimedLock extends ReentrantReadWriteLock {
+
+        /**
+         * Time of the outermost acquisition of the write lock, guarded by it
+         */
+        private long acquiredAt;
+
+        private void lockWrite(String type) {
+            long start = System.nanoTime();
+            writeLock().lock();
+            if (getWriteHoldCount() == 1) {
+                acquiredAt = System.nanoTime();
+                metrics.lockWaited(type, acquiredAt - start);
+            }
+        }
+
+        private void unlockWrite(String type) {
+            if (getWriteHoldCount() == 1) {
+                metrics.lockHeld(type, System.nanoTime() - acquiredAt);
+            }
+            writeLock().unlock();
+        }
+    }
+}
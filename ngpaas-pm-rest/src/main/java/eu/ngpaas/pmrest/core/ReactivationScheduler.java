@@ -0,0 +1,195 @@
+package eu.ngpaas.pmrest.core;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import eu.ngpaas.pmlib.PolicyRule;
+import org.slf4j.Logger;
+
+/**
+ * Schedules the reactivation of PENDING policies on a background thread.
+ * The PENDING policies unblocked by the policies that leave the ENFORCED
+ * state, and the changes of the network, are collected until no event is
+ * received for a debounce delay, and then handed over in a single call, so
+ * a burst of removals triggers a single reactivation round. Every event
+ * postpones the round, but never beyond a maximum wait since the first
+ * event of the round, so a steady flow of events does not starve it.
+ * Rounds never overlap: events received during a round are handled by the
+ * next one.
+ */
+public class ReactivationScheduler {
+
+    /**
+     * Performs a reactivation round.
+     */
+    public interface Handler {
+
+        /**
+         * Tries to activate the PENDING policies that may have been unblocked.
+         *
+         * @param unblocked PENDING policies that may have been unblocked since the last round
+         * @param all       true if the network changed, so every PENDING policy has to be reconsidered
+         */
+        void reactivate(Collection<PolicyRule> unblocked, boolean all);
+    }
+
+    private final Logger log = getLogger(getClass());
+
+    private final Handler handler;
+    private final long debounceNanos;
+    private final long maxWaitNanos;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Policy id to the policies unblocked since the last round
+     */
+    private Map<Integer, PolicyRule> unblocked = new LinkedHashMap<>();
+    private boolean all = false;
+
+    /**
+     * The next round, or null if no event is waiting for one
+     */
+    private ScheduledFuture<?> scheduled = null;
+
+    /**
+     * True while the handler performs a round
+     */
+    private boolean running = false;
+
+    /**
+     * Number of events received so far
+     */
+    private long events = 0;
+
+    /**
+     * Time of the first event of the next round, from System.nanoTime()
+     */
+    private long firstEvent;
+
+    /**
+     * Constructs a scheduler.
+     *
+     * @param handler        performs the reactivation rounds
+     * @param debounceMillis time without events after which a round starts
+     * @param maxWaitMillis  maximum time between the first event of a round and its start
+     */
+    public ReactivationScheduler(Handler handler, long debounceMillis, long maxWaitMillis) {
+        this.handler = handler;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxWaitMillis));
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "policy-reactivation");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Notifies that a policy left the ENFORCED state.
+     *
+     * @param neighbours the PENDING policies in conflict with it, which may have been unblocked
+     */
+    public synchronized void policyFreed(Collection<PolicyRule> neighbours) {
+        if (neighbours.isEmpty()) {
+            return;
+        }
+        for (PolicyRule pr : neighbours) {
+            unblocked.put(pr.getId(), pr);
+        }
+        events++;
+        schedule();
+    }
+
+    /**
+     * Notifies that the network changed.
+     */
+    public synchronized void networkChanged() {
+        all = true;
+        events++;
+        schedule();
+    }
+
+    /**
+     * Stops the scheduler. Pending events are discarded.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits until no round is scheduled or running, for tests.
+     *
+     * @param deadlineNanos the time to give up at, from System.nanoTime()
+     * @return the number of events received so far, or -1 if the deadline passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized long awaitIdle(long deadlineNanos) throws InterruptedException {
+        while (scheduled != null || running) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return events;
+    }
+
+    /**
+     * Starts the round after the debounce delay, postponing it if it is
+     * already scheduled, within the maximum wait.
+     */
+    private void schedule() {
+        long now = System.nanoTime();
+        if (scheduled == null) {
+            firstEvent = now;
+        } else {
+            // If the round is already running, the events are taken by it or by the one scheduled next
+            scheduled.cancel(false);
+        }
+        long delay = Math.min(debounceNanos, firstEvent + maxWaitNanos - now);
+        try {
+            scheduled = executor.schedule(this::run, Math.max(0, delay), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The scheduler is stopped
+            scheduled = null;
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        Collection<PolicyRule> round;
+        boolean roundAll;
+        synchronized (this) {
+            round = new ArrayList<>(unblocked.values());
+            roundAll = all;
+            unblocked = new LinkedHashMap<>();
+            all = false;
+            scheduled = null;
+            if (round.isEmpty() && !roundAll) {
+                // Taken by a round that started before this one was cancelled
+                notifyAll();
+                return;
+            }
+            running = true;
+        }
+        try {
+            handler.reactivate(round, roundAll);
+        } catch (RuntimeException e) {
+            log.error("Reactivation of pending policies failed", e);
+        } finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+}
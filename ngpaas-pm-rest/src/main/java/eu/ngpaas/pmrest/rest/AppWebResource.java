@@ -15,24 +15,41 @@
  */
 package eu.ngpaas.pmrest.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import eu.ngpaas.pmlib.PolicyCodec;
+import eu.ngpaas.pmlib.PolicyHelper;
 import eu.ngpaas.pmlib.PolicyRule;
 import eu.ngpaas.pmlib.PolicyRules;
 import eu.ngpaas.pmlib.PolicyState;
 import eu.ngpaas.pmlib.SimpleResponse;
+import eu.ngpaas.pmrest.core.AdmissionMetrics;
+import eu.ngpaas.pmrest.core.AdmissionPlanner;
+import eu.ngpaas.pmrest.core.PolicyFilter;
 import eu.ngpaas.pmrest.core.PolicyFrameworkService;
 import org.onosproject.rest.AbstractWebResource;
 import org.slf4j.Logger;
@@ -41,25 +58,57 @@ import org.slf4j.LoggerFactory;
 @Path("")
 public class AppWebResource extends AbstractWebResource {
 
+    /**
+     * Media type of newline-delimited JSON
+     */
+    private static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * Media type of the Prometheus text format, preferred only when requested explicitly
+     */
+    private static final String PROMETHEUS = "text/plain; version=0.0.4; qs=0.5";
+
     private final Logger log = LoggerFactory.getLogger(getClass());
     private PolicyFrameworkService policyFrameworkService = get(PolicyFrameworkService.class);
 
+    /**
+     * Returns the policies ordered by id, optionally filtered by type, state
+     * and priority range. If a limit is given, at most that many policies are
+     * returned, and if there are more the response has a "next" cursor: the
+     * next page is requested with after=next.
+     */
     @GET
     @Path("policies")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getPolicies() {
-        return ok(policyFrameworkService.getAllPolicies().toJSONString()).
-                                                                             status(200).
-                                                                             build();
+    public Response getPolicies(@QueryParam("type") String type,
+                                @QueryParam("state") String state,
+                                @QueryParam("minPriority") @DefaultValue("-2147483648") int minPriority,
+                                @QueryParam("maxPriority") @DefaultValue("2147483647") int maxPriority,
+                                @QueryParam("after") @DefaultValue("0") int after,
+                                @QueryParam("limit") Integer limit) {
+        PolicyState policyState = null;
+        if (state != null) {
+            try {
+                policyState = PolicyState.fromString(state);
+            } catch (IllegalArgumentException e) {
+                SimpleResponse sr = new SimpleResponse("Unknown policy state " + state, false);
+                return ok(sr.toJSON())
+                    .status(sr.getCode())
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+            }
+        }
+        return listPolicies(new PolicyFilter(type == null ? null : type.toUpperCase(), policyState,
+                                             minPriority, maxPriority), after, limit);
     }
 
     @GET
     @Path("policies/active")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getActivePolicies() {
-        return ok(policyFrameworkService.getActivePolicies().toJSONString()).
-                                                                                status(200).
-                                                                                build();
+    public Response getActivePolicies(@QueryParam("after") @DefaultValue("0") int after,
+                                      @QueryParam("limit") Integer limit) {
+        return listPolicies(new PolicyFilter(null, PolicyState.ENFORCED, Integer.MIN_VALUE, Integer.MAX_VALUE),
+                            after, limit);
     }
 
     @GET
@@ -89,22 +138,45 @@ public class AppWebResource extends AbstractWebResource {
         }
     }
 
+    /**
+     * Returns the policies in conflict with a policy, whatever their state.
+     */
+    @GET
+    @Path("policies/id/{id}/conflicts")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getConflictingPolicies(@PathParam("id") int id) {
+
+        PolicyRules prs = policyFrameworkService.getConflictingPolicies(id);
+
+        if (prs == null) {
+            SimpleResponse sr = new SimpleResponse("No Policy with ID " +
+                                                   String.valueOf(id), false);
+            return ok(sr.toJSON())
+                .status(sr.getCode())
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+        }
+        return ok(prs.toJSONString()).status(200).build();
+    }
+
     @GET
     @Path("policies/state/{state}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getPoliciesByState(@PathParam("state") String state) {
-        return ok(policyFrameworkService.getPoliciesByState(PolicyState.fromString(state)).toJSONString())
-            .status(200)
-            .build();
+    public Response getPoliciesByState(@PathParam("state") String state,
+                                       @QueryParam("after") @DefaultValue("0") int after,
+                                       @QueryParam("limit") Integer limit) {
+        return listPolicies(new PolicyFilter(null, PolicyState.fromString(state), Integer.MIN_VALUE,
+                                             Integer.MAX_VALUE), after, limit);
     }
 
     @GET
     @Path("policies/type/{type}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getPolicyByType(@PathParam("type") String type) {
-        return ok(policyFrameworkService.getPoliciesByType(type).toJSONString())
-            .status(200)
-            .build();
+    public Response getPolicyByType(@PathParam("type") String type,
+                                    @QueryParam("after") @DefaultValue("0") int after,
+                                    @QueryParam("limit") Integer limit) {
+        return listPolicies(new PolicyFilter(type.toUpperCase(), null, Integer.MIN_VALUE, Integer.MAX_VALUE), after,
+                            limit);
     }
 
     @GET
@@ -140,6 +212,37 @@ public class AppWebResource extends AbstractWebResource {
                                   build();
     }
 
+    /**
+     * Returns the latencies of each stage of the admission of policies, per
+     * policy type, the wait and hold times of the policy type locks and the
+     * admission counters. Latencies are in microseconds.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetrics() {
+        AdmissionMetrics metrics = policyFrameworkService.getMetrics();
+        StreamingOutput json = out -> {
+            try (JsonGenerator gen = PolicyCodec.newGenerator(out)) {
+                metrics.writeJson(gen);
+            }
+        };
+        return ok(json).build();
+    }
+
+    /**
+     * Returns the same metrics in the Prometheus text format, with latencies
+     * in seconds.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(PROMETHEUS)
+    public Response getPrometheusMetrics() {
+        StringBuilder text = new StringBuilder();
+        policyFrameworkService.getMetrics().writePrometheus(text);
+        return ok(text.toString()).build();
+    }
+
     @POST
     @Path("policies")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -147,9 +250,6 @@ public class AppWebResource extends AbstractWebResource {
 
         log.info("Request received");
 
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-
         SimpleResponse sr;
 
         PolicyRules policyRules = policyFrameworkService.parsePolicyRules(body);
@@ -167,12 +267,8 @@ public class AppWebResource extends AbstractWebResource {
                 .build();
         } else {
             for (PolicyRule pr : policyRules.getPolicyRules()) {
-                if (pr.getPriority() < 1 || pr.getPolicyConditions().isEmpty()
-                    || pr.getPolicyActions().isEmpty() || pr.getType() == null
-                    || pr.getForm() == null) {
-                    sr = new SimpleResponse("Invalid policy provided. You MUST" +
-                                            " provide a policy with a priority higher than 0, of a valid" +
-                                            " type and form, with non-empty conditions and actions", false);
+                sr = PolicyHelper.validateStructure(pr);
+                if (!sr.isSuccess()) {
                     return ok(sr.toJSON())
                         .status(400)
                         .type(MediaType.APPLICATION_JSON)
@@ -183,7 +279,13 @@ public class AppWebResource extends AbstractWebResource {
         PolicyRules processed_prs = new PolicyRules();
 
         for (PolicyRule pr : policyRules.getPolicyRules()) {
-            policyFrameworkService.preprocess(pr);
+            sr = policyFrameworkService.preprocess(pr);
+            if (!sr.isSuccess()) {
+                return ok(sr.toJSON())
+                    .status(400)
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+            }
             processed_prs.getPolicyRules().add(pr);
         }
         sr = policyFrameworkService.pushPolicies(processed_prs);
@@ -193,6 +295,104 @@ public class AppWebResource extends AbstractWebResource {
             .build();
     }
 
+    /**
+     * Returns what pushing the given policies would do, without storing or
+     * enforcing them: the state, provisional id, code and messages of each
+     * policy, in the order they would be admitted, and the ids of the
+     * policies that would be enforced, removed from the network and
+     * reactivated. With offline=true the policy type apps are not called, and
+     * the validations that need them are assumed to succeed.
+     */
+    @POST
+    @Path("policies/simulate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response simulateNewPolicy(String body,
+                                      @QueryParam("offline") @DefaultValue("false") boolean offline) {
+
+        SimpleResponse sr;
+
+        PolicyRules policyRules = policyFrameworkService.parsePolicyRules(body);
+        if (policyRules == null) {
+            sr = new SimpleResponse("Error when parsing the JSON structure", false);
+            return ok(sr.toJSON())
+                .status(400)
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+        } else if (policyRules.getPolicyRules().isEmpty()) {
+            sr = new SimpleResponse("Empty policy provided", false);
+            return ok(sr.toJSON())
+                .status(400)
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+        }
+        for (PolicyRule pr : policyRules.getPolicyRules()) {
+            sr = PolicyHelper.validateStructure(pr);
+            if (sr.isSuccess()) {
+                sr = policyFrameworkService.preprocess(pr);
+            }
+            if (!sr.isSuccess()) {
+                return ok(sr.toJSON())
+                    .status(400)
+                    .type(MediaType.APPLICATION_JSON)
+                    .build();
+            }
+        }
+        AdmissionPlanner.Plan plan = policyFrameworkService.simulatePolicies(policyRules, offline);
+        StreamingOutput json = out -> {
+            try (JsonGenerator gen = PolicyCodec.newGenerator(out)) {
+                plan.writeJson(gen);
+            }
+        };
+        return ok(json).build();
+    }
+
+    /**
+     * Admits a stream of policies in newline-delimited JSON, one policy per
+     * line. The policies are parsed and admitted one at a time, in arrival
+     * order, and one result line is written back for each of them as soon as
+     * it is admitted, with its id (0 if it is not stored), state, code and
+     * messages. A line that cannot be parsed ends the stream with an error line.
+     */
+    @POST
+    @Path("policies/stream")
+    @Consumes(NDJSON)
+    @Produces(NDJSON)
+    public Response streamNewPolicies(InputStream body) {
+
+        log.info("Stream request received");
+
+        StreamingOutput results = out -> {
+            ParsedPolicyRules policyRules = new ParsedPolicyRules(PolicyCodec.readPolicyRuleStream(body),
+                                                                  policyFrameworkService.getMetrics());
+            try {
+                policyFrameworkService.pushPolicies(policyRules, (pr, sr) -> {
+                    ObjectNode line = mapper().createObjectNode();
+                    line.put("id", pr.getId());
+                    line.put("state", pr.getState() == null ? null : pr.getState().getCommonName());
+                    line.put("code", sr.getCode());
+                    line.put("success", sr.isSuccess());
+                    ArrayNode messages = line.putArray("messages");
+                    for (String message : sr.getMessages()) {
+                        messages.add(message);
+                    }
+                    writeLine(out, line);
+                });
+                if (policyRules.error != null) {
+                    ObjectNode line = mapper().createObjectNode();
+                    line.put("code", 400);
+                    line.put("success", false);
+                    line.putArray("messages").add("Error when parsing the JSON structure: " + policyRules.error);
+                    writeLine(out, line);
+                }
+            } catch (UncheckedIOException e) {
+                // The client closed the connection
+                throw e.getCause();
+            }
+        };
+        return ok(results).build();
+    }
+
     @GET
     @Path("policies/activate/{id}")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -270,6 +470,26 @@ public class AppWebResource extends AbstractWebResource {
                                       build();
     }
 
+    /**
+     * Registers the schema of a policy type, so that its policies are
+     * formally validated by the policy manager.
+     */
+    @POST
+    @Path("policytype/schema")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response registerPolicyTypeSchema(String body) {
+        SimpleResponse sr;
+        try {
+            sr = policyFrameworkService.addPolicyTypeSchema(PolicyCodec.readPolicyTypeSchema(body));
+        } catch (IOException e) {
+            sr = new SimpleResponse("Error when parsing the JSON structure", false);
+        }
+        return ok(sr.toJSON())
+            .status(sr.getCode())
+            .build();
+    }
+
     @DELETE
     @Path("policytype/deregister/{policyType}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -288,4 +508,109 @@ public class AppWebResource extends AbstractWebResource {
                                       status(sr.getCode()).
                                       build();
     }
+
+    /**
+     * Writes a page of the policies that match a filter to the response
+     * stream, one policy at a time, without copying them beforehand.
+     */
+    private Response listPolicies(PolicyFilter filter, int after, Integer limit) {
+        if (limit != null && limit < 1) {
+            SimpleResponse sr = new SimpleResponse("The limit must be higher than 0", false);
+            return ok(sr.toJSON())
+                .status(sr.getCode())
+                .type(MediaType.APPLICATION_JSON)
+                .build();
+        }
+        Iterator<PolicyRule> policies = policyFrameworkService.getPolicies(filter, after);
+        StreamingOutput page = out -> {
+            try (JsonGenerator gen = PolicyCodec.newGenerator(out)) {
+                gen.writeStartObject();
+                gen.writeArrayFieldStart("policies");
+                int count = 0;
+                int last = after;
+                while ((limit == null || count < limit) && policies.hasNext()) {
+                    PolicyRule pr = policies.next();
+                    PolicyCodec.write(gen, pr);
+                    last = pr.getId();
+                    count++;
+                }
+                gen.writeEndArray();
+                if (policies.hasNext()) {
+                    gen.writeNumberField("next", last);
+                }
+                gen.writeEndObject();
+            }
+        };
+        return ok(page).build();
+    }
+
+    /**
+     * Writes a result line of a stream and sends it to the client at once.
+     */
+    private static void writeLine(OutputStream out, ObjectNode line) {
+        try {
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Iterates over the policy rules of a stream until the end of the stream
+     * or the first one that cannot be parsed. The parsing time of each rule
+     * is recorded in the metrics.
+     */
+    private static final class ParsedPolicyRules implements Iterator<PolicyRule> {
+
+        private final MappingIterator<PolicyRule> parsed;
+        private final AdmissionMetrics metrics;
+        private String error = null;
+        /**
+         * The rule read ahead by hasNext, not returned yet
+         */
+        private PolicyRule next = null;
+
+        private ParsedPolicyRules(MappingIterator<PolicyRule> parsed, AdmissionMetrics metrics) {
+            this.parsed = parsed;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Reads the next rule. A line that cannot be parsed ends the stream
+         * cleanly, so the rules read before it are still admitted.
+         */
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (error != null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            try {
+                if (!parsed.hasNextValue()) {
+                    return false;
+                }
+                next = parsed.nextValue();
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+                return false;
+            }
+            metrics.recordSince(AdmissionMetrics.Stage.PARSE, AdmissionMetrics.ALL_TYPES, start);
+            return true;
+        }
+
+        @Override
+        public PolicyRule next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            PolicyRule pr = next;
+            next = null;
+            return pr;
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the containing, contained and overlapping queries of the IPv4
+ * prefix trie, and that removals and duplicates keep its size right.
+ */
+public class Ip4PrefixTrieTest {
+
+    private final Ip4PrefixTrie<String> trie = new Ip4PrefixTrie<>();
+
+    @Test
+    public void findsContainingContainedAndOverlappingPrefixes() {
+        trie.add(0, 0, "default");
+        trie.add(ip(10, 0, 0, 0), 8, "10/8");
+        trie.add(ip(10, 1, 0, 0), 16, "10.1/16");
+        trie.add(ip(10, 1, 2, 0), 24, "10.1.2/24");
+        trie.add(ip(11, 0, 0, 0), 8, "11/8");
+        trie.add(ip(10, 2, 0, 0), 16, "10.2/16");
+
+        assertEquals(Arrays.asList("10.1.2/24", "10.1/16", "10/8", "default"),
+                     containing(ip(10, 1, 2, 3), 32));
+        assertEquals(Arrays.asList("10.1.2/24", "10.1/16", "10.2/16", "10/8"), contained(ip(10, 0, 0, 0), 8));
+        assertEquals(Arrays.asList("10.1.2/24", "10.1/16", "10/8", "default"), overlapping(ip(10, 1, 0, 0), 16));
+        assertEquals(Collections.singletonList("default"), overlapping(ip(12, 0, 0, 0), 8));
+    }
+
+    @Test
+    public void ignoresTheBitsBeyondThePrefixLength() {
+        trie.add(ip(10, 1, 2, 3), 8, "10/8");
+        assertEquals(Collections.singletonList("10/8"), containing(ip(10, 200, 0, 0), 16));
+        assertTrue(trie.remove(ip(10, 0, 0, 0), 8, "10/8"));
+    }
+
+    @Test
+    public void removesValuesAndReleasesEmptyNodes() {
+        trie.add(ip(10, 1, 0, 0), 16, "a");
+        trie.add(ip(10, 1, 2, 0), 24, "b");
+        assertFalse(trie.remove(ip(10, 1, 2, 0), 24, "a"));
+        assertFalse(trie.remove(ip(10, 1, 3, 0), 24, "b"));
+        assertFalse(trie.remove(ip(10, 1, 2, 0), 32, "b"));
+        assertTrue(trie.remove(ip(10, 1, 2, 0), 24, "b"));
+        assertFalse(trie.remove(ip(10, 1, 2, 0), 24, "b"));
+        assertEquals(1, trie.size());
+        assertEquals(Collections.singletonList("a"), contained(ip(10, 0, 0, 0), 8));
+        assertTrue(trie.remove(ip(10, 1, 0, 0), 16, "a"));
+        assertEquals(0, trie.size());
+        assertEquals(Collections.emptyList(), overlapping(0, 0));
+    }
+
+    @Test
+    public void storesAValueOncePerPrefix() {
+        trie.add(ip(10, 0, 0, 0), 8, "a");
+        trie.add(ip(10, 0, 0, 0), 8, "a");
+        assertEquals(1, trie.size());
+        trie.add(ip(10, 1, 0, 0), 16, "a");
+        assertEquals(2, trie.size());
+        assertEquals(Arrays.asList("a", "a"), overlapping(ip(10, 1, 0, 0), 16));
+    }
+
+    private List<String> containing(int address, int length) {
+        List<String> values = new ArrayList<>();
+        trie.forEachContaining(address, length, values::add);
+        return sorted(values);
+    }
+
+    private List<String> contained(int address, int length) {
+        List<String> values = new ArrayList<>();
+        trie.forEachContained(address, length, values::add);
+        return sorted(values);
+    }
+
+    private List<String> overlapping(int address, int length) {
+        List<String> values = new ArrayList<>();
+        trie.forEachOverlapping(address, length, values::add);
+        return sorted(values);
+    }
+
+    private static List<String> sorted(List<String> values) {
+        Collections.sort(values);
+        return values;
+    }
+
+    private static int ip(int a, int b, int c, int d) {
+        return a << 24 | b << 16 | c << 8 | d;
+    }
+}
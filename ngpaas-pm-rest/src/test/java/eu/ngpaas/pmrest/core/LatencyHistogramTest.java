@@ -0,0 +1,79 @@
+package eu.ngpaas.pmrest.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the statistics of the latency histogram: exact counts, sums and
+ * maximums, and quantiles within the relative error of its buckets.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Relative error of a quantile, 1 / SUB_BUCKETS
+     */
+    private static final double MAX_ERROR = 1.0 / 32;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void emptySnapshotIsZero() {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtQuantile(0.99));
+        assertEquals(0.0, snapshot.getMean(), 0.0);
+    }
+
+    @Test
+    public void countsSumAndMaximumAreExact() {
+        histogram.record(100);
+        histogram.record(200);
+        histogram.record(300);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(600, snapshot.getSum());
+        assertEquals(300, snapshot.getMax());
+        assertEquals(200.0, snapshot.getMean(), 0.0);
+        assertEquals(300, snapshot.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int value = 0; value < 64; value++) {
+            histogram.record(value);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (int value = 1; value <= 64; value++) {
+            assertEquals(value - 1, snapshot.getValueAtQuantile(value / 64.0));
+        }
+    }
+
+    @Test
+    public void quantilesAreWithinTheRelativeError() {
+        int count = 1000000;
+        for (int value = 1; value <= count; value++) {
+            histogram.record(value * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double quantile : new double[] {0.001, 0.25, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = (long) Math.ceil(quantile * count) * 1000L;
+            long reported = snapshot.getValueAtQuantile(quantile);
+            assertTrue("Quantile " + quantile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue("Quantile " + quantile + ": " + reported + " > " + exact,
+                       reported <= exact * (1 + MAX_ERROR));
+        }
+    }
+
+    @Test
+    public void clampsValuesOutOfRange() {
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().getMax());
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals((1L << 40) - 1, snapshot.getMax());
+        assertEquals(snapshot.getMax(), snapshot.getValueAtQuantile(1.0));
+    }
+}
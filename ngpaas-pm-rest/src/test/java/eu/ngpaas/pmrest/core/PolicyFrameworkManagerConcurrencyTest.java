@@ -0,0 +1,273 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.ngpaas.pmlib.ConflictValidator;
+import eu.ngpaas.pmlib.ForwardingObjectiveList;
+import eu.ngpaas.pmlib.PolicyAction;
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyRules;
+import eu.ngpaas.pmlib.PolicyService;
+import eu.ngpaas.pmlib.PolicyState;
+import eu.ngpaas.pmlib.SimpleResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Pushes, deletes, deactivates and activates conflicting policies of several
+ * types from concurrent threads, against in-process policy type apps that
+ * record which policies they enforce, and checks that no policy is enforced
+ * twice or lost and that the final states are consistent.
+ */
+public class PolicyFrameworkManagerConcurrencyTest {
+
+    private static final String[] TYPES = {"QOS", "FIREWALL", "NAT"};
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 60;
+
+    private final AtomicInteger nextAction = new AtomicInteger();
+    private final List<String> violations = new CopyOnWriteArrayList<>();
+    private final Map<String, CountingPolicyService> services = new HashMap<>();
+    private PolicyFrameworkManager manager;
+
+    @Before
+    public void setUp() {
+        manager = new PolicyFrameworkManager();
+        manager.activate();
+        for (String type : TYPES) {
+            CountingPolicyService service = new CountingPolicyService(type);
+            services.put(type, service);
+            manager.addPolicyType(type);
+            manager.bindPolicyService(service);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        manager.deactivate();
+    }
+
+    @Test
+    public void concurrentMixedTypePushesEnforceEachPolicyOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    runRandomOperation(random);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        // Locking the types of a batch in a different order would deadlock here
+        assertTrue("Operations did not complete", executor.awaitTermination(60, TimeUnit.SECONDS));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        awaitQuiescence();
+        assertConsistent();
+
+        // Deleting the enforced policies of a type leaves its PENDING ones to the reactivation scheduler
+        for (PolicyRule pr : manager.getPoliciesByState(PolicyState.ENFORCED).getPolicyRules()) {
+            if (pr.getType().equals(TYPES[0])) {
+                manager.deletePolicyById(pr.getId());
+            }
+        }
+        awaitQuiescence();
+        assertConsistent();
+    }
+
+    private void runRandomOperation(Random random) {
+        int operation = random.nextInt(100);
+        if (operation < 70) {
+            PolicyRules batch = new PolicyRules();
+            int size = 1 + random.nextInt(5);
+            for (int i = 0; i < size; i++) {
+                PolicyRule pr = newPolicy(random);
+                assertTrue(manager.preprocess(pr).isSuccess());
+                batch.addRule(pr);
+            }
+            manager.pushPolicies(batch);
+            return;
+        }
+        List<PolicyRule> stored = manager.getAllPolicies().getPolicyRules();
+        if (stored.isEmpty()) {
+            return;
+        }
+        PolicyRule pr = stored.get(random.nextInt(stored.size()));
+        if (operation < 85) {
+            manager.deletePolicyById(pr.getId());
+        } else if (operation < 95) {
+            manager.deactivatePolicyById(pr.getId());
+        } else {
+            manager.activatePolicyById(pr.getId());
+        }
+    }
+
+    /**
+     * Returns a policy of a random type and priority. Its conditions take
+     * few values, so that policies of the same type often overlap, and its
+     * actions are unique, so that overlapping policies conflict.
+     */
+    private PolicyRule newPolicy(Random random) {
+        PolicyRule pr = new PolicyRule();
+        pr.setType(TYPES[random.nextInt(TYPES.length)]);
+        pr.setPriority(random.nextInt(10));
+        pr.setForm("DNF");
+        CopyOnWriteArrayList<PolicyCondition> clause = new CopyOnWriteArrayList<>();
+        clause.add(condition("ipv4_src", "10.0.0." + random.nextInt(4)));
+        if (random.nextBoolean()) {
+            clause.add(condition("ipv4_dst", "10.0.1." + random.nextInt(2)));
+        }
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> conditions = new CopyOnWriteArrayList<>();
+        conditions.add(clause);
+        pr.setPolicyConditions(conditions);
+        PolicyAction action = new PolicyAction();
+        action.setPolicyVariable("bandwidth");
+        action.setPolicyValue(String.valueOf(nextAction.incrementAndGet()));
+        pr.addPolicyAction(action);
+        return pr;
+    }
+
+    private static PolicyCondition condition(String variable, String value) {
+        PolicyCondition pc = new PolicyCondition();
+        pc.setPolicyVariable(variable);
+        pc.setPolicyValue(value);
+        return pc;
+    }
+
+    /**
+     * Waits until the reactivation rounds and the calls to the apps are over.
+     */
+    private void awaitQuiescence() throws InterruptedException {
+        assertTrue("Policies did not settle", manager.awaitIdle(30, TimeUnit.SECONDS));
+    }
+
+    private void assertConsistent() {
+        assertEquals("Violations: " + violations, Collections.emptyList(), violations);
+        List<PolicyRule> stored = manager.getAllPolicies().getPolicyRules();
+        List<PolicyRule> enforced = new ArrayList<>();
+        for (PolicyRule pr : stored) {
+            boolean inNetwork = services.get(pr.getType()).isEnforced(pr);
+            if (pr.getState() == PolicyState.ENFORCED) {
+                assertTrue("Policy " + pr.getId() + " is ENFORCED but not in the network", inNetwork);
+                enforced.add(pr);
+            } else {
+                assertEquals("Policy " + pr.getId() + " state", PolicyState.PENDING, pr.getState());
+                assertTrue("Policy " + pr.getId() + " is PENDING but in the network", !inNetwork);
+            }
+        }
+        int inNetwork = 0;
+        for (String type : TYPES) {
+            inNetwork += services.get(type).enforcedCount();
+        }
+        assertEquals("Policies in the network", enforced.size(), inNetwork);
+
+        for (PolicyRule pr : enforced) {
+            for (PolicyRule other : enforced) {
+                if (pr != other && !ConflictValidator.detectConflict(pr, other).isSuccess()) {
+                    fail("ENFORCED policies " + pr.getId() + " and " + other.getId() + " conflict");
+                }
+            }
+        }
+        // A PENDING policy that is not tagged is only kept out by an ENFORCED one that is not of lower priority
+        for (PolicyRule pr : stored) {
+            if (pr.getState() != PolicyState.PENDING || pr.isDeactivated()) {
+                continue;
+            }
+            boolean blocked = false;
+            for (PolicyRule other : enforced) {
+                if (other.getPriority() >= pr.getPriority()
+                    && !ConflictValidator.detectConflict(pr, other).isSuccess()) {
+                    blocked = true;
+                    break;
+                }
+            }
+            assertTrue("PENDING policy " + pr.getId() + " is not blocked", blocked);
+        }
+    }
+
+    /**
+     * In-process policy type app whose validations succeed and that records
+     * the policies it has enforced and not removed since, by identity, since
+     * the ids are reset when the store empties.
+     */
+    private final class CountingPolicyService implements PolicyService {
+
+        private final String type;
+        private final Set<PolicyRule> enforced = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private CountingPolicyService(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public String getPolicyType() {
+            return type;
+        }
+
+        @Override
+        public SimpleResponse formalValidation(PolicyRule pr) {
+            return new SimpleResponse("OK", true);
+        }
+
+        @Override
+        public SimpleResponse contextValidation(PolicyRule pr) {
+            return new SimpleResponse("OK", true);
+        }
+
+        @Override
+        public ForwardingObjectiveList getFlowRules(PolicyRule pr) {
+            return new ForwardingObjectiveList();
+        }
+
+        @Override
+        public synchronized void enforce(PolicyRule pr) {
+            calls.incrementAndGet();
+            if (!enforced.add(pr)) {
+                violations.add("Policy " + pr.getId() + " enforced twice");
+            }
+        }
+
+        @Override
+        public synchronized void remove(PolicyRule pr) {
+            calls.incrementAndGet();
+            // Deleting a PENDING policy removes it from the network too, so it may not be enforced
+            enforced.remove(pr);
+        }
+
+        private synchronized boolean isEnforced(PolicyRule pr) {
+            return enforced.contains(pr);
+        }
+
+        private synchronized int enforcedCount() {
+            return enforced.size();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package eu.ngpaas.pmrest.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import eu.ngpaas.pmlib.PolicyAction;
+import eu.ngpaas.pmlib.PolicyCondition;
+import eu.ngpaas.pmlib.PolicyRule;
+import eu.ngpaas.pmlib.PolicyState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the changes of a store in a journal and checks the policies
+ * recovered by reopening it: from the log alone, from the snapshot written
+ * on close plus a newer log, and from a log whose last record is torn or
+ * corrupted, which must be cut off.
+ */
+public class PolicyJournalTest {
+
+    private final List<PolicyJournal> journals = new ArrayList<>();
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("policy-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journals.forEach(PolicyJournal::close);
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replaysTheLog() throws IOException {
+        PolicyStore store = new PolicyStore();
+        PolicyJournal journal = start(store);
+        PolicyRule enforced = policy(1, 5);
+        PolicyRule reprioritized = policy(2, 5);
+        PolicyRule deactivated = policy(3, 5);
+        store.add(enforced);
+        store.add(reprioritized);
+        store.add(deactivated);
+        store.add(policy(4, 5));
+        store.setState(enforced, PolicyState.ENFORCED);
+        store.setPriority(reprioritized, 7);
+        deactivated.setDeactivated(true);
+        store.setState(deactivated, PolicyState.PENDING);
+        store.remove(4);
+        journal.sync();
+
+        List<PolicyRule> recovered = recover();
+        assertEquals(Arrays.asList(1, 2, 3), idsOf(recovered));
+        assertEquals(PolicyState.ENFORCED, recovered.get(0).getState());
+        assertEquals(7, recovered.get(1).getPriority());
+        assertEquals(PolicyState.PENDING, recovered.get(2).getState());
+        assertTrue(recovered.get(2).isDeactivated());
+    }
+
+    @Test
+    public void replaysTheNewerLogOnTheSnapshot() throws IOException {
+        PolicyStore store = new PolicyStore();
+        PolicyJournal journal = start(store);
+        store.add(policy(1, 5));
+        store.add(policy(2, 5));
+        journal.close();
+
+        PolicyStore restored = new PolicyStore();
+        PolicyJournal reopened = open();
+        reopened.getRecovered().forEach(restored::add);
+        restored.setJournal(reopened);
+        reopened.start(restored::checkpoint);
+        restored.remove(1);
+        restored.add(policy(3, 5));
+        reopened.sync();
+
+        assertEquals(Arrays.asList(2, 3), idsOf(recover()));
+    }
+
+    @Test
+    public void cutsOffATornRecord() throws IOException {
+        long intact = writeTwoPolicies();
+        Path log = logs().get(0);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        assertEquals(Arrays.asList(1), idsOf(recover()));
+        assertEquals(intact, Files.size(log));
+    }
+
+    @Test
+    public void cutsOffACorruptedRecord() throws IOException {
+        long intact = writeTwoPolicies();
+        Path log = logs().get(0);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 2);
+            last.put(0, (byte) ~last.get(0)).rewind();
+            channel.write(last, channel.size() - 2);
+        }
+
+        assertEquals(Arrays.asList(1), idsOf(recover()));
+        assertEquals(intact, Files.size(log));
+    }
+
+    /**
+     * Records two policies and returns the size of the log after the first one.
+     */
+    private long writeTwoPolicies() throws IOException {
+        PolicyStore store = new PolicyStore();
+        PolicyJournal journal = start(store);
+        store.add(policy(1, 5));
+        journal.sync();
+        long intact = Files.size(logs().get(0));
+        store.add(policy(2, 5));
+        journal.sync();
+        return intact;
+    }
+
+    private PolicyJournal open() throws IOException {
+        PolicyJournal journal = PolicyJournal.open(dir, 1, Integer.MAX_VALUE);
+        journals.add(journal);
+        return journal;
+    }
+
+    private PolicyJournal start(PolicyStore store) throws IOException {
+        PolicyJournal journal = open();
+        store.setJournal(journal);
+        journal.start(store::checkpoint);
+        return journal;
+    }
+
+    /**
+     * Opens the journal again and returns the policies it recovers.
+     */
+    private List<PolicyRule> recover() throws IOException {
+        return new ArrayList<>(open().getRecovered());
+    }
+
+    private List<Path> logs() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, "policies-*.log")) {
+            paths.forEach(logs::add);
+        }
+        logs.sort(null);
+        return logs;
+    }
+
+    private static List<Integer> idsOf(List<PolicyRule> prs) {
+        List<Integer> ids = new ArrayList<>();
+        for (PolicyRule pr : prs) {
+            ids.add(pr.getId());
+        }
+        return ids;
+    }
+
+    private static PolicyRule policy(int id, int priority) {
+        PolicyRule pr = new PolicyRule();
+        pr.setId(id);
+        pr.setType("QOS");
+        pr.setPriority(priority);
+        pr.setForm("DNF");
+        pr.setState(PolicyState.PENDING);
+        PolicyCondition pc = new PolicyCondition();
+        pc.setPolicyVariable("ipv4_src");
+        pc.setPolicyValue("10.0.0." + id);
+        CopyOnWriteArrayList<PolicyCondition> clause = new CopyOnWriteArrayList<>();
+        clause.add(pc);
+        CopyOnWriteArrayList<CopyOnWriteArrayList<PolicyCondition>> conditions = new CopyOnWriteArrayList<>();
+        conditions.add(clause);
+        pr.setPolicyConditions(conditions);
+        PolicyAction pa = new PolicyAction();
+        pa.setPolicyVariable("bandwidth");
+        pa.setPolicyValue(String.valueOf(id));
+        pr.addPolicyAction(pa);
+        return pr;
+    }
+}
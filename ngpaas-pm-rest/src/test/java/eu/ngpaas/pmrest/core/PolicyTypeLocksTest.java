@@ -0,0 +1,80 @@
+package eu.ngpaas.pmrest.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the locks of different policy types do not exclude each
+ * other, that the lock of a type is reentrant and exclusive, and that the
+ * lock of all the types waits for the per-type ones.
+ */
+public class PolicyTypeLocksTest {
+
+    private final PolicyTypeLocks locks = new PolicyTypeLocks(new AdmissionMetrics());
+
+    @Test
+    public void differentTypesDoNotExcludeEachOther() throws InterruptedException {
+        locks.lock("QOS");
+        try {
+            assertTrue(runsWithin(() -> {
+                locks.lock("FIREWALL");
+                locks.unlock("FIREWALL");
+            }, 1000));
+        } finally {
+            locks.unlock("QOS");
+        }
+    }
+
+    @Test
+    public void sameTypeIsReentrantAndExclusive() throws InterruptedException {
+        locks.lock("QOS");
+        // Displacing a policy under the lock of its type takes it again
+        locks.lock("QOS");
+        try {
+            assertFalse(runsWithin(() -> {
+                locks.lock("QOS");
+                locks.unlock("QOS");
+            }, 200));
+        } finally {
+            locks.unlock("QOS");
+            locks.unlock("QOS");
+        }
+    }
+
+    @Test
+    public void lockAllWaitsForPerTypeLocks() throws InterruptedException {
+        locks.lock("QOS");
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            locks.lockAll();
+            acquired.countDown();
+            locks.unlockAll();
+        });
+        thread.start();
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        locks.unlock("QOS");
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    /**
+     * Runs an action in another thread and returns whether it completed in time.
+     */
+    private static boolean runsWithin(Runnable action, long millis) throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            action.run();
+            done.set(true);
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(millis);
+        return done.get();
+    }
+}